@@ -0,0 +1,244 @@
+package CodeGenerator;
+
+import VM.BytecodeFormat;
+import VM.Instruction.Instruction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escrita de um ficheiro de bytecodes (formato v2, ver {@link BytecodeFormat}) a medida que o
+ * codigo e gerado, para a compilacao por estatistica de programas muito grandes: o codigo e a
+ * tabela de linhas passam por buffers de tamanho fixo, pelo que a memoria usada nao depende do
+ * tamanho do programa.
+ *
+ * <p>A seccao CODE vem logo a seguir a tabela de seccoes; a tabela de linhas (se o ficheiro
+ * tiver informacao de depuracao) vai para um ficheiro temporario e e copiada para o fim do
+ * ficheiro, com as pools de constantes, a profundidade maxima da pilha e os metadados, por
+ * finish(), que completa entao o cabecalho.</p>
+ */
+public class BytecodeWriter implements Closeable {
+    // DOUBLES, STRINGS, CODE, STACK, LINES e METADATA; LINES so com informacao de depuracao
+    private static final int NUM_SECTIONS = 6;
+    private static final int LINES = 4;
+
+    private final FileChannel channel;
+    // Ficheiro temporario da tabela de linhas (null sem informacao de depuracao)
+    private final Path linesFile;
+    private final FileChannel lines;
+    private final ByteBuffer codeBuffer = ByteBuffer.allocate(1 << 16);
+    private final ByteBuffer linesBuffer;
+    private final int codeStart;
+
+    // Instrucoes e bytes de codigo ja escritos, e entradas da tabela de linhas
+    private int numInstructions = 0;
+    private int codeBytes = 0;
+    private int numLines = 0;
+
+    /**
+     * Cria o ficheiro de bytecodes, com a tabela de linhas, e reserva o espaco do cabecalho.
+     *
+     * @param filename Nome do ficheiro.
+     * @throws IOException Se o ficheiro nao puder ser criado.
+     */
+    public BytecodeWriter(String filename) throws IOException {
+        this(filename, true);
+    }
+
+    /**
+     * Cria o ficheiro de bytecodes e reserva o espaco do cabecalho.
+     *
+     * @param filename Nome do ficheiro.
+     * @param debugInfo Se o ficheiro tem a seccao LINES.
+     * @throws IOException Se o ficheiro nao puder ser criado.
+     */
+    public BytecodeWriter(String filename, boolean debugInfo) throws IOException {
+        channel = FileChannel.open(Path.of(filename), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (debugInfo) {
+            linesFile = Files.createTempFile("tuga-lines", ".tmp");
+            lines = FileChannel.open(linesFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            linesBuffer = ByteBuffer.allocate(12 << 12);
+        } else {
+            linesFile = null;
+            lines = null;
+            linesBuffer = null;
+        }
+        codeStart = BytecodeFormat.HEADER_SIZE + numSections() * BytecodeFormat.SECTION_ENTRY_SIZE;
+        // numero de instrucoes, escrito por finish()
+        channel.position(codeStart + 4);
+    }
+
+    private int numSections() {
+        return lines != null ? NUM_SECTIONS : NUM_SECTIONS - 1;
+    }
+
+    /**
+     * @return Numero de instrucoes ja escritas (o indice da seguinte).
+     */
+    int getInstructionCount() {
+        return numInstructions;
+    }
+
+    /**
+     * @return Deslocamento em bytes da instrucao seguinte, a contar da primeira.
+     */
+    int getCodeBytes() {
+        return codeBytes;
+    }
+
+    /**
+     * Escreve uma instrucao; os saltos ja tem como argumento o deslocamento do destino.
+     */
+    void write(Instruction inst) throws IOException {
+        if (codeBuffer.remaining() < 5)
+            drain(codeBuffer, channel);
+        inst.writeTo(codeBuffer);
+        numInstructions++;
+        codeBytes += 1 + 4 * inst.nArgs();
+    }
+
+    /**
+     * Acrescenta uma entrada a tabela de linhas, por ordem de indice; sem informacao de
+     * depuracao, e ignorada.
+     */
+    void addLine(int index, int line, int column) throws IOException {
+        if (lines == null)
+            return;
+        if (linesBuffer.remaining() < 12)
+            drain(linesBuffer, lines);
+        linesBuffer.putInt(index).putInt(line).putInt(column);
+        numLines++;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Escreve o resto do ficheiro depois da ultima instrucao e completa o cabecalho.
+     *
+     * @param doubles Pool de reais.
+     * @param strings Pool de strings, sem as aspas.
+     * @param maxStackDepth Profundidade maxima da pilha de operandos.
+     * @param metadata Metadados.
+     * @throws IOException Se ocorrer um erro de entrada/saida.
+     */
+    void finish(List<Double> doubles, List<String> strings, int maxStackDepth,
+                Map<String, String> metadata) throws IOException {
+        drain(codeBuffer, channel);
+
+        int[] offsets = new int[NUM_SECTIONS];
+        int[] sizes = new int[NUM_SECTIONS];
+        long offset = codeStart + 4L + codeBytes;
+
+        // DOUBLES
+        ByteBuffer out = ByteBuffer.allocate(4 + 8 * doubles.size());
+        out.putInt(doubles.size());
+        for (double d : doubles)
+            out.putLong(Double.doubleToLongBits(d));
+        offset = section(0, out, offset, offsets, sizes);
+
+        // STRINGS
+        byte[][] encoded = new byte[strings.size()][];
+        int size = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = BytecodeFormat.utf8(strings.get(i));
+            size += 4 + encoded[i].length;
+        }
+        out = ByteBuffer.allocate(size);
+        out.putInt(encoded.length);
+        for (byte[] s : encoded)
+            BytecodeFormat.putString(out, s);
+        offset = section(1, out, offset, offsets, sizes);
+
+        // STACK
+        offset = section(3, ByteBuffer.allocate(4).putInt(maxStackDepth), offset, offsets, sizes);
+
+        // LINES: numero de entradas seguido das entradas do ficheiro temporario
+        if (lines != null) {
+            drain(linesBuffer, lines);
+            offset = section(LINES, ByteBuffer.allocate(4).putInt(numLines), offset, offsets, sizes);
+            long linesSize = lines.size();
+            for (long copied = 0; copied < linesSize; )
+                copied += lines.transferTo(copied, linesSize - copied, channel.position(offset + copied));
+            sizes[LINES] += (int) linesSize;
+            offset += linesSize;
+        }
+
+        // METADATA
+        byte[][] meta = new byte[2 * metadata.size()][];
+        size = 4;
+        int k = 0;
+        for (Map.Entry<String, String> e : metadata.entrySet()) {
+            meta[k] = BytecodeFormat.utf8(e.getKey());
+            meta[k + 1] = BytecodeFormat.utf8(e.getValue());
+            size += 8 + meta[k].length + meta[k + 1].length;
+            k += 2;
+        }
+        out = ByteBuffer.allocate(size);
+        out.putInt(metadata.size());
+        for (byte[] m : meta)
+            BytecodeFormat.putString(out, m);
+        section(5, out, offset, offsets, sizes);
+
+        // CODE
+        offsets[2] = codeStart;
+        sizes[2] = 4 + codeBytes;
+
+        // cabecalho, tabela de seccoes e numero de instrucoes
+        int[] ids = { BytecodeFormat.SECTION_DOUBLES, BytecodeFormat.SECTION_STRINGS, BytecodeFormat.SECTION_CODE,
+                BytecodeFormat.SECTION_STACK, BytecodeFormat.SECTION_LINES, BytecodeFormat.SECTION_METADATA };
+        ByteBuffer header = ByteBuffer.allocate(codeStart + 4);
+        header.putInt(BytecodeFormat.MAGIC);
+        header.putShort((short) BytecodeFormat.VERSION);
+        header.putShort((short) numSections());
+        for (int i = 0; i < NUM_SECTIONS; i++)
+            if (i != LINES || lines != null)
+                header.putInt(ids[i]).putInt(offsets[i]).putInt(sizes[i]);
+        header.putInt(numInstructions);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    /**
+     * Escreve uma seccao na posicao dada.
+     *
+     * @return A posicao a seguir a seccao.
+     */
+    private long section(int i, ByteBuffer data, long offset, int[] offsets, int[] sizes) throws IOException {
+        data.flip();
+        offsets[i] = (int) offset;
+        sizes[i] = data.remaining();
+        channel.position(offset);
+        while (data.hasRemaining())
+            channel.write(data);
+        return offset + sizes[i];
+    }
+
+    /**
+     * Fecha o ficheiro de bytecodes e apaga o ficheiro temporario da tabela de linhas.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (lines != null)
+                lines.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1,472 +1,836 @@
 package CodeGenerator;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import Tuga.*;
+import IR.TugaIR;
+import TypeChecker.TugaType;
+import Optimizer.PeepholeOptimizer;
+import VM.BytecodeFormat;
 import VM.OpCode;
 import VM.Instruction.*;
-import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
 /**
  * Classe responsavel pela geracao de codigo para a compilacao da lingua Tuga.
- * Gera bytecodes compativeis com a Maquina Virtual S (versao mini).
+ * Gera bytecodes compativeis com a Maquina Virtual S (versao mini), a partir da representacao
+ * intermedia do programa (TugaIR).
  */
-public class CodeGen extends TugaBaseVisitor<Void> {
+public class CodeGen {
 
     // Codigo alvo: lista de instrucoes
     private final ArrayList<Instruction> code = new ArrayList<>();
-    // Pool de constantes
-    private final ArrayList<Object> constantPool = new ArrayList<>();
+    // Pools de constantes, uma por tipo (os indices de dconst e sconst referem-se a sua pool);
+    // as strings ficam sem aspas, que so sao acrescentadas no dumpCode
+    private final ArrayList<Double> doublePool = new ArrayList<>();
+    private final ArrayList<String> stringPool = new ArrayList<>();
+    // Indices das pools: padrao de bits do real -> indice e string -> indice
+    private final HashMap<Long, Integer> doubleIndex = new HashMap<>();
+    private final HashMap<String, Integer> stringIndex = new HashMap<>();
+    // Metadados guardados na seccao opcional do ficheiro de bytecodes
+    private final LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
 
-    /**
-     * Propriedade que associa os tipos as expressoes.
-     */
-    ParseTreeProperty<String> types;
+    // Programa a gerar e, por no, se a avaliacao da expressao pode terminar num erro de execucao
+    private TugaIR ir;
+    private boolean[] canFail;
+
+    // Pilha de trabalho da geracao das expressoes: no, fase e etiqueta de cada passo (ver gen)
+    private int[] workNode = new int[64];
+    private int[] workPhase = new int[64];
+    private int[] workLabel = new int[64];
+    private int workSize = 0;
+
+    // Numero de expressoes substituidas pelo seu valor
+    private int foldedExpressions = 0;
+
+    // Etiquetas: posicao de cada etiqueta (-1 enquanto nao for colocada) e saltos a corrigir
+    private final ArrayList<Integer> labels = new ArrayList<>();
+    private final HashMap<Integer, ArrayList<Instruction1Arg>> pendingJumps = new HashMap<>();
+    // Profundidade da pilha esperada em cada etiqueta (-1 enquanto nenhum salto a indicar)
+    private final ArrayList<Integer> labelDepths = new ArrayList<>();
+    // Posicoes reservadas por preencher (ver reserve) e se a profundidade da pilha tem de ser
+    // recalculada por compact()
+    private int emptySlots = 0;
+    private boolean depthStale = false;
+
+    // Profundidade da pilha de operandos depois da ultima instrucao emitida e o seu maximo
+    private int stackDepth = 0;
+    private int maxStackDepth = 0;
+
+    // Posicao no codigo fonte (linha e coluna, a partir de 1) da expressao a ser gerada e tabela
+    // de linhas: {indice da instrucao, linha, coluna} sempre que a posicao muda
+    private int line = 0;
+    private int column = 0;
+    private final ArrayList<int[]> lineTable = new ArrayList<>();
+    // Se a tabela de linhas e guardada (seccao LINES, so de depuracao)
+    private boolean debugInfo = true;
 
     /**
-     * Construtor da classe CodeGen.
+     * Define se o codigo gerado tem a tabela de linhas (seccao LINES), usada pela VM so para
+     * indicar a posicao dos erros de execucao. Tem de ser chamado antes de gerar o codigo.
      *
-     * @param types Propriedade que associa os tipos as expressoes.
+     * @param debugInfo false para omitir a seccao LINES (--no-debug-info).
      */
-    public CodeGen(ParseTreeProperty<String> types) {
-        this.types = types;
+    public void setDebugInfo(boolean debugInfo) {
+        this.debugInfo = debugInfo;
     }
 
     /**
-     * Adiciona uma constante a pool de constantes, se esta ainda nao existir.
+     * Gera o codigo de um programa. Os literais marcados como avaliados na representacao
+     * intermedia contam como expressoes substituidas pelo seu valor.
      *
-     * @param value Valor da constante.
-     * @return Indice da constante na pool.
+     * @param ir Representacao intermedia do programa.
      */
-    private int addConstant(Object value) {
-        for (int i = 0; i < constantPool.size(); i++) {
-            if (constantPool.get(i).equals(value))
-                return i;
-        }
-        constantPool.add(value);
-        return constantPool.size() - 1;
+    public void generate(TugaIR ir) {
+        generateStats(ir);
+        emitHalt(ir.progLine(), ir.progColumn());
     }
 
     /**
-     * Remove as aspas de uma string, se existirem.
+     * Gera o codigo das estatisticas de um programa, sem o halt final (usado na compilacao por
+     * estatistica, ver StreamingCodeGen).
      *
-     * @param str String com aspas.
-     * @return String sem as aspas.
+     * @param ir Representacao intermedia das estatisticas.
      */
-    private String removeAspas(String str) {
-        if (str != null && str.length() > 1 && str.charAt(0) == '"' &&
-                str.charAt(str.length() - 1) == '"') {
-            return str.substring(1, str.length() - 1);
+    public void generateStats(TugaIR ir) {
+        this.ir = ir;
+        canFail = canFail(ir);
+        for (int i = 0; i < ir.statCount(); i++) {
+            line = ir.statLine(i);
+            column = ir.statColumn(i);
+            gen(ir.stat(i));
+            emitPrint(ir.type(ir.stat(i)));
         }
-        return str;
+        this.ir = null;
+        canFail = null;
     }
 
     /**
-     * Visita o no raiz do programa e emite a instrucao halt.
+     * Emite o halt que termina o programa.
      *
-     * @param ctx Contexto do programa.
-     * @return null.
+     * @param line Linha do programa, a partir de 1.
+     * @param column Coluna do programa, a partir de 1.
      */
-    @Override
-    public Void visitProg(TugaParser.ProgContext ctx) {
-        visitChildren(ctx);
+    public void emitHalt(int line, int column) {
+        this.line = line;
+        this.column = column;
         emit(OpCode.halt);
-        return null;
     }
 
     /**
-     * Visita a estatistica (instrucao) e emite o bytecode de impressao adequado.
+     * Define a posicao no codigo fonte das instrucoes emitidas a seguir (usado pelo FusedCodeGen).
      *
-     * @param ctx Contexto da estatistica.
-     * @return null.
+     * @param line Linha, a partir de 1.
+     * @param column Coluna, a partir de 1.
      */
-    @Override
-    public Void visitStat(TugaParser.StatContext ctx) {
-        visit(ctx.expr());
-        String type = types.get(ctx.expr());
-
-        switch (type) {
-            case "inteiro":
-                emit(OpCode.iprint);
-                break;
-            case "real":
-                emit(OpCode.dprint);
-                break;
-            case "booleano":
-                emit(OpCode.bprint);
-                break;
-            case "string":
-                emit(OpCode.sprint);
-                break;
-        }
+    void setPosition(int line, int column) {
+        this.line = line;
+        this.column = column;
+    }
 
-        return null;
+    /**
+     * Conta uma expressao composta substituida pelo seu valor (usado pelo FusedCodeGen).
+     */
+    void countFolded() {
+        foldedExpressions++;
     }
 
     /**
-     * Visita um literal inteiro e emite a instrucao correspondente.
+     * Retorna o numero de constantes da pool de reais (usado pelo FusedCodeGen, ver truncate).
      *
-     * @param ctx Contexto do literal inteiro.
-     * @return null.
+     * @return Tamanho da pool de reais.
      */
-    @Override
-    public Void visitInt(TugaParser.IntContext ctx) {
-        emit(OpCode.iconst, Integer.parseInt(ctx.INT().getText()));
-        return null;
+    int getDoublePoolSize() {
+        return doublePool.size();
     }
 
     /**
-     * Visita um literal real e emite a instrucao correspondente.
+     * Retorna o numero de constantes da pool de strings (usado pelo FusedCodeGen, ver truncate).
      *
-     * @param ctx Contexto do literal real.
-     * @return null.
+     * @return Tamanho da pool de strings.
      */
-    @Override
-    public Void visitReal(TugaParser.RealContext ctx) {
-        double value = Double.parseDouble(ctx.getText());
-        int index = addConstant(value);
-        emit(OpCode.dconst, index);
-        return null;
+    int getStringPoolSize() {
+        return stringPool.size();
     }
 
     /**
-     * Visita um literal de string e emite a instrucao correspondente.
+     * Descarta o codigo emitido depois de uma posicao, com as suas entradas da tabela de linhas,
+     * as constantes acrescentadas desde entao as pools e as expressoes contadas entretanto como
+     * substituidas pelo seu valor (usado pelo FusedCodeGen, para descartar o codigo de um
+     * programa com erros). A profundidade da pilha so volta a estar certa depois de compact().
      *
-     * @param ctx Contexto da string.
-     * @return null.
+     * @param codeSize Numero de instrucoes a manter (ver getCodeSize).
+     * @param doubles Numero de constantes a manter na pool de reais.
+     * @param strings Numero de constantes a manter na pool de strings.
+     * @param folded Numero de expressoes substituidas pelo seu valor ate essa posicao.
      */
-    @Override
-    public Void visitString(TugaParser.StringContext ctx) {
-        String value = ctx.getText();
-        int index = addConstant(value);
-        emit(OpCode.sconst, index);
-        return null;
+    void truncate(int codeSize, int doubles, int strings, int folded) {
+        code.subList(codeSize, code.size()).clear();
+        while (!lineTable.isEmpty() && lineTable.get(lineTable.size() - 1)[0] >= codeSize)
+            lineTable.remove(lineTable.size() - 1);
+        for (int i = doublePool.size() - 1; i >= doubles; i--)
+            doubleIndex.remove(Double.doubleToLongBits(doublePool.remove(i)));
+        for (int i = stringPool.size() - 1; i >= strings; i--)
+            stringIndex.remove(stringPool.remove(i));
+        foldedExpressions = folded;
+        emptySlots = 0;
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i) == null)
+                emptySlots++;
+        depthStale = true;
     }
 
     /**
-     * Visita um literal booleano e emite a instrucao correspondente.
+     * Reserva uma posicao no codigo, com a posicao no codigo fonte atual, para uma instrucao que
+     * so e conhecida mais tarde (usado pelo FusedCodeGen, como as posicoes do PrattCodeGen): e
+     * preenchida por fill ou fillJump, ou retirada por compact().
      *
-     * @param ctx Contexto do literal booleano.
-     * @return null.
+     * @return Indice da posicao reservada.
      */
-    @Override
-    public Void visitBool(TugaParser.BoolContext ctx) {
-        if (ctx.BOOL().getText().equals("verdadeiro")) {
-            emit(OpCode.tconst);
-        } else if (ctx.BOOL().getText().equals("falso")) {
-            emit(OpCode.fconst);
-        }
-        return null;
+    int reserve() {
+        add(null);
+        emptySlots++;
+        return code.size() - 1;
     }
 
     /**
-     * Visita uma expressao entre parenteses e propaga o tipo da expressao.
+     * Preenche uma posicao reservada com uma instrucao sem argumentos.
      *
-     * @param ctx Contexto dos parenteses.
-     * @return null.
+     * @param slot Indice da posicao (ver reserve).
+     * @param opc Opcode da instrucao.
      */
-    @Override
-    public Void visitParens(TugaParser.ParensContext ctx) {
-        return visit(ctx.expr());
+    void fill(int slot, OpCode opc) {
+        code.set(slot, new Instruction(opc));
+        emptySlots--;
     }
 
     /**
-     * Visita o operador unario de menos e emite a instrucao adequada.
+     * Preenche uma posicao reservada com um salto para uma etiqueta ainda por colocar.
      *
-     * @param ctx Contexto do operador unario '-'.
-     * @return null.
+     * @param slot Indice da posicao (ver reserve).
+     * @param opc Opcode do salto (jump, jumpf ou jumpt).
+     * @param label Identificador da etiqueta de destino.
+     */
+    void fillJump(int slot, OpCode opc, int label) {
+        Instruction1Arg jump = new Instruction1Arg(opc, -1);
+        code.set(slot, jump);
+        emptySlots--;
+        // o salto tira um valor da pilha, o que a profundidade calculada desde a posicao nao conta
+        depthStale = true;
+        pendingJumps.computeIfAbsent(label, l -> new ArrayList<>()).add(jump);
+    }
+
+    /**
+     * Retira as posicoes reservadas que ficaram por preencher, corrigindo os destinos dos saltos
+     * e a tabela de linhas, e recalcula a profundidade da pilha se um salto foi posto numa
+     * posicao reservada ou o codigo foi truncado (usado pelo FusedCodeGen no fim do programa).
      */
-    @Override
-    public Void visitUminus(TugaParser.UminusContext ctx) {
-        visit(ctx.expr());
-        String type = types.get(ctx.expr());
+    void compact() {
+        if (emptySlots > 0) {
+            int[] newIndex = new int[code.size() + 1];
+            int n = 0;
+            for (int i = 0; i < code.size(); i++) {
+                newIndex[i] = n;
+                if (code.get(i) != null)
+                    code.set(n++, code.get(i));
+            }
+            newIndex[code.size()] = n;
+            code.subList(n, code.size()).clear();
+            for (Instruction inst : code)
+                if (inst.getOpCode().isJump())
+                    ((Instruction1Arg) inst).setArg(newIndex[((Instruction1Arg) inst).getArg()]);
+            remapLines(newIndex);
+            emptySlots = 0;
+        }
+        if (!depthStale)
+            return;
 
-        if (type.equals("inteiro")) {
-            emit(OpCode.iuminus);
-        } else if (type.equals("real")) {
-            emit(OpCode.duminus);
+        // os saltos sao todos para a frente; no destino, a profundidade e a do salto, como em
+        // placeLabel
+        depthStale = false;
+        int[] targetDepth = new int[code.size() + 1];
+        Arrays.fill(targetDepth, -1);
+        stackDepth = 0;
+        maxStackDepth = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if (targetDepth[i] >= 0)
+                stackDepth = targetDepth[i];
+            Instruction inst = code.get(i);
+            stackDepth += inst.getOpCode().stackEffect();
+            maxStackDepth = Math.max(maxStackDepth, stackDepth);
+            if (inst.getOpCode().isJump())
+                targetDepth[((Instruction1Arg) inst).getArg()] = stackDepth;
         }
-        return null;
     }
 
     /**
-     * Visita o operador unario 'nao' e emite a instrucao de negacao logica.
+     * Retorna o numero de expressoes compostas substituidas pelo seu valor constante.
      *
-     * @param ctx Contexto do operador 'nao'.
-     * @return null.
+     * @return Numero de expressoes avaliadas em tempo de compilacao.
      */
-    @Override
-    public Void visitNot(TugaParser.NotContext ctx) {
-        visit(ctx.expr());
-        emit(OpCode.not);
-        return null;
+    public int getFoldedExpressions() {
+        return foldedExpressions;
     }
 
     /**
-     * Visita expressoes de multiplicacao, divisao ou modulo e emite a instrucao adequada.
+     * Retorna o numero de instrucoes geradas.
      *
-     * @param ctx Contexto da operacao.
-     * @return null.
+     * @return Numero de instrucoes.
      */
-    @Override
-    public Void visitMulDivMod(TugaParser.MulDivModContext ctx) {
-        String tipoExpressao = types.get(ctx);
+    public int getCodeSize() {
+        return code.size();
+    }
 
-        visit(ctx.expr(0));
-        String tipo1 = types.get(ctx.expr(0));
+    /**
+     * Retorna a profundidade maxima da pilha de operandos do codigo gerado. As otimizacoes
+     * peephole nunca a aumentam, pelo que continua a ser um limite valido depois delas.
+     *
+     * @return Numero maximo de operandos na pilha durante a execucao.
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
 
-        if (tipo1.equals("inteiro") && tipoExpressao.equals("real")) {
-            emit(OpCode.itod);
-        }
+    /**
+     * Adiciona uma constante real a pool de reais, se esta ainda nao existir.
+     *
+     * @param value Valor da constante.
+     * @return Indice da constante na pool de reais.
+     */
+    int addConstant(double value) {
+        // o padrao de bits segue a igualdade de Double.equals (0.0 e -0.0 sao distintos)
+        Integer index = doubleIndex.putIfAbsent(Double.doubleToLongBits(value), doublePool.size());
+        if (index != null)
+            return index;
+        doublePool.add(value);
+        return doublePool.size() - 1;
+    }
 
-        visit(ctx.expr(1));
-        String tipo2 = types.get(ctx.expr(1));
+    /**
+     * Adiciona uma constante string a pool de strings, se esta ainda nao existir.
+     *
+     * @param value Valor da constante.
+     * @return Indice da constante na pool de strings.
+     */
+    int addConstant(String value) {
+        Integer index = stringIndex.putIfAbsent(value, stringPool.size());
+        if (index != null)
+            return index;
+        stringPool.add(value);
+        return stringPool.size() - 1;
+    }
 
-        if (tipo2.equals("inteiro") && tipoExpressao.equals("real")) {
-            emit(OpCode.itod);
-        }
+    /**
+     * Acrescenta uma entrada aos metadados do ficheiro de bytecodes (por exemplo, o ficheiro fonte).
+     * Os metadados nao sao necessarios para executar o programa.
+     *
+     * @param key Nome da entrada.
+     * @param value Valor da entrada.
+     */
+    public void addMetadata(String key, String value) {
+        metadata.put(key, value);
+    }
 
-        if (ctx.op.getText().equals("*")) {
-            if (tipoExpressao.equals("inteiro")) {
-                emit(OpCode.imult);
-            } else if (tipoExpressao.equals("real")) {
-                emit(OpCode.dmult);
-            }
-        } else if (ctx.op.getText().equals("/")) {
-            if (tipoExpressao.equals("inteiro")) {
-                emit(OpCode.idiv);
-            } else if (tipoExpressao.equals("real")) {
-                emit(OpCode.ddiv);
-            }
-        } else if (ctx.op.getText().equals("%")) {
-            emit(OpCode.imod);
-        }
-
-        return null;
-    }
-
-    /**
-     * Visita expressoes de adicao ou subtracao e emite a instrucao adequada.
-     *
-     * @param ctx Contexto da operacao.
-     * @return null.
-     */
-    @Override
-    public Void visitAddSub(TugaParser.AddSubContext ctx) {
-        String tipoExpressao = types.get(ctx);
-        switch (ctx.op.getText()) {
-            case "+":
-                if (tipoExpressao.equals("string")) {
-                    visit(ctx.expr(0));
-                    if (types.get(ctx.expr(0)).equals("inteiro"))
-                        emit(OpCode.itos);
-                    else if (types.get(ctx.expr(0)).equals("real"))
-                        emit(OpCode.dtos);
-                    else if (types.get(ctx.expr(0)).equals("booleano"))
-                        emit(OpCode.btos);
-
-                    visit(ctx.expr(1));
-                    if (types.get(ctx.expr(1)).equals("inteiro"))
-                        emit(OpCode.itos);
-                    else if (types.get(ctx.expr(1)).equals("real"))
-                        emit(OpCode.dtos);
-                    else if (types.get(ctx.expr(1)).equals("booleano"))
-                        emit(OpCode.btos);
-
-                    emit(OpCode.sconcat);
-                } else if (tipoExpressao.equals("real")) {
-                    visit(ctx.expr(0));
-                    String tipo1 = types.get(ctx.expr(0));
-
-                    if (tipo1.equals("inteiro")) {
-                        emit(OpCode.itod);
-                    }
-
-                    visit(ctx.expr(1));
-                    String tipo2 = types.get(ctx.expr(1));
-
-                    if (tipo2.equals("inteiro")) {
-                        emit(OpCode.itod);
-                    }
-
-                    emit(OpCode.dadd);
-                } else if (tipoExpressao.equals("inteiro")) {
-                    visit(ctx.expr(0));
-                    visit(ctx.expr(1));
-                    emit(OpCode.iadd);
-                }
+    /**
+     * Emite o bytecode de impressao adequado ao tipo da expressao de uma estatistica.
+     *
+     * @param type Tipo da expressao.
+     */
+    private void emitPrint(TugaType type) {
+        switch (type) {
+            case INTEIRO:
+                emit(OpCode.iprint);
                 break;
-            case "-":
-                if (tipoExpressao.equals("real")) {
-                    visit(ctx.expr(0));
-                    String tipo1 = types.get(ctx.expr(0));
+            case REAL:
+                emit(OpCode.dprint);
+                break;
+            case BOOLEANO:
+                emit(OpCode.bprint);
+                break;
+            case STRING:
+                emit(OpCode.sprint);
+                break;
+            default:
+                break;
+        }
+    }
 
-                    if (tipo1.equals("inteiro")) {
-                        emit(OpCode.itod);
-                    }
+    /**
+     * Gera o codigo de uma expressao; as instrucoes ficam com a posicao do no mais interior
+     * que as gera.
+     *
+     * <p>A travessia usa uma pilha explicita (no, fase), sem recursao: a fase indica quantos
+     * operandos do no ja foram gerados. Uma cadeia 'a + b + c + ...' ou parenteses muito
+     * aninhados ocupam a pilha de trabalho, e nao a pilha de chamadas do Java.</p>
+     *
+     * @param root No da expressao.
+     */
+    private void gen(int root) {
+        int savedLine = line, savedColumn = column;
+        int base = workSize;
+        push(root, 0, -1);
+        while (workSize > base) {
+            workSize--;
+            int node = workNode[workSize];
+            line = ir.line(node);
+            column = ir.column(node);
+            genStep(node, workPhase[workSize], workLabel[workSize]);
+        }
+        line = savedLine;
+        column = savedColumn;
+    }
 
-                    visit(ctx.expr(1));
-                    String tipo2 = types.get(ctx.expr(1));
+    /**
+     * Acrescenta um passo a pilha de trabalho.
+     *
+     * @param node No a gerar.
+     * @param phase Numero de operandos do no ja gerados.
+     * @param label Etiqueta de curto-circuito de um 'e'/'ou' (-1 se nao existir).
+     */
+    private void push(int node, int phase, int label) {
+        if (workSize == workNode.length) {
+            workNode = Arrays.copyOf(workNode, workSize * 2);
+            workPhase = Arrays.copyOf(workPhase, workSize * 2);
+            workLabel = Arrays.copyOf(workLabel, workSize * 2);
+        }
+        workNode[workSize] = node;
+        workPhase[workSize] = phase;
+        workLabel[workSize] = label;
+        workSize++;
+    }
 
-                    if (tipo2.equals("inteiro")) {
-                        emit(OpCode.itod);
-                    }
+    /**
+     * Gera o operando seguinte de um no: o no volta a pilha na fase seguinte, por baixo do
+     * operando, e continua depois de este estar gerado.
+     */
+    private void genOperand(int node, int phase, int label, int operand) {
+        push(node, phase + 1, label);
+        push(operand, 0, -1);
+    }
 
-                    emit(OpCode.dsub);
-                } else if (tipoExpressao.equals("inteiro")) {
-                    visit(ctx.expr(0));
-                    visit(ctx.expr(1));
-                    emit(OpCode.isub);
-                }
+    private void genStep(int node, int phase, int label) {
+        int left = ir.left(node);
+        int right = ir.right(node);
+        switch (ir.op(node)) {
+            case TugaIR.INT:
+            case TugaIR.REAL:
+            case TugaIR.BOOL:
+            case TugaIR.STRING:
+                genLiteral(node);
+                break;
+            case TugaIR.NEG:
+                if (phase == 0)
+                    genOperand(node, phase, label, left);
+                else
+                    emit(ir.type(left) == TugaType.INTEIRO ? OpCode.iuminus : OpCode.duminus);
+                break;
+            case TugaIR.NOT:
+                if (phase == 0)
+                    genOperand(node, phase, label, left);
+                else
+                    emit(OpCode.not);
+                break;
+            case TugaIR.MUL:
+            case TugaIR.DIV:
+            case TugaIR.MOD:
+                genMulDivMod(node, phase, left, right);
+                break;
+            case TugaIR.ADD:
+            case TugaIR.SUB:
+                genAddSub(node, phase, left, right);
+                break;
+            case TugaIR.LT:
+            case TugaIR.GT:
+            case TugaIR.LE:
+            case TugaIR.GE:
+                genCompare(node, phase, left, right);
+                break;
+            case TugaIR.EQ:
+            case TugaIR.NE:
+                genEqNotEq(node, phase, left, right);
+                break;
+            case TugaIR.AND:
+                genLogical(node, phase, label, left, right, OpCode.and, OpCode.jumpf, OpCode.fconst);
+                break;
+            case TugaIR.OR:
+                genLogical(node, phase, label, left, right, OpCode.or, OpCode.jumpt, OpCode.tconst);
                 break;
         }
-
-        return null;
     }
 
     /**
-     * Visita expressoes de comparacao (<, <=, >, >=) e emite a instrucao adequada.
+     * Emite a instrucao que empilha o valor de um literal.
      *
-     * @param ctx Contexto da comparacao.
-     * @return null.
+     * @param node No do literal.
      */
-    @Override
-    public Void visitCompare(TugaParser.CompareContext ctx) {
-        String tipoEsq = types.get(ctx.expr(0));
-        String tipoDir = types.get(ctx.expr(1));
+    private void genLiteral(int node) {
+        if (ir.isFolded(node))
+            foldedExpressions++;
+        switch (ir.op(node)) {
+            case TugaIR.INT:
+                emit(OpCode.iconst, ir.intValue(node));
+                break;
+            case TugaIR.REAL:
+                emit(OpCode.dconst, addConstant(ir.doubleValue(node)));
+                break;
+            case TugaIR.BOOL:
+                emit(ir.boolValue(node) ? OpCode.tconst : OpCode.fconst);
+                break;
+            default:
+                // a pool de strings guarda as strings sem as aspas (ver dumpCode)
+                emit(OpCode.sconst, addConstant(ir.stringValue(node)));
+                break;
+        }
+    }
 
-        String ComparacaoT = (tipoEsq.equals("real") || tipoDir.equals("real")) ? "real" : "inteiro";
+    /**
+     * Gera expressoes de multiplicacao, divisao ou modulo.
+     */
+    private void genMulDivMod(int node, int phase, int left, int right) {
+        boolean real = ir.type(node) == TugaType.REAL;
 
-        if (ctx.op.getText().equals("<") || ctx.op.getText().equals("<=")) {
-            visit(ctx.expr(0));
-            if (tipoEsq.equals("inteiro") && ComparacaoT.equals("real")) {
+        if (phase == 0) {
+            genOperand(node, phase, -1, left);
+        } else if (phase == 1) {
+            if (real && ir.type(left) == TugaType.INTEIRO) {
                 emit(OpCode.itod);
             }
-            visit(ctx.expr(1));
-            if (tipoDir.equals("inteiro") && ComparacaoT.equals("real")) {
+            genOperand(node, phase, -1, right);
+        } else {
+            if (real && ir.type(right) == TugaType.INTEIRO) {
                 emit(OpCode.itod);
             }
-            if (ComparacaoT.equals("inteiro")) {
-                switch (ctx.op.getText()) {
-                    case "<":
-                        emit(OpCode.ilt);
-                        break;
-                    case "<=":
-                        emit(OpCode.ileq);
-                        break;
-                }
-            } else if (tipoDir.equals("real")) {
-                switch (ctx.op.getText()) {
-                    case "<":
-                        emit(OpCode.dlt);
-                        break;
-                    case "<=":
-                        emit(OpCode.dleq);
-                        break;
-                }
+
+            switch (ir.op(node)) {
+                case TugaIR.MUL:
+                    emit(real ? OpCode.dmult : OpCode.imult);
+                    break;
+                case TugaIR.DIV:
+                    emit(real ? OpCode.ddiv : OpCode.idiv);
+                    break;
+                default:
+                    emit(OpCode.imod);
+                    break;
             }
         }
+    }
+
+    /**
+     * Gera expressoes de adicao, subtracao ou concatenacao de strings.
+     */
+    private void genAddSub(int node, int phase, int left, int right) {
+        if (phase == 0) {
+            genOperand(node, phase, -1, left);
+            return;
+        }
+        int operand = phase == 1 ? left : right;
+        switch (ir.type(node)) {
+            case STRING:
+                emitToString(ir.type(operand));
+                break;
+            case REAL:
+                if (ir.type(operand) == TugaType.INTEIRO) {
+                    emit(OpCode.itod);
+                }
+                break;
+            default:
+                break;
+        }
+        if (phase == 1) {
+            genOperand(node, phase, -1, right);
+            return;
+        }
+
+        boolean add = ir.op(node) == TugaIR.ADD;
+        switch (ir.type(node)) {
+            case STRING:
+                emit(OpCode.sconcat);
+                break;
+            case REAL:
+                emit(add ? OpCode.dadd : OpCode.dsub);
+                break;
+            case INTEIRO:
+                emit(add ? OpCode.iadd : OpCode.isub);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Emite a conversao para string de um operando de uma concatenacao (nada se ja for string).
+     *
+     * @param type Tipo do operando.
+     */
+    private void emitToString(TugaType type) {
+        switch (type) {
+            case INTEIRO:
+                emit(OpCode.itos);
+                break;
+            case REAL:
+                emit(OpCode.dtos);
+                break;
+            case BOOLEANO:
+                emit(OpCode.btos);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gera expressoes de comparacao (<, <=, >, >=). Os operandos sao avaliados da esquerda
+     * para a direita; '>' e '>=' sao a negacao de '<=' e '<'.
+     */
+    private void genCompare(int node, int phase, int left, int right) {
+        TugaType tipoEsq = ir.type(left);
+        TugaType tipoDir = ir.type(right);
+
+        boolean inteiro = tipoEsq != TugaType.REAL && tipoDir != TugaType.REAL;
 
-        if (ctx.op.getText().equals(">") || ctx.op.getText().equals(">=")) {
-            visit(ctx.expr(0));
-            if (tipoEsq.equals("inteiro") && ComparacaoT.equals("real")) {
+        if (phase == 0) {
+            genOperand(node, phase, -1, left);
+            return;
+        }
+        if (phase == 1) {
+            if (tipoEsq == TugaType.INTEIRO && !inteiro) {
                 emit(OpCode.itod);
             }
-            visit(ctx.expr(1));
-            if (tipoDir.equals("inteiro") && ComparacaoT.equals("real")) {
+            genOperand(node, phase, -1, right);
+            return;
+        }
+        if (tipoDir == TugaType.INTEIRO && !inteiro) {
+            emit(OpCode.itod);
+        }
+
+        switch (ir.op(node)) {
+            case TugaIR.LT:
+                emit(inteiro ? OpCode.ilt : OpCode.dlt);
+                break;
+            case TugaIR.LE:
+                emit(inteiro ? OpCode.ileq : OpCode.dleq);
+                break;
+            case TugaIR.GT:
+                emit(inteiro ? OpCode.ileq : OpCode.dleq);
+                emit(OpCode.not);
+                break;
+            default:
+                emit(inteiro ? OpCode.ilt : OpCode.dlt);
+                emit(OpCode.not);
+                break;
+        }
+    }
+
+    /**
+     * Gera expressoes de igualdade ou diferenca.
+     */
+    private void genEqNotEq(int node, int phase, int left, int right) {
+        TugaType tipo1 = ir.type(left);
+        TugaType tipo2 = ir.type(right);
+
+        if (phase == 0) {
+            genOperand(node, phase, -1, left);
+            return;
+        }
+        if (phase == 1) {
+            if (tipo1 == TugaType.INTEIRO && tipo2 == TugaType.REAL) {
                 emit(OpCode.itod);
             }
-            if (ComparacaoT.equals("inteiro")) {
-                switch (ctx.op.getText()) {
-                    case ">":
-                        emit(OpCode.ilt);
-                        break;
-                    case ">=":
-                        emit(OpCode.ileq);
-                        break;
-                }
-            } else if (tipoDir.equals("real")) {
-                switch (ctx.op.getText()) {
-                    case ">":
-                        emit(OpCode.dlt);
-                        break;
-                    case ">=":
-                        emit(OpCode.dleq);
-                        break;
-                }
-            }
+            genOperand(node, phase, -1, right);
+            return;
+        }
+        if (tipo1 == TugaType.INTEIRO && tipo2 == TugaType.REAL) {
+            tipo1 = TugaType.REAL;
+        } else if (tipo1 == TugaType.REAL && tipo2 == TugaType.INTEIRO) {
+            emit(OpCode.itod);
         }
 
-        return null;
+        boolean igual = ir.op(node) == TugaIR.EQ;
+
+        // depois da conversao os dois operandos tem o mesmo tipo
+        switch (tipo1) {
+            case INTEIRO:
+                emit(igual ? OpCode.ieq : OpCode.ineq);
+                break;
+            case REAL:
+                emit(igual ? OpCode.deq : OpCode.dneq);
+                break;
+            case BOOLEANO:
+                emit(igual ? OpCode.beq : OpCode.bneq);
+                break;
+            case STRING:
+                emit(igual ? OpCode.seq : OpCode.sneq);
+                break;
+            default:
+                break;
+        }
     }
 
     /**
-     * Visita expressoes logicas (operador 'e') e emite a instrucao correspondente.
+     * Calcula, para cada no, se a avaliacao da expressao pode terminar num erro de execucao
+     * (divisao ou modulo por um valor que nao e uma constante diferente de zero). So as
+     * expressoes que nao falham podem ficar por avaliar num 'e'/'ou' com curto-circuito sem
+     * alterar o resultado. Os nos estao em pos-ordem, pelo que os operandos ja foram calculados.
      *
-     * @param ctx Contexto da operacao logica 'e'.
-     * @return null.
+     * @param ir Representacao intermedia do programa.
+     * @return Por no, true se a expressao pode dar um erro de execucao.
      */
-    @Override
-    public Void visitAnd(TugaParser.AndContext ctx) {
-        visit(ctx.expr(0));
-        visit(ctx.expr(1));
-        emit(OpCode.and);
-        return null;
+    private static boolean[] canFail(TugaIR ir) {
+        boolean[] fails = new boolean[ir.size()];
+        for (int node = 0; node < ir.size(); node++) {
+            byte op = ir.op(node);
+            if (ir.isLiteral(node))
+                continue;
+            boolean f = fails[ir.left(node)] || (op > TugaIR.NOT && fails[ir.right(node)]);
+            if (op == TugaIR.DIV || op == TugaIR.MOD) {
+                int divisor = ir.right(node);
+                boolean known = ir.constantsKnown() && ir.isLiteral(divisor);
+                if (!known || (ir.op(divisor) == TugaIR.INT ? ir.intValue(divisor) == 0
+                        : Math.abs(ir.doubleValue(divisor)) < 10e-9))
+                    f = true;
+            }
+            fails[node] = f;
+        }
+        return fails;
     }
 
     /**
-     * Visita expressoes logicas (operador 'ou') e emite a instrucao correspondente.
+     * Gera expressoes logicas ('e' e 'ou'). Com curto-circuito, o operando direito nao e
+     * avaliado quando o esquerdo decide o resultado: so quando este nao e constante (nao ha nada
+     * a poupar) e nao pode falhar.
      *
-     * @param ctx Contexto da operacao logica 'ou'.
-     * @return null.
+     * @param node No da expressao.
+     * @param phase Numero de operandos ja gerados.
+     * @param curto Etiqueta de curto-circuito criada depois do operando esquerdo (-1 sem
+     *              curto-circuito); a etiqueta do fim e a seguinte.
+     * @param left Operando esquerdo.
+     * @param right Operando direito.
+     * @param opc Instrucao sem curto-circuito (and ou or).
+     * @param jump Salto quando o esquerdo decide o resultado (jumpf para 'e', jumpt para 'ou').
+     * @param result Valor nesse caso (fconst ou tconst).
      */
-    @Override
-    public Void visitOr(TugaParser.OrContext ctx) {
-        visit(ctx.expr(0));
-        visit(ctx.expr(1));
-        emit(OpCode.or);
-        return null;
+    private void genLogical(int node, int phase, int curto, int left, int right, OpCode opc, OpCode jump, OpCode result) {
+        if (phase == 0) {
+            genOperand(node, phase, -1, left);
+            return;
+        }
+        if (phase == 1) {
+            if ((ir.constantsKnown() && ir.isLiteral(right)) || canFail[right]) {
+                genOperand(node, phase, -1, right);
+                return;
+            }
+            curto = newLabel();
+            newLabel();
+            emitJump(jump, curto);
+            genOperand(node, phase, curto, right);
+            return;
+        }
+        if (curto < 0) {
+            emit(opc);
+            return;
+        }
+        int fim = curto + 1;
+        emitJump(OpCode.jump, fim);
+        placeLabel(curto);
+        emit(result);
+        placeLabel(fim);
     }
 
     /**
-     * Visita expressoes de igualdade ou diferenca e emite a instrucao correspondente.
+     * Aplica um otimizador peephole ao codigo gerado.
      *
-     * @param ctx Contexto da comparacao de igualdade ou diferenca.
-     * @return null.
+     * @param optimizer Otimizador a aplicar.
      */
-    @Override
-    public Void visitEqNotEq(TugaParser.EqNotEqContext ctx) {
-        String tipo1 = types.get(ctx.expr(0));
-        String tipo2 = types.get(ctx.expr(1));
+    public void optimize(PeepholeOptimizer optimizer) {
+        int[] newIndex = optimizer.optimize(code, new PeepholeOptimizer.ConstantPool() {
+            @Override
+            public double getDouble(int index) {
+                return doublePool.get(index);
+            }
 
-        String op = ctx.op.getText();
+            @Override
+            public String getString(int index) {
+                return stringPool.get(index);
+            }
 
-        if (tipo1.equals("inteiro") && tipo2.equals("real")) {
-            visit(ctx.expr(0));
-            emit(OpCode.itod);
-            visit(ctx.expr(1));
-            tipo1 = "real";
-        } else if (tipo1.equals("real") && tipo2.equals("inteiro")) {
-            visit(ctx.expr(0));
-            visit(ctx.expr(1));
-            emit(OpCode.itod);
-            tipo2 = "real";
-        } else {
-            visit(ctx.expr(0));
-            visit(ctx.expr(1));
-        }
+            @Override
+            public int addDouble(double value) {
+                return addConstant(value);
+            }
+
+            @Override
+            public int addString(String value) {
+                return addConstant(value);
+            }
+        });
+
+        remapLines(newIndex);
+    }
 
-        if (tipo1.equals("inteiro") && tipo2.equals("inteiro")) {
-            emit(op.equals("igual") ? OpCode.ieq : OpCode.ineq);
-        } else if (tipo1.equals("real") && tipo2.equals("real")) {
-            emit(op.equals("igual") ? OpCode.deq : OpCode.dneq);
-        } else if (tipo1.equals("booleano") && tipo2.equals("booleano")) {
-            emit(op.equals("igual") ? OpCode.beq : OpCode.bneq);
-        } else if (tipo1.equals("string") && tipo2.equals("string")) {
-            emit(op.equals("igual") ? OpCode.seq : OpCode.sneq);
+    /**
+     * Passa a tabela de linhas para os indices do codigo depois de retiradas instrucoes; as
+     * entradas que ficam no mesmo indice sao substituidas pela ultima.
+     *
+     * @param newIndex Novo indice de cada instrucao (o da instrucao seguinte, se foi retirada).
+     */
+    private void remapLines(int[] newIndex) {
+        ArrayList<int[]> remapped = new ArrayList<>(lineTable.size());
+        for (int[] entry : lineTable) {
+            int index = newIndex[entry[0]];
+            if (index >= code.size())
+                break;
+            if (!remapped.isEmpty() && remapped.get(remapped.size() - 1)[0] == index)
+                remapped.remove(remapped.size() - 1);
+            int[] last = remapped.isEmpty() ? null : remapped.get(remapped.size() - 1);
+            if (last == null || last[1] != entry[1] || last[2] != entry[2])
+                remapped.add(new int[] { index, entry[1], entry[2] });
         }
+        lineTable.clear();
+        lineTable.addAll(remapped);
+    }
 
-        return null;
+    /**
+     * Cria uma nova etiqueta, ainda por colocar.
+     *
+     * @return Identificador da etiqueta.
+     */
+    public int newLabel() {
+        labels.add(-1);
+        labelDepths.add(-1);
+        return labels.size() - 1;
+    }
+
+    /**
+     * Coloca uma etiqueta na posicao atual do codigo e corrige os saltos ja emitidos para ela.
+     *
+     * @param label Identificador da etiqueta.
+     */
+    public void placeLabel(int label) {
+        labels.set(label, code.size());
+        // depois de um salto incondicional, a profundidade e a dos saltos para esta etiqueta
+        if (labelDepths.get(label) >= 0)
+            stackDepth = labelDepths.get(label);
+        ArrayList<Instruction1Arg> jumps = pendingJumps.remove(label);
+        if (jumps != null)
+            for (Instruction1Arg jump : jumps)
+                jump.setArg(code.size());
+    }
+
+    /**
+     * Emite um salto para uma etiqueta; se esta ainda nao foi colocada, o destino e corrigido
+     * quando o for.
+     *
+     * @param opc Opcode do salto (jump, jumpf ou jumpt).
+     * @param label Identificador da etiqueta de destino.
+     */
+    public void emitJump(OpCode opc, int label) {
+        Instruction1Arg jump = new Instruction1Arg(opc, labels.get(label));
+        add(jump);
+        labelDepths.set(label, stackDepth);
+        if (labels.get(label) < 0)
+            pendingJumps.computeIfAbsent(label, l -> new ArrayList<>()).add(jump);
     }
 
     /**
@@ -475,7 +839,7 @@ public class CodeGen extends TugaBaseVisitor<Void> {
      * @param opc Opcode da instrucao.
      */
     public void emit(OpCode opc) {
-        code.add(new Instruction(opc));
+        add(new Instruction(opc));
     }
 
     /**
@@ -485,7 +849,27 @@ public class CodeGen extends TugaBaseVisitor<Void> {
      * @param val Valor do argumento.
      */
     public void emit(OpCode opc, int val) {
-        code.add(new Instruction1Arg(opc, val));
+        add(new Instruction1Arg(opc, val));
+    }
+
+    /**
+     * Acrescenta uma instrucao ao codigo, atualizando a profundidade da pilha com o seu efeito
+     * e a tabela de linhas com a posicao atual.
+     *
+     * @param inst Instrucao a acrescentar (null numa posicao reservada).
+     */
+    private void add(Instruction inst) {
+        if (debugInfo && line > 0) {
+            int[] last = lineTable.isEmpty() ? null : lineTable.get(lineTable.size() - 1);
+            if (last == null || last[1] != line || last[2] != column)
+                lineTable.add(new int[] { code.size(), line, column });
+        }
+        code.add(inst);
+        if (inst == null)
+            // posicao reservada (ver reserve)
+            return;
+        stackDepth += inst.getOpCode().stackEffect();
+        maxStackDepth = Math.max(maxStackDepth, stackDepth);
     }
 
     /**
@@ -493,8 +877,13 @@ public class CodeGen extends TugaBaseVisitor<Void> {
      */
     public void dumpCode() {
         System.out.println("*** Constant pool ***");
-        for (int i = 0; i < constantPool.size(); i++) {
-            System.out.println(i + ": " + constantPool.get(i));
+        System.out.println("doubles:");
+        for (int i = 0; i < doublePool.size(); i++) {
+            System.out.println(i + ": " + doublePool.get(i));
+        }
+        System.out.println("strings:");
+        for (int i = 0; i < stringPool.size(); i++) {
+            System.out.println(i + ": \"" + stringPool.get(i) + "\"");
         }
 
         System.out.println("*** Instructions ***");
@@ -503,32 +892,155 @@ public class CodeGen extends TugaBaseVisitor<Void> {
     }
 
     /**
-     * Guarda os bytecodes gerados num ficheiro.
+     * Serializa os bytecodes gerados para memoria, no formato v2 descrito em {@link BytecodeFormat}.
+     * O tamanho de cada seccao e calculado antes, pelo que tudo e escrito num unico buffer, sem
+     * copias intermedias; as strings sao codificadas em bloco.
+     * O resultado pode ser passado diretamente ao construtor {@code VM(ByteBuffer, Engine)},
+     * sem passar por um ficheiro.
+     *
+     * @return Buffer com os bytecodes, pronto a ler (posicao 0).
+     */
+    public ByteBuffer toBytecodes() {
+        int doublesSize = 4 + 8 * doublePool.size();
+
+        byte[][] strings = new byte[stringPool.size()][];
+        int stringsSize = 4;
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = BytecodeFormat.utf8(stringPool.get(i));
+            stringsSize += 4 + strings[i].length;
+        }
+
+        // deslocamento em bytes de cada instrucao, para os destinos dos saltos
+        int[] offsets = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); i++)
+            offsets[i + 1] = offsets[i] + 1 + 4 * code.get(i).nArgs();
+        int codeSize = 4 + offsets[code.size()];
+
+        byte[][] meta = new byte[2 * metadata.size()][];
+        int metaSize = 4;
+        int k = 0;
+        for (Map.Entry<String, String> e : metadata.entrySet()) {
+            meta[k] = BytecodeFormat.utf8(e.getKey());
+            meta[k + 1] = BytecodeFormat.utf8(e.getValue());
+            metaSize += 8 + meta[k].length + meta[k + 1].length;
+            k += 2;
+        }
+
+        int stackSize = 4;
+        int linesSize = debugInfo ? 4 + 12 * lineTable.size() : 0;
+
+        int numSections = (metadata.isEmpty() ? 5 : 6) - (debugInfo ? 0 : 1);
+        int offset = BytecodeFormat.HEADER_SIZE + numSections * BytecodeFormat.SECTION_ENTRY_SIZE;
+        ByteBuffer out = ByteBuffer.allocate(offset + doublesSize + stringsSize + codeSize + stackSize
+                + linesSize + (metadata.isEmpty() ? 0 : metaSize));
+
+        // cabecalho e tabela de seccoes
+        out.putInt(BytecodeFormat.MAGIC);
+        out.putShort((short) BytecodeFormat.VERSION);
+        out.putShort((short) numSections);
+        out.putInt(BytecodeFormat.SECTION_DOUBLES).putInt(offset).putInt(doublesSize);
+        offset += doublesSize;
+        out.putInt(BytecodeFormat.SECTION_STRINGS).putInt(offset).putInt(stringsSize);
+        offset += stringsSize;
+        out.putInt(BytecodeFormat.SECTION_CODE).putInt(offset).putInt(codeSize);
+        offset += codeSize;
+        out.putInt(BytecodeFormat.SECTION_STACK).putInt(offset).putInt(stackSize);
+        offset += stackSize;
+        if (debugInfo)
+            out.putInt(BytecodeFormat.SECTION_LINES).putInt(offset).putInt(linesSize);
+        offset += linesSize;
+        if (!metadata.isEmpty())
+            out.putInt(BytecodeFormat.SECTION_METADATA).putInt(offset).putInt(metaSize);
+
+        out.putInt(doublePool.size());
+        for (double d : doublePool)
+            out.putLong(Double.doubleToLongBits(d));
+
+        out.putInt(strings.length);
+        for (byte[] str : strings)
+            BytecodeFormat.putString(out, str);
+
+        out.putInt(code.size());
+        for (Instruction inst : code) {
+            if (inst.getOpCode().isJump())
+                new Instruction1Arg(inst.getOpCode(), offsets[((Instruction1Arg) inst).getArg()]).writeTo(out);
+            else
+                inst.writeTo(out);
+        }
+
+        out.putInt(maxStackDepth);
+
+        if (debugInfo) {
+            out.putInt(lineTable.size());
+            for (int[] entry : lineTable)
+                out.putInt(entry[0]).putInt(entry[1]).putInt(entry[2]);
+        }
+
+        if (!metadata.isEmpty()) {
+            out.putInt(metadata.size());
+            for (byte[] m : meta)
+                BytecodeFormat.putString(out, m);
+        }
+        return out.flip();
+    }
+
+    /**
+     * Escreve as instrucoes geradas desde a ultima escrita e a sua tabela de linhas, e esquece-as:
+     * o codigo guardado em memoria passa a ser so o de uma estatistica. Tem de ser chamado entre
+     * estatisticas, quando nenhum salto espera por uma etiqueta; os indices das etiquetas e das
+     * instrucoes recomecam do zero.
+     *
+     * @param out Ficheiro de bytecodes a ser escrito.
+     * @throws IOException Se ocorrer um erro de entrada/saida.
+     */
+    public void flush(BytecodeWriter out) throws IOException {
+        int baseIndex = out.getInstructionCount();
+        int baseOffset = out.getCodeBytes();
+
+        // deslocamento em bytes de cada instrucao, para os destinos dos saltos
+        int[] offsets = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); i++)
+            offsets[i + 1] = offsets[i] + 1 + 4 * code.get(i).nArgs();
+
+        for (int[] entry : lineTable)
+            out.addLine(baseIndex + entry[0], entry[1], entry[2]);
+        for (Instruction inst : code) {
+            if (inst.getOpCode().isJump())
+                out.write(new Instruction1Arg(inst.getOpCode(), baseOffset + offsets[((Instruction1Arg) inst).getArg()]));
+            else
+                out.write(inst);
+        }
+
+        code.clear();
+        lineTable.clear();
+        labels.clear();
+        labelDepths.clear();
+    }
+
+    /**
+     * Escreve as ultimas instrucoes e termina o ficheiro de bytecodes com as pools de constantes,
+     * a profundidade maxima da pilha e os metadados.
+     *
+     * @param out Ficheiro de bytecodes a ser escrito.
+     * @throws IOException Se ocorrer um erro de entrada/saida.
+     */
+    public void finish(BytecodeWriter out) throws IOException {
+        flush(out);
+        out.finish(doublePool, stringPool, maxStackDepth, metadata);
+    }
+
+    /**
+     * Guarda os bytecodes gerados num ficheiro, com uma unica escrita do buffer completo.
      *
      * @param filename Nome do ficheiro onde os bytecodes serao guardados.
      * @throws IOException Se ocorrer um erro de entrada/saida.
      */
     public void saveBytecodes(String filename) throws IOException {
-        try (DataOutputStream dout = new DataOutputStream(new FileOutputStream(filename))) {
-            dout.writeInt(constantPool.size());
-            for (Object constant : constantPool) {
-                if (constant instanceof Double) {
-                    dout.writeByte(1);  // Tipo: double
-                    dout.writeLong(Double.doubleToLongBits((Double) constant));
-                } else if (constant instanceof String str) {
-                    dout.writeByte(3);  // Tipo: string
-                    str = removeAspas(str);
-                    dout.writeInt(str.length());
-                    for (int i = 0; i < str.length(); i++) {
-                        dout.writeChar(str.charAt(i));
-                    }
-                }
-            }
-
-            for (Instruction inst : code)
-                inst.writeTo(dout);
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        ByteBuffer bytecodes = toBytecodes();
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytecodes.hasRemaining())
+                channel.write(bytecodes);
         }
     }
 }
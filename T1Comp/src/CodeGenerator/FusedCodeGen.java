@@ -0,0 +1,625 @@
+package CodeGenerator;
+
+import Tuga.*;
+import TypeChecker.TugaType;
+import TypeChecker.TugaTypeChecker;
+import Optimizer.ConstantFolder;
+import VM.OpCode;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+import java.util.Arrays;
+
+/**
+ * Verificacao de tipos, avaliacao das constantes e geracao de codigo numa so travessia da arvore,
+ * em alternativa a TugaTypeChecker, ConstantFolder e CodeGen em passos separados.
+ *
+ * <p>Cada expressao e visitada depois das suas subexpressoes: o tipo e o valor sao calculados
+ * pelos metodos exit* do TugaTypeChecker e do ConstantFolder e o codigo e emitido no CodeGen.
+ * Parte do codigo depende do que esta a direita e e corrigido depois, como no PrattCodeGen:
+ * depois do operando esquerdo de uma operacao binaria e reservada uma posicao, preenchida depois
+ * de visitado o operando direito (itod, itos, o salto de curto-circuito de um 'e'/'ou') ou
+ * retirada no fim (CodeGen.compact).</p>
+ *
+ * <p>O codigo de uma expressao com valor conhecido e substituido por esse valor. Como so as
+ * expressoes cujos operandos tem todos valor conhecido o tem (ver ConstantFolder), as constantes
+ * ficam por emitir ate ser emitida uma instrucao de uma expressao sem valor conhecido, e as de uma
+ * expressao substituida pelo seu valor nunca chegam ao CodeGen.</p>
+ *
+ * <p>As instrucoes, a sua ordem e as suas posicoes sao as da geracao em passos separados
+ * (CodeGen.generate), pelo que os bytecodes sao iguais. Depois de um erro de tipo a verificacao
+ * continua, para reportar todos os erros, mas nao e gerado mais codigo e o que ja foi gerado e
+ * descartado (CodeGen.truncate), porque o programa nao e executado.</p>
+ *
+ * <p>A arvore e percorrida pelo IterativeParseTreeWalker, com uma pilha explicita e sem recursao
+ * por nivel da arvore, como na verificacao de tipos e na avaliacao das constantes em passos
+ * separados: uma cadeia 'a + b + c + ...' ou parenteses muito aninhados nao esgotam a pilha de
+ * chamadas do Java. O que cada expressao precisa entre a entrada e a saida (o inicio do seu
+ * codigo, a posicao reservada e se os operandos podem falhar) fica em pilhas proprias.</p>
+ */
+public class FusedCodeGen extends TugaBaseListener {
+    // Tipos de entrada: constante, posicao reservada (ainda sem instrucao), posicao preenchida
+    // com uma instrucao, com um salto ou que fica vazia
+    private static final byte CONSTANT = 0, SLOT = 1, INSTR = 2, JUMP = 3, NONE = 4;
+
+    private final TugaTypeChecker checker;
+    private final ConstantFolder folder;
+    private final ParseTreeProperty<Object> values;
+    private final CodeGen codeGen;
+
+    // Constantes e posicoes reservadas das expressoes em curso; as entradas a partir de
+    // 'emitted' ainda nao foram emitidas no CodeGen. value e a constante ou o opcode da
+    // instrucao; index e a etiqueta de um salto ou, depois de emitida, o indice da posicao
+    // reservada no CodeGen
+    private byte[] kind = new byte[64];
+    private Object[] value = new Object[64];
+    private int[] index = new int[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private boolean[] folded = new boolean[64];
+    private int size = 0;
+    private int emitted = 0;
+
+    // Pilhas da travessia: por expressao composta em curso, o numero de entradas no seu inicio
+    // e, numa operacao binaria, a seguir, a entrada da posicao reservada; por expressao
+    // terminada que ainda e operando de uma expressao em curso, se pode dar um erro de execucao
+    // (ver CodeGen.canFail)
+    private int[] marks = new int[64];
+    private int numMarks = 0;
+    private boolean[] fails = new boolean[64];
+    private int numFails = 0;
+
+    // Estado do CodeGen no inicio do programa, para o descartar se houver erros (ver truncate)
+    private int progCodeSize, progDoubles, progStrings, progFolded;
+
+    /**
+     * Construtor do passo combinado.
+     *
+     * @param checker Verificador de tipos (reporta os erros e anota os tipos).
+     * @param folder Avaliador das constantes, ou null se as constantes nao sao avaliadas.
+     * @param codeGen Gerador onde e emitido o codigo.
+     */
+    public FusedCodeGen(TugaTypeChecker checker, ConstantFolder folder, CodeGen codeGen) {
+        this.checker = checker;
+        this.folder = folder;
+        this.values = folder == null ? null : folder.getValues();
+        this.codeGen = codeGen;
+    }
+
+    /**
+     * Acrescenta uma entrada, com a posicao do inicio do no.
+     */
+    private void push(byte entryKind, Object entryValue, ParserRuleContext at) {
+        if (size == kind.length) {
+            int n = size * 2;
+            kind = Arrays.copyOf(kind, n);
+            value = Arrays.copyOf(value, n);
+            index = Arrays.copyOf(index, n);
+            lines = Arrays.copyOf(lines, n);
+            columns = Arrays.copyOf(columns, n);
+            folded = Arrays.copyOf(folded, n);
+        }
+        kind[size] = entryKind;
+        value[size] = entryValue;
+        lines[size] = at.getStart().getLine();
+        columns[size] = at.getStart().getCharPositionInLine() + 1;
+        folded[size] = false;
+        size++;
+    }
+
+    /**
+     * Emite no CodeGen as entradas por emitir; uma posicao que ainda nao tem instrucao fica
+     * reservada no CodeGen.
+     */
+    private void flush() {
+        for (int i = emitted; i < size; i++) {
+            codeGen.setPosition(lines[i], columns[i]);
+            switch (kind[i]) {
+                case CONSTANT -> {
+                    if (folded[i])
+                        codeGen.countFolded();
+                    emitConstant(value[i]);
+                }
+                case SLOT -> index[i] = codeGen.reserve();
+                case INSTR -> codeGen.emit((OpCode) value[i]);
+                case JUMP -> codeGen.emitJump((OpCode) value[i], index[i]);
+                default -> { }
+            }
+        }
+        emitted = size;
+    }
+
+    /**
+     * Emite uma instrucao de uma expressao, depois das entradas por emitir.
+     */
+    private void emit(ParserRuleContext ctx, OpCode opc) {
+        if (emitted < size)
+            flush();
+        codeGen.setPosition(ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine() + 1);
+        codeGen.emit(opc);
+    }
+
+    /**
+     * Emite a instrucao que empilha um valor constante.
+     */
+    private void emitConstant(Object constant) {
+        if (constant instanceof Integer i)
+            codeGen.emit(OpCode.iconst, i);
+        else if (constant instanceof Double d)
+            codeGen.emit(OpCode.dconst, codeGen.addConstant(d));
+        else if (constant instanceof Boolean b)
+            codeGen.emit(b ? OpCode.tconst : OpCode.fconst);
+        else
+            codeGen.emit(OpCode.sconst, codeGen.addConstant((String) constant));
+    }
+
+    /**
+     * Codigo de um literal com o valor calculado pelo ConstantFolder, que fica por emitir.
+     *
+     * @return true se o literal tem valor calculado; senao, o literal tem de ser emitido.
+     */
+    private boolean literal(TugaParser.ExprContext ctx) {
+        pushFails(false);
+        Object constant = values == null ? null : values.get(ctx);
+        if (constant == null)
+            return false;
+        push(CONSTANT, constant, ctx);
+        return true;
+    }
+
+    /**
+     * Emite um literal sem valor calculado (sem avaliacao das constantes).
+     */
+    private void emitLiteral(TugaParser.ExprContext ctx, Object literal) {
+        if (emitted < size)
+            flush();
+        codeGen.setPosition(ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine() + 1);
+        emitConstant(literal);
+    }
+
+    /**
+     * Se uma expressao composta tem valor conhecido, substitui o seu codigo, desde a entrada
+     * mark (e ainda todo por emitir, porque os operandos tambem tem valor conhecido), pela
+     * constante, como a conversao para a representacao intermedia (Lowering).
+     *
+     * @param ctx Expressao.
+     * @param mark Numero de entradas antes da expressao.
+     * @return true se a expressao foi substituida pelo seu valor (e nao pode falhar).
+     */
+    private boolean fold(TugaParser.ExprContext ctx, int mark) {
+        Object constant = values == null ? null : values.get(ctx);
+        if (constant == null)
+            return false;
+        size = mark;
+        push(CONSTANT, constant, ctx);
+        folded[size - 1] = true;
+        pushFails(false);
+        return true;
+    }
+
+    /**
+     * Termina o codigo de uma expressao composta sem valor conhecido, ja todo emitido: as suas
+     * entradas deixam de ser precisas.
+     *
+     * @param mark Numero de entradas antes da expressao.
+     * @param canFail Se a expressao pode dar um erro de execucao.
+     */
+    private void done(int mark, boolean canFail) {
+        size = mark;
+        emitted = mark;
+        pushFails(canFail);
+    }
+
+    private void pushMark(int mark) {
+        if (numMarks == marks.length)
+            marks = Arrays.copyOf(marks, numMarks * 2);
+        marks[numMarks++] = mark;
+    }
+
+    private int popMark() {
+        return marks[--numMarks];
+    }
+
+    private void pushFails(boolean canFail) {
+        if (numFails == fails.length)
+            fails = Arrays.copyOf(fails, numFails * 2);
+        fails[numFails++] = canFail;
+    }
+
+    private boolean popFails() {
+        return fails[--numFails];
+    }
+
+    /**
+     * Reserva a posicao depois do operando esquerdo de uma operacao binaria; fica por emitir se
+     * o operando esquerdo ainda nao foi emitido.
+     *
+     * @return Entrada da posicao.
+     */
+    private int reserve(ParserRuleContext ctx) {
+        boolean pending = emitted < size;
+        push(SLOT, null, ctx);
+        if (!pending) {
+            codeGen.setPosition(lines[size - 1], columns[size - 1]);
+            index[size - 1] = codeGen.reserve();
+            emitted = size;
+        }
+        return size - 1;
+    }
+
+    /**
+     * Preenche a posicao reservada depois do operando esquerdo.
+     *
+     * @param slot Entrada da posicao (ver reserve).
+     * @param opc Instrucao, ou null se a posicao fica vazia.
+     */
+    private void fill(int slot, OpCode opc) {
+        if (slot < emitted) {
+            if (opc != null)
+                codeGen.fill(index[slot], opc);
+        } else {
+            kind[slot] = opc != null ? INSTR : NONE;
+            value[slot] = opc;
+        }
+    }
+
+    /**
+     * Preenche a posicao reservada depois do operando esquerdo com um salto.
+     *
+     * @param slot Entrada da posicao (ver reserve).
+     * @param jump Opcode do salto.
+     * @param label Etiqueta de destino, ainda por colocar.
+     */
+    private void fillJump(int slot, OpCode jump, int label) {
+        if (slot < emitted) {
+            codeGen.fillJump(index[slot], jump, label);
+        } else {
+            kind[slot] = JUMP;
+            value[slot] = jump;
+            index[slot] = label;
+        }
+    }
+
+    @Override
+    public void enterProg(TugaParser.ProgContext ctx) {
+        progCodeSize = codeGen.getCodeSize();
+        progDoubles = codeGen.getDoublePoolSize();
+        progStrings = codeGen.getStringPoolSize();
+        progFolded = codeGen.getFoldedExpressions();
+    }
+
+    @Override
+    public void exitProg(TugaParser.ProgContext ctx) {
+        if (checker.hasErrors()) {
+            codeGen.truncate(progCodeSize, progDoubles, progStrings, progFolded);
+            size = emitted = numMarks = numFails = 0;
+            return;
+        }
+        emit(ctx, OpCode.halt);
+        codeGen.compact();
+    }
+
+    /**
+     * Guarda o inicio de cada expressao composta e, antes do operando direito de uma operacao
+     * binaria, reserva a posicao depois do esquerdo. Depois de um erro de tipo, as pilhas da
+     * travessia deixam de ser usadas.
+     */
+    @Override
+    public void enterEveryRule(ParserRuleContext ctx) {
+        if (!(ctx instanceof TugaParser.ExprContext) || checker.hasErrors())
+            return;
+        // operando direito de uma operacao binaria (expr op expr); o terceiro filho de '(' expr ')'
+        // e de 'escreve' expr ';' nao e uma expressao
+        ParserRuleContext parent = ctx.getParent();
+        if (parent.getChildCount() == 3 && parent.getChild(2) == ctx)
+            pushMark(reserve(parent));
+        // os literais tem um so filho e nao precisam do inicio
+        if (ctx.getChildCount() > 1)
+            pushMark(size);
+    }
+
+    @Override
+    public void exitStat(TugaParser.StatContext ctx) {
+        if (checker.hasErrors())
+            return;
+        popFails();
+
+        switch (ctx.expr().type) {
+            case INTEIRO -> emit(ctx, OpCode.iprint);
+            case REAL -> emit(ctx, OpCode.dprint);
+            case BOOLEANO -> emit(ctx, OpCode.bprint);
+            case STRING -> emit(ctx, OpCode.sprint);
+            default -> { }
+        }
+        size = 0;
+        emitted = 0;
+    }
+
+    @Override
+    public void exitInt(TugaParser.IntContext ctx) {
+        checker.exitInt(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitInt(ctx);
+        if (!literal(ctx))
+            emitLiteral(ctx, Integer.parseInt(ctx.INT().getText()));
+    }
+
+    @Override
+    public void exitReal(TugaParser.RealContext ctx) {
+        checker.exitReal(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitReal(ctx);
+        if (!literal(ctx))
+            emitLiteral(ctx, Double.parseDouble(ctx.getText()));
+    }
+
+    @Override
+    public void exitString(TugaParser.StringContext ctx) {
+        checker.exitString(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitString(ctx);
+        if (!literal(ctx)) {
+            String text = ctx.getText();
+            emitLiteral(ctx, text.substring(1, text.length() - 1));
+        }
+    }
+
+    @Override
+    public void exitBool(TugaParser.BoolContext ctx) {
+        checker.exitBool(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitBool(ctx);
+        if (!literal(ctx))
+            emitLiteral(ctx, ctx.BOOL().getText().equals("verdadeiro"));
+    }
+
+    @Override
+    public void exitParens(TugaParser.ParensContext ctx) {
+        checker.exitParens(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitParens(ctx);
+        boolean canFail = popFails();
+        int mark = popMark();
+        if (!fold(ctx, mark))
+            done(mark, canFail);
+    }
+
+    @Override
+    public void exitUminus(TugaParser.UminusContext ctx) {
+        checker.exitUminus(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitUminus(ctx);
+        boolean canFail = popFails();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        emit(ctx, ctx.expr().type == TugaType.INTEIRO ? OpCode.iuminus : OpCode.duminus);
+        done(mark, canFail);
+    }
+
+    @Override
+    public void exitNot(TugaParser.NotContext ctx) {
+        checker.exitNot(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitNot(ctx);
+        boolean canFail = popFails();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        emit(ctx, OpCode.not);
+        done(mark, canFail);
+    }
+
+    @Override
+    public void exitMulDivMod(TugaParser.MulDivModContext ctx) {
+        checker.exitMulDivMod(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitMulDivMod(ctx);
+        boolean canFail = popFails() | popFails();
+        int slot = popMark();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        boolean real = ctx.type == TugaType.REAL;
+        fill(slot, real && ctx.expr(0).type == TugaType.INTEIRO ? OpCode.itod : null);
+        if (real && ctx.expr(1).type == TugaType.INTEIRO)
+            emit(ctx, OpCode.itod);
+
+        switch (ctx.op.getType()) {
+            case TugaParser.MUL -> emit(ctx, real ? OpCode.dmult : OpCode.imult);
+            case TugaParser.DIV -> emit(ctx, real ? OpCode.ddiv : OpCode.idiv);
+            case TugaParser.MOD -> emit(ctx, OpCode.imod);
+        }
+
+        // divisao ou modulo por um valor que nao e uma constante diferente de zero
+        if (ctx.op.getType() != TugaParser.MUL) {
+            Object divisor = values == null ? null : values.get(ctx.expr(1));
+            if (divisor instanceof Integer i ? i == 0
+                    : !(divisor instanceof Double d) || Math.abs(d) < 10e-9)
+                canFail = true;
+        }
+        done(mark, canFail);
+    }
+
+    @Override
+    public void exitAddSub(TugaParser.AddSubContext ctx) {
+        checker.exitAddSub(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitAddSub(ctx);
+        boolean canFail = popFails() | popFails();
+        int slot = popMark();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        boolean add = ctx.op.getType() == TugaParser.ADD;
+        if (ctx.type == TugaType.STRING) {
+            fill(slot, toStringOp(ctx.expr(0).type));
+            OpCode conversion = toStringOp(ctx.expr(1).type);
+            if (conversion != null)
+                emit(ctx, conversion);
+            emit(ctx, OpCode.sconcat);
+        } else if (ctx.type == TugaType.REAL) {
+            fill(slot, ctx.expr(0).type == TugaType.INTEIRO ? OpCode.itod : null);
+            if (ctx.expr(1).type == TugaType.INTEIRO)
+                emit(ctx, OpCode.itod);
+            emit(ctx, add ? OpCode.dadd : OpCode.dsub);
+        } else {
+            fill(slot, null);
+            emit(ctx, add ? OpCode.iadd : OpCode.isub);
+        }
+        done(mark, canFail);
+    }
+
+    private static OpCode toStringOp(TugaType type) {
+        return switch (type) {
+            case INTEIRO -> OpCode.itos;
+            case REAL -> OpCode.dtos;
+            case BOOLEANO -> OpCode.btos;
+            default -> null;
+        };
+    }
+
+    @Override
+    public void exitCompare(TugaParser.CompareContext ctx) {
+        checker.exitCompare(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitCompare(ctx);
+        boolean canFail = popFails() | popFails();
+        int slot = popMark();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        TugaType tipoEsq = ctx.expr(0).type;
+        TugaType tipoDir = ctx.expr(1).type;
+        boolean inteiro = tipoEsq != TugaType.REAL && tipoDir != TugaType.REAL;
+
+        fill(slot, tipoEsq == TugaType.INTEIRO && !inteiro ? OpCode.itod : null);
+        if (tipoDir == TugaType.INTEIRO && !inteiro)
+            emit(ctx, OpCode.itod);
+
+        switch (ctx.op.getType()) {
+            case TugaParser.LT -> emit(ctx, inteiro ? OpCode.ilt : OpCode.dlt);
+            case TugaParser.LE -> emit(ctx, inteiro ? OpCode.ileq : OpCode.dleq);
+            case TugaParser.GT -> {
+                emit(ctx, inteiro ? OpCode.ileq : OpCode.dleq);
+                emit(ctx, OpCode.not);
+            }
+            case TugaParser.GE -> {
+                emit(ctx, inteiro ? OpCode.ilt : OpCode.dlt);
+                emit(ctx, OpCode.not);
+            }
+        }
+        done(mark, canFail);
+    }
+
+    @Override
+    public void exitEqNotEq(TugaParser.EqNotEqContext ctx) {
+        checker.exitEqNotEq(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitEqNotEq(ctx);
+        boolean canFail = popFails() | popFails();
+        int slot = popMark();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        TugaType tipo1 = ctx.expr(0).type;
+        TugaType tipo2 = ctx.expr(1).type;
+        boolean igual = ctx.op.getType() == TugaParser.EQ;
+
+        if (tipo1 == TugaType.INTEIRO && tipo2 == TugaType.REAL) {
+            fill(slot, OpCode.itod);
+            tipo1 = TugaType.REAL;
+        } else {
+            fill(slot, null);
+        }
+        if (tipo1 == TugaType.REAL && tipo2 == TugaType.INTEIRO)
+            emit(ctx, OpCode.itod);
+
+        switch (tipo1) {
+            case INTEIRO -> emit(ctx, igual ? OpCode.ieq : OpCode.ineq);
+            case REAL -> emit(ctx, igual ? OpCode.deq : OpCode.dneq);
+            case BOOLEANO -> emit(ctx, igual ? OpCode.beq : OpCode.bneq);
+            case STRING -> emit(ctx, igual ? OpCode.seq : OpCode.sneq);
+            default -> { }
+        }
+        done(mark, canFail);
+    }
+
+    @Override
+    public void exitAnd(TugaParser.AndContext ctx) {
+        checker.exitAnd(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitAnd(ctx);
+        logical(ctx, OpCode.and, OpCode.jumpf, OpCode.fconst);
+    }
+
+    @Override
+    public void exitOr(TugaParser.OrContext ctx) {
+        checker.exitOr(ctx);
+        if (checker.hasErrors())
+            return;
+        if (folder != null)
+            folder.exitOr(ctx);
+        logical(ctx, OpCode.or, OpCode.jumpt, OpCode.tconst);
+    }
+
+    /**
+     * Codigo de um 'e'/'ou', com curto-circuito nas mesmas condicoes que o CodeGen
+     * (ver CodeGen.genLogical); o salto fica na posicao reservada depois do operando esquerdo.
+     */
+    private void logical(TugaParser.ExprContext ctx, OpCode opc, OpCode jump, OpCode shortValue) {
+        boolean rightFails = popFails();
+        boolean canFail = popFails() | rightFails;
+        int slot = popMark();
+        int mark = popMark();
+        if (fold(ctx, mark))
+            return;
+
+        if ((values != null && values.get(ctx.getChild(2)) != null) || rightFails) {
+            fill(slot, null);
+            emit(ctx, opc);
+        } else {
+            int curto = codeGen.newLabel();
+            int fim = codeGen.newLabel();
+            fillJump(slot, jump, curto);
+            if (emitted < size)
+                flush();
+            codeGen.setPosition(ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine() + 1);
+            codeGen.emitJump(OpCode.jump, fim);
+            codeGen.placeLabel(curto);
+            codeGen.emit(shortValue);
+            codeGen.placeLabel(fim);
+        }
+        done(mark, canFail);
+    }
+}
@@ -0,0 +1,679 @@
+package CodeGenerator;
+
+import Lexer.PackedLexer;
+import Tuga.TugaLexer;
+import TypeChecker.TugaType;
+import VM.OpCode;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.Arrays;
+
+import static TypeChecker.TugaType.*;
+
+/**
+ * Compilacao de um programa numa so passagem pelos tokens (PackedLexer), sem arvore sintatica:
+ * um parser de precedencia de operadores (Pratt) verifica os tipos, avalia as constantes e
+ * gera o codigo de cada expressao a medida que a analisa.
+ *
+ * <p>As precedencias e a associatividade sao as das alternativas de expr em Tuga.g4: os
+ * operadores prefixos ('-' e 'nao') aplicam-se so ao operando seguinte e os binarios, todos
+ * associativos a esquerda, vao de '*', '/', '%' (a mais alta) ate 'ou'. Os tipos, os valores das
+ * constantes e o codigo gerado sao os do TugaTypeChecker, do ConstantFolder e do CodeGen, com as
+ * mesmas posicoes, pelo que os bytecodes sao iguais aos da compilacao com arvore.</p>
+ *
+ * <p>O codigo de cada estatistica fica num buffer ate ao ';', porque parte dele depende do que
+ * esta a direita: depois do operando esquerdo de uma operacao binaria e reservada uma posicao,
+ * preenchida depois de analisado o operando direito (itod, itos, o salto de curto-circuito de um
+ * 'e'/'ou') ou deixada vazia, e o codigo de uma expressao constante e substituido pelo seu valor.
+ * A analise nao e recursiva: as expressoes em curso ficam numa pilha explicita, pelo que uma
+ * expressao muito aninhada nao esgota a pilha de chamadas do Java.
+ * Ao primeiro erro (sintatico, de tipo ou um inteiro que nao cabe num int) a compilacao para e
+ * compile() devolve false: o programa tem de ser compilado pelo TugaParser, que reporta os erros.</p>
+ */
+public class PrattCodeGen {
+    // Precedencia dos operadores binarios (0: o token nao e um operador binario); UNARY e a do
+    // operando de '-' e 'nao', que nao inclui nenhum operador binario
+    private static final int OR = 1, AND = 2, EQUALITY = 3, COMPARE = 4, ADDITIVE = 5, MULTIPLICATIVE = 6;
+    private static final int UNARY = 7;
+
+    // Tipos de entrada do buffer: vazia, instrucao, salto para uma etiqueta, colocacao de etiqueta
+    private static final byte NONE = 0, INSTR = 1, JUMP = 2, LABEL = 3;
+
+    /**
+     * Erro que interrompe a compilacao (e o programa passa para o TugaParser); nao tem mensagem
+     * nem stack trace.
+     */
+    private static final class Rejected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Rejected() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Rejected REJECTED = new Rejected();
+
+    private final PackedLexer tokens;
+    private final CharStream input;
+    private final boolean folding;
+    private final CodeGen codeGen;
+
+    // Token atual e linha onde esta (os tokens sao analisados por ordem)
+    private int pos = 0;
+    private int line = 1;
+
+    // Codigo da estatistica atual; o argumento de um salto ou etiqueta e a etiqueta local
+    private byte[] kind = new byte[64];
+    private OpCode[] opc = new OpCode[64];
+    private int[] arg = new int[64];
+    private double[] real = new double[64];
+    private String[] text = new String[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private boolean[] folded = new boolean[64];
+    private int size = 0;
+    private int numLabels = 0;
+    private int[] labelIds = new int[16];
+
+    // Resultado da ultima expressao analisada: tipo, valor (se constante) e se pode falhar
+    private TugaType type;
+    private boolean constant;
+    private int intValue;
+    private double doubleValue;
+    private String stringValue;
+    private boolean canFail;
+
+    // Expressoes em curso, da mais exterior (0) para a atual ('depth'): a expressao d > 0 e o
+    // operando de operators[d], um operador prefixo, '(' ou um operador binario da expressao
+    // d - 1. Por expressao, a precedencia minima dos seus operadores binarios, o inicio do seu
+    // codigo no buffer e a posicao do seu primeiro token; por operador binario, a posicao
+    // reservada (-1 nos prefixos) e o operando esquerdo
+    private int depth;
+    private int[] minPrecedences = new int[16];
+    private int[] starts = new int[16];
+    private int[] exprLines = new int[16];
+    private int[] exprColumns = new int[16];
+    private int[] operators = new int[16];
+    private int[] slots = new int[16];
+    private TugaType[] leftTypes = new TugaType[16];
+    private boolean[] leftConstants = new boolean[16];
+    private int[] leftInts = new int[16];
+    private double[] leftDoubles = new double[16];
+    private String[] leftStrings = new String[16];
+    private boolean[] leftFails = new boolean[16];
+
+    /**
+     * Construtor do compilador.
+     *
+     * @param tokens Tokens do programa, sem erros lexicos.
+     * @param folding Se as expressoes constantes sao avaliadas.
+     * @param codeGen Gerador onde e emitido o codigo.
+     */
+    public PrattCodeGen(PackedLexer tokens, boolean folding, CodeGen codeGen) {
+        this.tokens = tokens;
+        this.input = tokens.getInputStream();
+        this.folding = folding;
+        this.codeGen = codeGen;
+    }
+
+    /**
+     * Compila o programa.
+     *
+     * @return true se o programa foi compilado; false se tem erros, caso em que o codigo ja
+     * emitido no CodeGen esta incompleto e deve ser descartado.
+     */
+    public boolean compile() {
+        try {
+            prog();
+            return true;
+        } catch (Rejected e) {
+            return false;
+        }
+    }
+
+    private int peek() {
+        return pos < tokens.size() ? tokens.type(pos) : TugaLexer.EOF;
+    }
+
+    private void expect(int tokenType) {
+        if (peek() != tokenType)
+            throw REJECTED;
+        pos++;
+    }
+
+    /**
+     * @return Linha do token atual.
+     */
+    private int tokenLine() {
+        int start = tokens.start(pos);
+        while (line < tokens.lineCount() && tokens.lineStart(line + 1) <= start)
+            line++;
+        return line;
+    }
+
+    /**
+     * @return Coluna, a partir de 1, do token atual (depois de tokenLine()).
+     */
+    private int tokenColumn() {
+        return tokens.start(pos) - tokens.lineStart(line) + 1;
+    }
+
+    private String tokenText() {
+        int start = tokens.start(pos);
+        return input.getText(Interval.of(start, start + tokens.length(pos) - 1));
+    }
+
+    // prog : stat+ EOF
+    private void prog() {
+        if (peek() != TugaLexer.ESCREVE)
+            throw REJECTED;
+        int progLine = tokenLine(), progColumn = tokenColumn();
+        while (pos < tokens.size())
+            stat();
+        codeGen.setPosition(progLine, progColumn);
+        codeGen.emit(OpCode.halt);
+    }
+
+    // stat : 'escreve' expr ';'
+    private void stat() {
+        if (peek() != TugaLexer.ESCREVE)
+            throw REJECTED;
+        int statLine = tokenLine(), statColumn = tokenColumn();
+        pos++;
+        expr();
+        expect(TugaLexer.SEMI);
+
+        switch (type) {
+            case INTEIRO -> add(OpCode.iprint, statLine, statColumn);
+            case REAL -> add(OpCode.dprint, statLine, statColumn);
+            case BOOLEANO -> add(OpCode.bprint, statLine, statColumn);
+            default -> add(OpCode.sprint, statLine, statColumn);
+        }
+        flush();
+    }
+
+    private static int precedence(int tokenType) {
+        return switch (tokenType) {
+            case TugaLexer.MUL, TugaLexer.DIV, TugaLexer.MOD -> MULTIPLICATIVE;
+            case TugaLexer.ADD, TugaLexer.SUB -> ADDITIVE;
+            case TugaLexer.LT, TugaLexer.GT, TugaLexer.LE, TugaLexer.GE -> COMPARE;
+            case TugaLexer.EQ, TugaLexer.NE -> EQUALITY;
+            case TugaLexer.E -> AND;
+            case TugaLexer.OU -> OR;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Analisa uma expressao. Cada expressao em curso analisa o seu primeiro operando (um literal
+     * ou, depois de um operador prefixo ou de '(', uma nova expressao) e depois os operadores
+     * binarios com pelo menos a sua precedencia minima, cada um com o operando direito numa nova
+     * expressao; quando uma expressao termina, o operador de que e operando e gerado. Todas as
+     * expressoes compostas que comecam num token tem a posicao desse token.
+     */
+    private void expr() {
+        depth = 0;
+        begin(OR);
+        while (true) {
+            int token = peek();
+            if (token == TugaLexer.LPAREN || token == TugaLexer.SUB || token == TugaLexer.NAO) {
+                pos++;
+                push(token);
+                begin(token == TugaLexer.LPAREN ? OR : UNARY);
+                continue;
+            }
+            primary(exprLines[depth], exprColumns[depth]);
+
+            while (true) {
+                int prec = precedence(peek());
+                if (prec >= minPrecedences[depth]) {
+                    int op = peek();
+                    pos++;
+                    // o resultado atual e o operando esquerdo; a posicao reservada e preenchida
+                    // depois de analisado o direito
+                    int slot = size;
+                    add(null, exprLines[depth], exprColumns[depth]);
+                    kind[slot] = NONE;
+                    push(op);
+                    slots[depth] = slot;
+                    leftTypes[depth] = type;
+                    leftConstants[depth] = constant;
+                    leftInts[depth] = intValue;
+                    leftDoubles[depth] = doubleValue;
+                    leftStrings[depth] = stringValue;
+                    leftFails[depth] = canFail;
+                    begin(prec + 1);
+                    break;
+                }
+                if (depth == 0)
+                    return;
+                // a expressao atual terminou: e o operando do operador da expressao anterior
+                int operand = depth--;
+                if (slots[operand] >= 0)
+                    binary(operand, starts[depth], exprLines[depth], exprColumns[depth]);
+                else
+                    prefix(operators[operand], starts[depth], exprLines[depth], exprColumns[depth]);
+            }
+        }
+    }
+
+    /**
+     * Comeca a expressao atual, no token atual.
+     */
+    private void begin(int minPrecedence) {
+        if (pos == tokens.size())
+            throw REJECTED;
+        minPrecedences[depth] = minPrecedence;
+        starts[depth] = size;
+        exprLines[depth] = tokenLine();
+        exprColumns[depth] = tokenColumn();
+    }
+
+    /**
+     * Passa a uma nova expressao, operando do operador dado (de um operador prefixo, sem posicao
+     * reservada).
+     */
+    private void push(int operator) {
+        if (++depth == minPrecedences.length) {
+            int n = depth * 2;
+            minPrecedences = Arrays.copyOf(minPrecedences, n);
+            starts = Arrays.copyOf(starts, n);
+            exprLines = Arrays.copyOf(exprLines, n);
+            exprColumns = Arrays.copyOf(exprColumns, n);
+            operators = Arrays.copyOf(operators, n);
+            slots = Arrays.copyOf(slots, n);
+            leftTypes = Arrays.copyOf(leftTypes, n);
+            leftConstants = Arrays.copyOf(leftConstants, n);
+            leftInts = Arrays.copyOf(leftInts, n);
+            leftDoubles = Arrays.copyOf(leftDoubles, n);
+            leftStrings = Arrays.copyOf(leftStrings, n);
+            leftFails = Arrays.copyOf(leftFails, n);
+        }
+        operators[depth] = operator;
+        slots[depth] = -1;
+    }
+
+    /**
+     * Gera o codigo de '(' expr ')', '-' expr ou 'nao' expr (a expr e o resultado atual).
+     */
+    private void prefix(int op, int start, int exprLine, int exprColumn) {
+        switch (op) {
+            case TugaLexer.LPAREN -> {
+                expect(TugaLexer.RPAREN);
+                fold(start, exprLine, exprColumn);
+            }
+            case TugaLexer.SUB -> {
+                if (type != INTEIRO && type != REAL)
+                    throw REJECTED;
+                add(type == INTEIRO ? OpCode.iuminus : OpCode.duminus, exprLine, exprColumn);
+                intValue = -intValue;
+                doubleValue = -doubleValue;
+                fold(start, exprLine, exprColumn);
+            }
+            default -> {
+                if (type != BOOLEANO)
+                    throw REJECTED;
+                add(OpCode.not, exprLine, exprColumn);
+                intValue = intValue == 0 ? 1 : 0;
+                fold(start, exprLine, exprColumn);
+            }
+        }
+    }
+
+    /**
+     * Analisa um literal.
+     */
+    private void primary(int exprLine, int exprColumn) {
+        switch (peek()) {
+            case TugaLexer.INT -> {
+                String digits = tokenText();
+                long value = 0;
+                for (int i = 0; i < digits.length(); i++) {
+                    value = value * 10 + (digits.charAt(i) - '0');
+                    if (value > Integer.MAX_VALUE)
+                        throw REJECTED;
+                }
+                pos++;
+                literal(INTEIRO);
+                intValue = (int) value;
+                add(OpCode.iconst, intValue, exprLine, exprColumn);
+            }
+            case TugaLexer.DOUBLE -> {
+                double value = Double.parseDouble(tokenText());
+                pos++;
+                literal(REAL);
+                doubleValue = value;
+                add(OpCode.dconst, 0, exprLine, exprColumn);
+                real[size - 1] = value;
+            }
+            case TugaLexer.BOOL -> {
+                // 'verdadeiro' ou 'falso'
+                boolean value = tokens.length(pos) == "verdadeiro".length();
+                pos++;
+                literal(BOOLEANO);
+                intValue = value ? 1 : 0;
+                add(value ? OpCode.tconst : OpCode.fconst, exprLine, exprColumn);
+            }
+            case TugaLexer.STR -> {
+                String value = tokenText();
+                pos++;
+                literal(STRING);
+                stringValue = value.substring(1, value.length() - 1);
+                add(OpCode.sconst, 0, exprLine, exprColumn);
+                text[size - 1] = stringValue;
+            }
+            default -> throw REJECTED;
+        }
+    }
+
+    private void literal(TugaType literalType) {
+        type = literalType;
+        constant = folding;
+        canFail = false;
+    }
+
+    /**
+     * Gera o codigo de uma operacao binaria: o operando esquerdo e a posicao reservada estao na
+     * expressao 'operand', cujo resultado (o resultado atual) e o operando direito.
+     */
+    private void binary(int operand, int start, int exprLine, int exprColumn) {
+        int op = operators[operand];
+        int prec = precedence(op);
+        int slot = slots[operand];
+        TugaType leftType = leftTypes[operand];
+        boolean leftConstant = leftConstants[operand];
+        int leftInt = leftInts[operand];
+        double leftDouble = leftDoubles[operand];
+        String leftString = leftStrings[operand];
+        leftStrings[operand] = null;
+
+        TugaType rightType = type;
+        boolean rightConstant = constant;
+        boolean rightFails = canFail;
+        constant = leftConstant && rightConstant;
+        canFail = leftFails[operand] || rightFails;
+
+        switch (prec) {
+            case MULTIPLICATIVE -> {
+                if (op == TugaLexer.MOD ? leftType != INTEIRO || rightType != INTEIRO
+                        : !leftType.isNumeric() || !rightType.isNumeric())
+                    throw REJECTED;
+                type = leftType == REAL || rightType == REAL ? REAL : INTEIRO;
+                boolean isReal = type == REAL;
+                if (isReal && leftType == INTEIRO)
+                    fill(slot, OpCode.itod);
+                if (isReal && rightType == INTEIRO)
+                    add(OpCode.itod, exprLine, exprColumn);
+                switch (op) {
+                    case TugaLexer.MUL -> add(isReal ? OpCode.dmult : OpCode.imult, exprLine, exprColumn);
+                    case TugaLexer.DIV -> add(isReal ? OpCode.ddiv : OpCode.idiv, exprLine, exprColumn);
+                    default -> add(OpCode.imod, exprLine, exprColumn);
+                }
+
+                // divisao ou modulo por um valor que nao e uma constante diferente de zero
+                if (op != TugaLexer.MUL) {
+                    boolean zero = rightType == INTEIRO ? intValue == 0 : Math.abs(toDouble(rightType)) < 10e-9;
+                    if (!rightConstant || zero) {
+                        canFail = true;
+                        constant = false;
+                    }
+                }
+                if (constant) {
+                    if (isReal) {
+                        double l = leftType == INTEIRO ? leftInt : leftDouble, r = toDouble(rightType);
+                        doubleValue = op == TugaLexer.MUL ? l * r : l / r;
+                    } else {
+                        int r = intValue;
+                        intValue = switch (op) {
+                            case TugaLexer.MUL -> leftInt * r;
+                            case TugaLexer.DIV -> leftInt / r;
+                            default -> leftInt % r;
+                        };
+                    }
+                }
+            }
+            case ADDITIVE -> {
+                boolean add = op == TugaLexer.ADD;
+                if (add && (leftType == STRING || rightType == STRING)) {
+                    type = STRING;
+                    fill(slot, toStringOp(leftType));
+                    OpCode conversion = toStringOp(rightType);
+                    if (conversion != null)
+                        add(conversion, exprLine, exprColumn);
+                    add(OpCode.sconcat, exprLine, exprColumn);
+                    if (constant)
+                        stringValue = toStr(leftType, leftInt, leftDouble, leftString) + toStr(rightType, intValue, doubleValue, stringValue);
+                } else {
+                    if (!leftType.isNumeric() || !rightType.isNumeric())
+                        throw REJECTED;
+                    if (leftType == REAL || rightType == REAL) {
+                        type = REAL;
+                        if (leftType == INTEIRO)
+                            fill(slot, OpCode.itod);
+                        if (rightType == INTEIRO)
+                            add(OpCode.itod, exprLine, exprColumn);
+                        add(add ? OpCode.dadd : OpCode.dsub, exprLine, exprColumn);
+                        if (constant) {
+                            double l = leftType == INTEIRO ? leftInt : leftDouble, r = toDouble(rightType);
+                            doubleValue = add ? l + r : l - r;
+                        }
+                    } else {
+                        type = INTEIRO;
+                        add(add ? OpCode.iadd : OpCode.isub, exprLine, exprColumn);
+                        intValue = add ? leftInt + intValue : leftInt - intValue;
+                    }
+                }
+            }
+            case COMPARE -> {
+                if (!leftType.isNumeric() || !rightType.isNumeric())
+                    throw REJECTED;
+                type = BOOLEANO;
+                boolean inteiro = leftType != REAL && rightType != REAL;
+                if (leftType == INTEIRO && !inteiro)
+                    fill(slot, OpCode.itod);
+                if (rightType == INTEIRO && !inteiro)
+                    add(OpCode.itod, exprLine, exprColumn);
+                boolean less = op == TugaLexer.LT || op == TugaLexer.GE;
+                if (less)
+                    add(inteiro ? OpCode.ilt : OpCode.dlt, exprLine, exprColumn);
+                else
+                    add(inteiro ? OpCode.ileq : OpCode.dleq, exprLine, exprColumn);
+                // '>' e '>=' sao a negacao de '<=' e '<'
+                boolean negate = op == TugaLexer.GT || op == TugaLexer.GE;
+                if (negate)
+                    add(OpCode.not, exprLine, exprColumn);
+                if (constant) {
+                    boolean result;
+                    if (inteiro)
+                        result = less ? leftInt < intValue : leftInt <= intValue;
+                    else {
+                        double l = leftType == INTEIRO ? leftInt : leftDouble, r = toDouble(rightType);
+                        result = less ? l < r : l <= r;
+                    }
+                    intValue = result != negate ? 1 : 0;
+                }
+            }
+            case EQUALITY -> {
+                boolean numeric = leftType.isNumeric() && rightType.isNumeric();
+                if (!numeric && !(leftType == rightType && (leftType == BOOLEANO || leftType == STRING)))
+                    throw REJECTED;
+                boolean igual = op == TugaLexer.EQ;
+                TugaType operands = numeric && (leftType == REAL || rightType == REAL) ? REAL : leftType;
+                if (leftType == INTEIRO && rightType == REAL)
+                    fill(slot, OpCode.itod);
+                if (leftType == REAL && rightType == INTEIRO)
+                    add(OpCode.itod, exprLine, exprColumn);
+                switch (operands) {
+                    case INTEIRO -> add(igual ? OpCode.ieq : OpCode.ineq, exprLine, exprColumn);
+                    case REAL -> add(igual ? OpCode.deq : OpCode.dneq, exprLine, exprColumn);
+                    case BOOLEANO -> add(igual ? OpCode.beq : OpCode.bneq, exprLine, exprColumn);
+                    default -> add(igual ? OpCode.seq : OpCode.sneq, exprLine, exprColumn);
+                }
+                if (constant) {
+                    boolean equal = switch (operands) {
+                        case INTEIRO, BOOLEANO -> leftInt == intValue;
+                        case STRING -> leftString.equals(stringValue);
+                        default -> Math.abs((leftType == INTEIRO ? leftInt : leftDouble) - toDouble(rightType)) < 10e-9;
+                    };
+                    intValue = igual == equal ? 1 : 0;
+                }
+                type = BOOLEANO;
+            }
+            default -> {
+                // 'e' e 'ou'
+                if (leftType != BOOLEANO || rightType != BOOLEANO)
+                    throw REJECTED;
+                type = BOOLEANO;
+                boolean and = op == TugaLexer.E;
+                if ((folding && rightConstant) || rightFails) {
+                    add(and ? OpCode.and : OpCode.or, exprLine, exprColumn);
+                } else {
+                    // com curto-circuito, como em CodeGen.genLogical
+                    int curto = numLabels++;
+                    int fim = numLabels++;
+                    kind[slot] = JUMP;
+                    opc[slot] = and ? OpCode.jumpf : OpCode.jumpt;
+                    arg[slot] = curto;
+                    add(OpCode.jump, exprLine, exprColumn);
+                    kind[size - 1] = JUMP;
+                    arg[size - 1] = fim;
+                    addLabel(curto, exprLine, exprColumn);
+                    add(and ? OpCode.fconst : OpCode.tconst, exprLine, exprColumn);
+                    addLabel(fim, exprLine, exprColumn);
+                }
+                if (constant)
+                    intValue = and ? leftInt & intValue : leftInt | intValue;
+            }
+        }
+        fold(start, exprLine, exprColumn);
+    }
+
+    /**
+     * @return O valor do resultado atual (inteiro ou real) como real, como a instrucao itod.
+     */
+    private double toDouble(TugaType valueType) {
+        return valueType == INTEIRO ? intValue : doubleValue;
+    }
+
+    /**
+     * Converte um valor para string, como as instrucoes itos, dtos e btos.
+     */
+    private static String toStr(TugaType valueType, int i, double d, String s) {
+        return switch (valueType) {
+            case INTEIRO -> Integer.toString(i);
+            case REAL -> Double.toString(d);
+            case BOOLEANO -> i != 0 ? "verdadeiro" : "falso";
+            default -> s;
+        };
+    }
+
+    private static OpCode toStringOp(TugaType valueType) {
+        return switch (valueType) {
+            case INTEIRO -> OpCode.itos;
+            case REAL -> OpCode.dtos;
+            case BOOLEANO -> OpCode.btos;
+            default -> null;
+        };
+    }
+
+    /**
+     * Substitui o codigo de uma expressao composta com valor constante pela instrucao que empilha
+     * esse valor, como a conversao para a representacao intermedia (Lowering).
+     *
+     * @param start Inicio do codigo da expressao no buffer.
+     */
+    private void fold(int start, int exprLine, int exprColumn) {
+        if (!constant)
+            return;
+        size = start;
+        switch (type) {
+            case INTEIRO -> add(OpCode.iconst, intValue, exprLine, exprColumn);
+            case REAL -> {
+                add(OpCode.dconst, 0, exprLine, exprColumn);
+                real[size - 1] = doubleValue;
+            }
+            case BOOLEANO -> add(intValue != 0 ? OpCode.tconst : OpCode.fconst, exprLine, exprColumn);
+            default -> {
+                add(OpCode.sconst, 0, exprLine, exprColumn);
+                text[size - 1] = stringValue;
+            }
+        }
+        folded[size - 1] = true;
+        canFail = false;
+    }
+
+    private void fill(int slot, OpCode op) {
+        if (op != null) {
+            kind[slot] = INSTR;
+            opc[slot] = op;
+        }
+    }
+
+    private void add(OpCode op, int ln, int col) {
+        add(op, 0, ln, col);
+    }
+
+    private void add(OpCode op, int value, int ln, int col) {
+        if (size == kind.length) {
+            int n = size * 2;
+            kind = Arrays.copyOf(kind, n);
+            opc = Arrays.copyOf(opc, n);
+            arg = Arrays.copyOf(arg, n);
+            real = Arrays.copyOf(real, n);
+            text = Arrays.copyOf(text, n);
+            lines = Arrays.copyOf(lines, n);
+            columns = Arrays.copyOf(columns, n);
+            folded = Arrays.copyOf(folded, n);
+        }
+        kind[size] = INSTR;
+        opc[size] = op;
+        arg[size] = value;
+        lines[size] = ln;
+        columns[size] = col;
+        folded[size] = false;
+        size++;
+    }
+
+    private void addLabel(int label, int ln, int col) {
+        add(null, label, ln, col);
+        kind[size - 1] = LABEL;
+    }
+
+    /**
+     * Emite no CodeGen o codigo da estatistica e esvazia o buffer. As etiquetas do CodeGen sao
+     * criadas quando aparecem pela primeira vez.
+     */
+    private void flush() {
+        if (labelIds.length < numLabels)
+            labelIds = new int[Math.max(numLabels, labelIds.length * 2)];
+        Arrays.fill(labelIds, 0, numLabels, -1);
+        for (int i = 0; i < size; i++) {
+            if (kind[i] == NONE)
+                continue;
+            codeGen.setPosition(lines[i], columns[i]);
+            if (folded[i])
+                codeGen.countFolded();
+            if (kind[i] == JUMP || kind[i] == LABEL) {
+                int label = arg[i];
+                if (labelIds[label] < 0)
+                    labelIds[label] = codeGen.newLabel();
+                if (kind[i] == JUMP)
+                    codeGen.emitJump(opc[i], labelIds[label]);
+                else
+                    codeGen.placeLabel(labelIds[label]);
+            } else if (opc[i] == OpCode.dconst) {
+                codeGen.emit(OpCode.dconst, codeGen.addConstant(real[i]));
+            } else if (opc[i] == OpCode.sconst) {
+                codeGen.emit(OpCode.sconst, codeGen.addConstant(text[i]));
+                text[i] = null;
+            } else if (opc[i].nArgs() == 1) {
+                codeGen.emit(opc[i], arg[i]);
+            } else {
+                codeGen.emit(opc[i]);
+            }
+        }
+        size = 0;
+        numLabels = 0;
+    }
+}
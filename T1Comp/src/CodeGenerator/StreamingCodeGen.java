@@ -0,0 +1,113 @@
+package CodeGenerator;
+
+import ErrorListener.ErrorListener;
+import IR.Lowering;
+import Optimizer.ConstantFolder;
+import Optimizer.PeepholeOptimizer;
+import Tuga.*;
+import TypeChecker.TugaTypeChecker;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Compilacao por estatistica, para programas demasiado grandes para ter em memoria: e um
+ * listener do TugaParser (addParseListener) que, quando o parser acaba de analisar uma
+ * estatistica, a verifica, avalia as suas constantes, gera o seu codigo e o escreve no ficheiro
+ * de bytecodes, e depois retira a sua arvore do programa. A memoria usada e a da maior
+ * estatistica (mais as pools de constantes), e nao a do programa todo.
+ *
+ * <p>Os passos sao os da compilacao normal (TugaTypeChecker, ConstantFolder, Lowering, CodeGen
+ * e, opcionalmente, o PeepholeOptimizer), aplicados a uma estatistica de cada vez. Depois do
+ * primeiro erro lexico ou sintatico as estatisticas deixam de ser verificadas e, depois do
+ * primeiro erro de tipo, deixam de ser geradas; o ficheiro escrito ate ai nao e executado.</p>
+ */
+public class StreamingCodeGen extends TugaBaseListener {
+    private final ErrorListener errors;
+    private final TugaTypeChecker checker;
+    private final boolean folding;
+    private final PeepholeOptimizer optimizer;
+    private final CodeGen codeGen;
+    private final BytecodeWriter out;
+    private final ParseTreeWalker walker = new IterativeParseTreeWalker();
+
+    /**
+     * Construtor da compilacao por estatistica.
+     *
+     * @param errors Listener dos erros lexicos e sintaticos do parser.
+     * @param checker Verificador de tipos (reporta os erros e anota os tipos).
+     * @param folding Se as expressoes constantes sao avaliadas.
+     * @param optimizer Otimizador peephole aplicado ao codigo de cada estatistica, ou null.
+     * @param codeGen Gerador do codigo (guarda as pools de constantes do programa todo).
+     * @param out Ficheiro de bytecodes onde o codigo e escrito.
+     */
+    public StreamingCodeGen(ErrorListener errors, TugaTypeChecker checker, boolean folding,
+                            PeepholeOptimizer optimizer, CodeGen codeGen, BytecodeWriter out) {
+        this.errors = errors;
+        this.checker = checker;
+        this.folding = folding;
+        this.optimizer = optimizer;
+        this.codeGen = codeGen;
+        this.out = out;
+    }
+
+    /**
+     * @return true se ja foi encontrado um erro lexico ou sintatico.
+     */
+    private boolean hasSyntaxErrors() {
+        return errors.getNumLexerErrors() > 0 || errors.getNumParsingErrors() > 0;
+    }
+
+    /**
+     * Compila uma estatistica acabada de analisar e retira a sua arvore do programa.
+     *
+     * @param ctx Contexto da estatistica.
+     */
+    @Override
+    public void exitStat(TugaParser.StatContext ctx) {
+        try {
+            if (hasSyntaxErrors())
+                return;
+            walker.walk(checker, ctx);
+            if (checker.hasErrors())
+                return;
+
+            // os valores das constantes sao so desta estatistica
+            ConstantFolder folder = folding ? new ConstantFolder() : null;
+            if (folder != null)
+                walker.walk(folder, ctx);
+            codeGen.generateStats(new Lowering(folder != null ? folder.getValues() : null).lowerStat(ctx));
+            if (optimizer != null)
+                codeGen.optimize(optimizer);
+            codeGen.flush(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            // a estatistica e o ultimo filho do programa (se este metodo lancar uma excecao, o
+            // parser volta a chama-lo ao sair do programa, com a estatistica ja retirada)
+            ParserRuleContext prog = ctx.getParent();
+            if (prog.getChildCount() > 0 && prog.getChild(prog.getChildCount() - 1) == ctx)
+                prog.removeLastChild();
+        }
+    }
+
+    /**
+     * Emite o halt no fim do programa.
+     *
+     * @param ctx Contexto do programa.
+     */
+    @Override
+    public void exitProg(TugaParser.ProgContext ctx) {
+        if (hasSyntaxErrors() || checker.hasErrors())
+            return;
+        codeGen.emitHalt(ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine() + 1);
+        try {
+            codeGen.flush(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
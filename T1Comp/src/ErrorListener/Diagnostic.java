@@ -0,0 +1,30 @@
+package ErrorListener;
+
+/**
+ * Erro encontrado durante a compilacao (lexico, sintatico ou de tipo). A mensagem so e
+ * formatada quando e pedida: um erro que nao e mostrado nao constroi nenhuma string.
+ *
+ * @param kind Fase onde o erro foi encontrado.
+ * @param line Linha do erro, a partir de 1.
+ * @param column Coluna do erro, a partir de 0 (como no ANTLR).
+ * @param format Formato da mensagem (String.format).
+ * @param args Argumentos do formato.
+ */
+public record Diagnostic(Kind kind, int line, int column, String format, Object... args) {
+
+    /**
+     * Fase da compilacao onde o erro foi encontrado.
+     */
+    public enum Kind {
+        LEXER, PARSER, TYPE
+    }
+
+    /**
+     * Formata a mensagem do erro, tal como e mostrada.
+     *
+     * @return A mensagem.
+     */
+    public String message() {
+        return String.format(format, args);
+    }
+}
@@ -0,0 +1,99 @@
+package ErrorListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Erros de uma compilacao, partilhados pelo ErrorListener (erros lexicos e sintaticos) e pelo
+ * TugaTypeChecker (erros de tipo).
+ *
+ * <p>Com um limite de erros, o erro que o atinge lanca LimitReached, que interrompe o lexer, o
+ * parser ou a verificacao de tipos: um programa invalido e rejeitado no primeiro erro (limite 1)
+ * em vez de o ANTLR recuperar dos erros ate ao fim do ficheiro.</p>
+ *
+ * <p>Os erros mostrados sao guardados num buffer e escritos de uma vez por flush(): os erros
+ * lexicos e sintaticos no System.err e os de tipo no System.out, como antes.</p>
+ */
+public class Diagnostics {
+    /**
+     * Lancada quando o numero de erros atinge o limite; nao tem mensagem nem stack trace.
+     */
+    public static final class LimitReached extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LimitReached() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final LimitReached LIMIT_REACHED = new LimitReached();
+
+    private final int maxErrors;
+    private final ArrayList<Diagnostic> errors = new ArrayList<>();
+    private final StringBuilder err = new StringBuilder();
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * Construtor.
+     *
+     * @param maxErrors Numero de erros a partir do qual a compilacao para (0: sem limite).
+     */
+    public Diagnostics(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Regista um erro.
+     *
+     * @param error Erro a registar.
+     * @param show Se a mensagem do erro e mostrada.
+     * @throws LimitReached Se o erro atinge o limite de erros.
+     */
+    public void report(Diagnostic error, boolean show) {
+        errors.add(error);
+        if (show) {
+            StringBuilder buffer = error.kind() == Diagnostic.Kind.TYPE ? out : err;
+            buffer.append(error.message()).append('\n');
+        }
+        if (maxErrors > 0 && errors.size() >= maxErrors)
+            throw LIMIT_REACHED;
+    }
+
+    /**
+     * @return true se o numero de erros atingiu o limite.
+     */
+    public boolean limitReached() {
+        return maxErrors > 0 && errors.size() >= maxErrors;
+    }
+
+    /**
+     * @return Os erros registados, pela ordem em que foram encontrados.
+     */
+    public List<Diagnostic> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Descarta as mensagens dos erros de tipo ainda no buffer. Na compilacao por estatistica so
+     * no fim se sabe se o programa tem erros lexicos ou sintaticos, caso em que os erros de tipo
+     * das estatisticas anteriores nao sao mostrados, como na compilacao normal.
+     */
+    public void discardTypeErrors() {
+        out.setLength(0);
+    }
+
+    /**
+     * Escreve as mensagens dos erros mostrados ainda no buffer.
+     */
+    public void flush() {
+        if (!err.isEmpty()) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+        if (!out.isEmpty()) {
+            System.out.print(out);
+            out.setLength(0);
+        }
+    }
+}
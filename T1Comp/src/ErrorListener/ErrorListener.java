@@ -4,11 +4,13 @@ import org.antlr.v4.runtime.*;
 
 /**
  * Classe que implementa um ouvinte de erros para o analisador lexico e sintatico.
- * Regista e, opcionalmente, exibe os erros ocorridos durante a analise.
+ * Regista os erros ocorridos durante a analise nos Diagnostics da compilacao, que os exibem
+ * opcionalmente e param a analise quando e atingido o limite de erros.
  */
 public class ErrorListener extends BaseErrorListener {
     private boolean showLexerErrors;
     private boolean showParserErrors;
+    private final Diagnostics diagnostics;
     private int numLexerErrors = 0;
     private int numParsingErrors = 0;
 
@@ -17,11 +19,13 @@ public class ErrorListener extends BaseErrorListener {
      *
      * @param showLexerErrors Indica se os erros lexicos devem ser apresentados.
      * @param showParserErrors Indica se os erros de parsing devem ser apresentados.
+     * @param diagnostics Erros da compilacao, onde os erros sao registados.
      */
-    public ErrorListener(boolean showLexerErrors, boolean showParserErrors) {
+    public ErrorListener(boolean showLexerErrors, boolean showParserErrors, Diagnostics diagnostics) {
         super();
         this.showLexerErrors = showLexerErrors;
         this.showParserErrors = showParserErrors;
+        this.diagnostics = diagnostics;
     }
 
     /**
@@ -33,6 +37,7 @@ public class ErrorListener extends BaseErrorListener {
      * @param charPositionInLine Posicao do caractere na linha.
      * @param msg Mensagem de erro.
      * @param e Excecao associada ao erro (se existir).
+     * @throws Diagnostics.LimitReached Se o erro atinge o limite de erros.
      */
     @Override
     public void syntaxError(Recognizer<?, ?> recognizer,
@@ -42,13 +47,13 @@ public class ErrorListener extends BaseErrorListener {
                             RecognitionException e) {
         if (recognizer instanceof Lexer) {
             this.numLexerErrors++;
-            if (this.showLexerErrors)
-                System.err.printf("linha %d:%d erro: %s\n", line, charPositionInLine, msg);
+            diagnostics.report(new Diagnostic(Diagnostic.Kind.LEXER, line, charPositionInLine,
+                    "linha %d:%d erro: %s", line, charPositionInLine, msg), this.showLexerErrors);
         }
         if (recognizer instanceof Parser) {
             this.numParsingErrors++;
-            if (this.showParserErrors)
-                System.err.printf("linha %d:%d erro: %s\n", line, charPositionInLine, msg);
+            diagnostics.report(new Diagnostic(Diagnostic.Kind.PARSER, line, charPositionInLine,
+                    "linha %d:%d erro: %s", line, charPositionInLine, msg), this.showParserErrors);
         }
     }
 
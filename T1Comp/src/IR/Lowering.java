@@ -0,0 +1,216 @@
+package IR;
+
+import Tuga.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+import java.util.Arrays;
+
+/**
+ * Converte a arvore sintatica de um programa ja verificado (com os tipos anotados pelo
+ * TugaTypeChecker) na representacao intermedia TugaIR. Depois da conversao a arvore sintatica,
+ * o stream de tokens e os valores do ConstantFolder podem ser libertados.
+ *
+ * <p>As expressoes sao percorridas com uma pilha explicita, sem recursao, para que uma cadeia
+ * 'a + b + c + ...' ou parenteses muito aninhados nao esgotem a pilha de chamadas do Java. Os
+ * nos sao criados pela mesma ordem que numa travessia recursiva (operando esquerdo, direito e
+ * depois o no).</p>
+ */
+public class Lowering {
+    private final ParseTreeProperty<Object> values;
+    private TugaIR ir;
+
+    // Pilha de trabalho: expressao e se as suas subexpressoes ja foram convertidas
+    private TugaParser.ExprContext[] work = new TugaParser.ExprContext[64];
+    private boolean[] expanded = new boolean[64];
+    private int workSize = 0;
+
+    // Pilha dos indices dos nos ja criados, ainda sem pai
+    private int[] nodes = new int[64];
+    private int numNodes = 0;
+
+    /**
+     * Construtor da conversao.
+     *
+     * @param values Valores das expressoes constantes (ConstantFolder), ou null se as constantes
+     *               nao sao avaliadas; as expressoes com valor passam a ser literais.
+     */
+    public Lowering(ParseTreeProperty<Object> values) {
+        this.values = values;
+    }
+
+    /**
+     * Converte um programa.
+     *
+     * @param tree Arvore sintatica do programa (ProgContext).
+     * @return A representacao intermedia do programa.
+     */
+    public TugaIR lower(ParseTree tree) {
+        ir = new TugaIR(values != null);
+        TugaParser.ProgContext prog = (TugaParser.ProgContext) tree;
+        for (TugaParser.StatContext stat : prog.stat())
+            ir.addStat(lowerExpr(stat.expr()), line(stat), column(stat));
+        ir.setProgPosition(line(prog), column(prog));
+        ir.trim();
+        TugaIR result = ir;
+        ir = null;
+        return result;
+    }
+
+    /**
+     * Converte uma so estatistica, para a compilacao por estatistica (StreamingCodeGen). A
+     * posicao do programa e a da estatistica.
+     *
+     * @param stat Arvore sintatica da estatistica.
+     * @return A representacao intermedia, com uma estatistica.
+     */
+    public TugaIR lowerStat(TugaParser.StatContext stat) {
+        ir = new TugaIR(values != null);
+        ir.addStat(lowerExpr(stat.expr()), line(stat), column(stat));
+        ir.setProgPosition(line(stat), column(stat));
+        TugaIR result = ir;
+        ir = null;
+        return result;
+    }
+
+    /**
+     * Converte uma expressao.
+     *
+     * @return Indice do no da expressao.
+     */
+    private int lowerExpr(TugaParser.ExprContext root) {
+        push(root, false);
+        while (workSize > 0) {
+            workSize--;
+            TugaParser.ExprContext ctx = work[workSize];
+            work[workSize] = null;
+            if (expanded[workSize])
+                exit(ctx);
+            else
+                enter(ctx);
+        }
+        return nodes[--numNodes];
+    }
+
+    private void push(TugaParser.ExprContext ctx, boolean done) {
+        if (workSize == work.length) {
+            work = Arrays.copyOf(work, workSize * 2);
+            expanded = Arrays.copyOf(expanded, workSize * 2);
+        }
+        work[workSize] = ctx;
+        expanded[workSize] = done;
+        workSize++;
+    }
+
+    private void result(int node) {
+        if (numNodes == nodes.length)
+            nodes = Arrays.copyOf(nodes, numNodes * 2);
+        nodes[numNodes++] = node;
+    }
+
+    /**
+     * Primeira visita a uma expressao: os literais e as expressoes com valor constante conhecido
+     * sao convertidos logo (sem visitar as subexpressoes); as outras voltam a pilha, por baixo
+     * das suas subexpressoes, para serem convertidas depois destas.
+     */
+    private void enter(TugaParser.ExprContext ctx) {
+        Object value = values == null ? null : values.get(ctx);
+        if (value != null) {
+            result(literal(ctx, value));
+            return;
+        }
+
+        if (ctx instanceof TugaParser.IntContext c) {
+            result(add(TugaIR.INT, ctx, Integer.parseInt(c.INT().getText()), 0));
+        } else if (ctx instanceof TugaParser.RealContext) {
+            result(add(TugaIR.REAL, ctx, ir.addDouble(Double.parseDouble(ctx.getText())), 0));
+        } else if (ctx instanceof TugaParser.StringContext) {
+            String text = ctx.getText();
+            result(add(TugaIR.STRING, ctx, ir.addString(text.substring(1, text.length() - 1)), 0));
+        } else if (ctx instanceof TugaParser.BoolContext c) {
+            result(add(TugaIR.BOOL, ctx, c.BOOL().getText().equals("verdadeiro") ? 1 : 0, 0));
+        } else if (ctx instanceof TugaParser.ParensContext c) {
+            // sem no proprio: o no e o da expressao interior
+            push(c.expr(), false);
+        } else {
+            push(ctx, true);
+            // o operando esquerdo fica no topo, para ser convertido primeiro
+            for (int i = ctx.getChildCount() - 1; i >= 0; i--)
+                if (ctx.getChild(i) instanceof TugaParser.ExprContext e)
+                    push(e, false);
+        }
+    }
+
+    /**
+     * Segunda visita a uma expressao composta, com os nos das subexpressoes no topo da pilha.
+     */
+    private void exit(TugaParser.ExprContext ctx) {
+        if (ctx instanceof TugaParser.UminusContext) {
+            result(add(TugaIR.NEG, ctx, nodes[--numNodes], 0));
+            return;
+        }
+        if (ctx instanceof TugaParser.NotContext) {
+            result(add(TugaIR.NOT, ctx, nodes[--numNodes], 0));
+            return;
+        }
+
+        byte op;
+        if (ctx instanceof TugaParser.MulDivModContext c) {
+            op = switch (c.op.getType()) {
+                case TugaParser.MUL -> TugaIR.MUL;
+                case TugaParser.DIV -> TugaIR.DIV;
+                default -> TugaIR.MOD;
+            };
+        } else if (ctx instanceof TugaParser.AddSubContext c) {
+            op = c.op.getType() == TugaParser.ADD ? TugaIR.ADD : TugaIR.SUB;
+        } else if (ctx instanceof TugaParser.CompareContext c) {
+            op = switch (c.op.getType()) {
+                case TugaParser.LT -> TugaIR.LT;
+                case TugaParser.GT -> TugaIR.GT;
+                case TugaParser.LE -> TugaIR.LE;
+                default -> TugaIR.GE;
+            };
+        } else if (ctx instanceof TugaParser.EqNotEqContext c) {
+            op = c.op.getType() == TugaParser.EQ ? TugaIR.EQ : TugaIR.NE;
+        } else if (ctx instanceof TugaParser.AndContext) {
+            op = TugaIR.AND;
+        } else {
+            op = TugaIR.OR;
+        }
+        int right = nodes[--numNodes];
+        int left = nodes[--numNodes];
+        result(add(op, ctx, left, right));
+    }
+
+    /**
+     * Cria o literal de uma expressao com valor constante conhecido.
+     */
+    private int literal(TugaParser.ExprContext ctx, Object value) {
+        int node;
+        if (value instanceof Integer i)
+            node = add(TugaIR.INT, ctx, i, 0);
+        else if (value instanceof Double d)
+            node = add(TugaIR.REAL, ctx, ir.addDouble(d), 0);
+        else if (value instanceof Boolean b)
+            node = add(TugaIR.BOOL, ctx, b ? 1 : 0, 0);
+        else
+            node = add(TugaIR.STRING, ctx, ir.addString((String) value), 0);
+        if (!(ctx instanceof TugaParser.IntContext || ctx instanceof TugaParser.RealContext
+                || ctx instanceof TugaParser.BoolContext || ctx instanceof TugaParser.StringContext))
+            ir.setFolded(node);
+        return node;
+    }
+
+    private int add(byte op, TugaParser.ExprContext ctx, int left, int right) {
+        return ir.add(op, ctx.type, left, right, line(ctx), column(ctx));
+    }
+
+    private static int line(ParserRuleContext ctx) {
+        return ctx.getStart().getLine();
+    }
+
+    private static int column(ParserRuleContext ctx) {
+        return ctx.getStart().getCharPositionInLine() + 1;
+    }
+}
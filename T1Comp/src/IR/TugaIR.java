@@ -0,0 +1,244 @@
+package IR;
+
+import TypeChecker.TugaType;
+
+import java.util.Arrays;
+
+/**
+ * Representacao intermedia de um programa Tuga ja verificado, guardada em arrays: cada expressao
+ * e um numero, o indice do seu no, e os campos dos nos sao arrays indexados por esse numero.
+ * Os nos estao em pos-ordem (os filhos antes do pai) e os literais ja estao convertidos para o
+ * seu valor, pelo que a arvore sintatica e os tokens deixam de ser precisos depois de construida
+ * a representacao (ver Lowering).
+ *
+ * <p>Os parenteses nao tem no proprio: uma expressao entre parenteses e o no da expressao
+ * interior. Uma expressao com valor constante conhecido (ConstantFolder) e um literal com esse
+ * valor, marcado como avaliado se nao era ja um literal no codigo fonte.</p>
+ */
+public final class TugaIR {
+    // Operacao de cada no; os literais guardam o valor em left (INT, BOOL) ou o indice na
+    // tabela de reais ou de strings (REAL, STRING)
+    public static final byte INT = 0, REAL = 1, BOOL = 2, STRING = 3;
+    public static final byte NEG = 4, NOT = 5;
+    public static final byte MUL = 6, DIV = 7, MOD = 8, ADD = 9, SUB = 10;
+    public static final byte LT = 11, GT = 12, LE = 13, GE = 14, EQ = 15, NE = 16;
+    public static final byte AND = 17, OR = 18;
+
+    private static final TugaType[] TYPES = TugaType.values();
+
+    private byte[] op = new byte[64];
+    private byte[] type = new byte[64];
+    private int[] left = new int[64];
+    private int[] right = new int[64];
+    private int[] line = new int[64];
+    private int[] column = new int[64];
+    private boolean[] folded = new boolean[64];
+    private int size = 0;
+
+    private double[] doubles = new double[16];
+    private int numDoubles = 0;
+    private String[] strings = new String[16];
+    private int numStrings = 0;
+
+    // No raiz e posicao de cada estatistica, e posicao do programa
+    private int[] stats = new int[16];
+    private int[] statLine = new int[16];
+    private int[] statColumn = new int[16];
+    private int numStats = 0;
+    private int progLine, progColumn;
+
+    // Indica se as expressoes constantes foram avaliadas (os literais sao valores conhecidos)
+    private final boolean constantsKnown;
+
+    /**
+     * Construtor de uma representacao vazia.
+     *
+     * @param constantsKnown Se as expressoes constantes foram avaliadas.
+     */
+    TugaIR(boolean constantsKnown) {
+        this.constantsKnown = constantsKnown;
+    }
+
+    /**
+     * Acrescenta um no.
+     *
+     * @return Indice do no.
+     */
+    int add(byte operation, TugaType t, int l, int r, int ln, int col) {
+        if (size == op.length) {
+            int n = size * 2;
+            op = Arrays.copyOf(op, n);
+            type = Arrays.copyOf(type, n);
+            left = Arrays.copyOf(left, n);
+            right = Arrays.copyOf(right, n);
+            line = Arrays.copyOf(line, n);
+            column = Arrays.copyOf(column, n);
+            folded = Arrays.copyOf(folded, n);
+        }
+        op[size] = operation;
+        type[size] = (byte) t.ordinal();
+        left[size] = l;
+        right[size] = r;
+        line[size] = ln;
+        column[size] = col;
+        return size++;
+    }
+
+    void setFolded(int node) {
+        folded[node] = true;
+    }
+
+    int addDouble(double value) {
+        if (numDoubles == doubles.length)
+            doubles = Arrays.copyOf(doubles, numDoubles * 2);
+        doubles[numDoubles] = value;
+        return numDoubles++;
+    }
+
+    int addString(String value) {
+        if (numStrings == strings.length)
+            strings = Arrays.copyOf(strings, numStrings * 2);
+        strings[numStrings] = value;
+        return numStrings++;
+    }
+
+    void addStat(int root, int ln, int col) {
+        if (numStats == stats.length) {
+            stats = Arrays.copyOf(stats, numStats * 2);
+            statLine = Arrays.copyOf(statLine, numStats * 2);
+            statColumn = Arrays.copyOf(statColumn, numStats * 2);
+        }
+        stats[numStats] = root;
+        statLine[numStats] = ln;
+        statColumn[numStats] = col;
+        numStats++;
+    }
+
+    void setProgPosition(int ln, int col) {
+        progLine = ln;
+        progColumn = col;
+    }
+
+    /**
+     * Liberta o espaco que sobra nos arrays, depois de construida a representacao.
+     */
+    void trim() {
+        op = Arrays.copyOf(op, size);
+        type = Arrays.copyOf(type, size);
+        left = Arrays.copyOf(left, size);
+        right = Arrays.copyOf(right, size);
+        line = Arrays.copyOf(line, size);
+        column = Arrays.copyOf(column, size);
+        folded = Arrays.copyOf(folded, size);
+        doubles = Arrays.copyOf(doubles, numDoubles);
+        strings = Arrays.copyOf(strings, numStrings);
+        stats = Arrays.copyOf(stats, numStats);
+        statLine = Arrays.copyOf(statLine, numStats);
+        statColumn = Arrays.copyOf(statColumn, numStats);
+    }
+
+    /**
+     * @return Numero de nos.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true se as expressoes constantes foram avaliadas: um no e constante se e so se
+     * for um literal.
+     */
+    public boolean constantsKnown() {
+        return constantsKnown;
+    }
+
+    public byte op(int node) {
+        return op[node];
+    }
+
+    public TugaType type(int node) {
+        return TYPES[type[node]];
+    }
+
+    /**
+     * @return O primeiro (ou unico) operando do no.
+     */
+    public int left(int node) {
+        return left[node];
+    }
+
+    /**
+     * @return O segundo operando do no.
+     */
+    public int right(int node) {
+        return right[node];
+    }
+
+    public int line(int node) {
+        return line[node];
+    }
+
+    public int column(int node) {
+        return column[node];
+    }
+
+    /**
+     * @return true se o no e um literal.
+     */
+    public boolean isLiteral(int node) {
+        return op[node] <= STRING;
+    }
+
+    /**
+     * @return true se o no e o valor de uma expressao composta avaliada em tempo de compilacao.
+     */
+    public boolean isFolded(int node) {
+        return folded[node];
+    }
+
+    public int intValue(int node) {
+        return left[node];
+    }
+
+    public double doubleValue(int node) {
+        return doubles[left[node]];
+    }
+
+    public boolean boolValue(int node) {
+        return left[node] != 0;
+    }
+
+    /**
+     * @return O valor de um literal string, sem as aspas.
+     */
+    public String stringValue(int node) {
+        return strings[left[node]];
+    }
+
+    public int statCount() {
+        return numStats;
+    }
+
+    /**
+     * @return O no da expressao escrita pela estatistica.
+     */
+    public int stat(int i) {
+        return stats[i];
+    }
+
+    public int statLine(int i) {
+        return statLine[i];
+    }
+
+    public int statColumn(int i) {
+        return statColumn[i];
+    }
+
+    public int progLine() {
+        return progLine;
+    }
+
+    public int progColumn() {
+        return progColumn;
+    }
+}
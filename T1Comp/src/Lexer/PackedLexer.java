@@ -0,0 +1,311 @@
+package Lexer;
+
+import Tuga.TugaLexer;
+import org.antlr.v4.runtime.CharStream;
+
+import java.util.Arrays;
+
+/**
+ * Analisador lexico da lingua Tuga escrito a mao, com os mesmos tokens que o TugaLexer gerado
+ * pelo ANTLR a partir de Tuga.g4 (os tipos sao as constantes de TugaLexer).
+ *
+ * <p>Os tokens sao guardados em arrays paralelos (tipo, inicio e comprimento, em code points),
+ * sem um objeto por token; a linha e a coluna de cada token sao calculadas a partir da tabela
+ * com o inicio de cada linha. Tal como no ANTLR, cada token e o mais longo que se consegue
+ * reconhecer e os espacos e comentarios sao descartados.</p>
+ *
+ * <p>Os erros lexicos nao sao reportados: a analise para no primeiro e hasErrors() passa a ser
+ * true, para que o programa seja analisado pelo TugaLexer, que reporta os erros (e recupera
+ * deles) como sempre.</p>
+ */
+public final class PackedLexer {
+    private final CharStream input;
+    private final int size;
+
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int count = 0;
+
+    // Indice do primeiro caracter de cada linha (a linha 1 comeca em 0)
+    private int[] lineStarts = new int[64];
+    private int numLines = 1;
+
+    private boolean error = false;
+
+    /**
+     * Analisa o codigo fonte todo. No fim, o stream fica na posicao 0.
+     *
+     * @param input Codigo fonte.
+     */
+    public PackedLexer(CharStream input) {
+        this.input = input;
+        this.size = input.size();
+        int capacity = size / 4 + 16;
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        scan();
+        input.seek(0);
+    }
+
+    private void scan() {
+        int i = 0;
+        while (i < size) {
+            input.seek(i);
+            int c = input.LA(1);
+            int type;
+            int length = 1;
+            switch (c) {
+                case ' ', '\t', '\r' -> {
+                    i++;
+                    continue;
+                }
+                case '\n' -> {
+                    newLine(++i);
+                    continue;
+                }
+                case ';' -> type = TugaLexer.SEMI;
+                case '(' -> type = TugaLexer.LPAREN;
+                case ')' -> type = TugaLexer.RPAREN;
+                case '-' -> type = TugaLexer.SUB;
+                case '*' -> type = TugaLexer.MUL;
+                case '%' -> type = TugaLexer.MOD;
+                case '+' -> type = TugaLexer.ADD;
+                case '<' -> {
+                    type = TugaLexer.LT;
+                    if (input.LA(2) == '=') {
+                        type = TugaLexer.LE;
+                        length = 2;
+                    }
+                }
+                case '>' -> {
+                    type = TugaLexer.GT;
+                    if (input.LA(2) == '=') {
+                        type = TugaLexer.GE;
+                        length = 2;
+                    }
+                }
+                case '/' -> {
+                    int next = input.LA(2);
+                    if (next == '/') {
+                        i = lineCommentEnd(i);
+                        continue;
+                    }
+                    // sem o fim do comentario, '/*' sao os tokens '/' e '*'
+                    int end = next == '*' ? blockCommentEnd(i) : -1;
+                    if (end >= 0) {
+                        i = end;
+                        continue;
+                    }
+                    type = TugaLexer.DIV;
+                }
+                case '"' -> {
+                    int end = stringEnd(i);
+                    if (end < 0) {
+                        error = true;
+                        return;
+                    }
+                    type = TugaLexer.STR;
+                    length = end - i;
+                }
+                case 'e' -> {
+                    type = TugaLexer.E;
+                    if (matches("escreve")) {
+                        type = TugaLexer.ESCREVE;
+                        length = 7;
+                    }
+                }
+                case 'n' -> {
+                    type = TugaLexer.NAO;
+                    length = keyword("nao");
+                }
+                case 'i' -> {
+                    type = TugaLexer.EQ;
+                    length = keyword("igual");
+                }
+                case 'd' -> {
+                    type = TugaLexer.NE;
+                    length = keyword("diferente");
+                }
+                case 'o' -> {
+                    type = TugaLexer.OU;
+                    length = keyword("ou");
+                }
+                case 'v' -> {
+                    type = TugaLexer.BOOL;
+                    length = keyword("verdadeiro");
+                }
+                case 'f' -> {
+                    type = TugaLexer.BOOL;
+                    length = keyword("falso");
+                }
+                default -> {
+                    if (!isDigit(c)) {
+                        error = true;
+                        return;
+                    }
+                    // INT, ou DOUBLE se o '.' for seguido de digitos
+                    type = TugaLexer.INT;
+                    while (isDigit(input.LA(length + 1)))
+                        length++;
+                    if (input.LA(length + 1) == '.' && isDigit(input.LA(length + 2))) {
+                        type = TugaLexer.DOUBLE;
+                        length += 2;
+                        while (isDigit(input.LA(length + 1)))
+                            length++;
+                    }
+                }
+            }
+            if (length == 0) {
+                error = true;
+                return;
+            }
+            add(type, i, length);
+            i += length;
+        }
+    }
+
+    /**
+     * Reconhece uma palavra reservada (ou um BOOL); nenhuma outra palavra comeca pela mesma letra.
+     *
+     * @return O comprimento da palavra se for o texto na posicao atual, 0 se nao for.
+     */
+    private int keyword(String word) {
+        return matches(word) ? word.length() : 0;
+    }
+
+    private boolean matches(String word) {
+        for (int k = 0; k < word.length(); k++)
+            if (input.LA(k + 1) != word.charAt(k))
+                return false;
+        return true;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * '"' ~["]*? '"'; as mudancas de linha dentro da string ficam registadas.
+     *
+     * @return A posicao a seguir as aspas finais, -1 se a string nao terminar.
+     */
+    private int stringEnd(int start) {
+        for (int k = 2; start + k <= size; k++) {
+            int c = input.LA(k);
+            if (c == '"')
+                return start + k;
+            if (c == '\n')
+                newLine(start + k);
+        }
+        return -1;
+    }
+
+    /**
+     * '//' .*? (EOF | '\n')
+     *
+     * @return A posicao a seguir ao comentario.
+     */
+    private int lineCommentEnd(int start) {
+        for (int k = 3; start + k <= size; k++) {
+            if (input.LA(k) == '\n') {
+                newLine(start + k);
+                return start + k;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * '/*' .*? '*&#47;'; as mudancas de linha so ficam registadas se o comentario terminar.
+     *
+     * @return A posicao a seguir ao comentario, -1 se este nao terminar.
+     */
+    private int blockCommentEnd(int start) {
+        int lines = numLines;
+        for (int k = 3; start + k < size; k++) {
+            int c = input.LA(k);
+            if (c == '*' && input.LA(k + 1) == '/')
+                return start + k + 1;
+            if (c == '\n')
+                newLine(start + k);
+        }
+        numLines = lines;
+        return -1;
+    }
+
+    private void newLine(int start) {
+        if (numLines == lineStarts.length)
+            lineStarts = Arrays.copyOf(lineStarts, numLines * 2);
+        lineStarts[numLines++] = start;
+    }
+
+    private void add(int type, int start, int length) {
+        if (count == types.length) {
+            int n = count * 2;
+            types = Arrays.copyOf(types, n);
+            starts = Arrays.copyOf(starts, n);
+            lengths = Arrays.copyOf(lengths, n);
+        }
+        types[count] = type;
+        starts[count] = start;
+        lengths[count] = length;
+        count++;
+    }
+
+    /**
+     * @return true se foi encontrado um erro lexico (os tokens estao incompletos).
+     */
+    public boolean hasErrors() {
+        return error;
+    }
+
+    /**
+     * @return Numero de tokens (sem o EOF).
+     */
+    public int size() {
+        return count;
+    }
+
+    public int type(int token) {
+        return types[token];
+    }
+
+    /**
+     * @return Indice no codigo fonte do primeiro caracter do token.
+     */
+    public int start(int token) {
+        return starts[token];
+    }
+
+    public int length(int token) {
+        return lengths[token];
+    }
+
+    /**
+     * @return Linha, a partir de 1, da posicao dada do codigo fonte.
+     */
+    public int lineOf(int index) {
+        int line = Arrays.binarySearch(lineStarts, 0, numLines, index);
+        return line >= 0 ? line + 1 : -line - 1;
+    }
+
+    /**
+     * @return Indice do primeiro caracter da linha dada (a partir de 1).
+     */
+    public int lineStart(int line) {
+        return lineStarts[line - 1];
+    }
+
+    /**
+     * @return Numero de linhas do codigo fonte.
+     */
+    public int lineCount() {
+        return numLines;
+    }
+
+    public CharStream getInputStream() {
+        return input;
+    }
+}
@@ -0,0 +1,82 @@
+package Lexer;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * Adaptador que entrega os tokens de um PackedLexer ao TugaParser (atraves de um
+ * CommonTokenStream), como se viessem do TugaLexer: cada token e criado so quando e pedido, com
+ * o mesmo tipo, texto, indices, linha e coluna. No fim e devolvido o token EOF.
+ */
+public class PackedTokenSource implements TokenSource {
+    private final PackedLexer lexer;
+    private final Pair<TokenSource, CharStream> source;
+    private TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+
+    // Proximo token e linha atual (os tokens sao pedidos por ordem)
+    private int next = 0;
+    private int line = 1;
+
+    /**
+     * Construtor do adaptador.
+     *
+     * @param lexer Tokens do programa, sem erros lexicos.
+     */
+    public PackedTokenSource(PackedLexer lexer) {
+        this.lexer = lexer;
+        this.source = new Pair<>(this, lexer.getInputStream());
+    }
+
+    @Override
+    public Token nextToken() {
+        CharStream input = lexer.getInputStream();
+        if (next == lexer.size()) {
+            int end = input.size();
+            advanceLine(end);
+            return factory.create(source, Token.EOF, null, Token.DEFAULT_CHANNEL,
+                    end, end - 1, line, end - lexer.lineStart(line));
+        }
+        int start = lexer.start(next);
+        advanceLine(start);
+        Token token = factory.create(source, lexer.type(next), null, Token.DEFAULT_CHANNEL,
+                start, start + lexer.length(next) - 1, line, start - lexer.lineStart(line));
+        next++;
+        return token;
+    }
+
+    private void advanceLine(int index) {
+        while (line < lexer.lineCount() && lexer.lineStart(line + 1) <= index)
+            line++;
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        int index = next < lexer.size() ? lexer.start(next) : lexer.getInputStream().size();
+        return index - lexer.lineStart(line);
+    }
+
+    @Override
+    public CharStream getInputStream() {
+        return lexer.getInputStream();
+    }
+
+    @Override
+    public String getSourceName() {
+        return lexer.getInputStream().getSourceName();
+    }
+
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+}
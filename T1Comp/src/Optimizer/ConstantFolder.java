@@ -0,0 +1,261 @@
+package Optimizer;
+
+import Tuga.*;
+import TypeChecker.TugaType;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+/**
+ * Passo de otimizacao que avalia em tempo de compilacao as expressoes constantes da lingua Tuga.
+ * Corre depois do TugaTypeChecker e antes do CodeGen, anotando cada expressao com o seu valor
+ * (Integer, Double, Boolean ou String sem aspas) quando este pode ser calculado.
+ *
+ * <p>A avaliacao reproduz exatamente a semantica da Maquina Virtual: divisao e resto inteiros
+ * do Java, o epsilon de 10e-9 em deq/dneq/ddiv e a formatacao de Double.toString nas
+ * conversoes para string. As expressoes que dariam um erro de execucao (divisao por zero, ...)
+ * nao sao anotadas, pelo que o erro continua a acontecer durante a execucao.</p>
+ */
+public class ConstantFolder extends TugaBaseListener {
+    private final ParseTreeProperty<Object> values = new ParseTreeProperty<>();
+
+    /**
+     * Retorna a propriedade que associa os valores constantes as expressoes.
+     *
+     * @return A propriedade dos valores (sem entrada para as expressoes nao avaliadas).
+     */
+    public ParseTreeProperty<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Converte um valor inteiro ou real para real, como a instrucao itod.
+     */
+    private static double toDouble(Object v) {
+        return v instanceof Integer i ? i : (Double) v;
+    }
+
+    /**
+     * Converte um valor para string, como as instrucoes itos, dtos e btos.
+     */
+    private static String toStr(Object v) {
+        if (v instanceof Boolean b)
+            return b ? "verdadeiro" : "falso";
+        return v.toString();
+    }
+
+    /**
+     * Anota os literais inteiros (os que nao cabem num int ficam para o CodeGen).
+     *
+     * @param ctx Contexto do literal inteiro.
+     */
+    @Override
+    public void exitInt(TugaParser.IntContext ctx) {
+        try {
+            values.put(ctx, Integer.parseInt(ctx.INT().getText()));
+        } catch (NumberFormatException e) {
+            // nao avaliado
+        }
+    }
+
+    /**
+     * Anota os literais reais.
+     *
+     * @param ctx Contexto do literal real.
+     */
+    @Override
+    public void exitReal(TugaParser.RealContext ctx) {
+        values.put(ctx, Double.parseDouble(ctx.getText()));
+    }
+
+    /**
+     * Anota os literais booleanos.
+     *
+     * @param ctx Contexto do literal booleano.
+     */
+    @Override
+    public void exitBool(TugaParser.BoolContext ctx) {
+        values.put(ctx, ctx.BOOL().getText().equals("verdadeiro"));
+    }
+
+    /**
+     * Anota os literais de texto, sem as aspas.
+     *
+     * @param ctx Contexto do literal string.
+     */
+    @Override
+    public void exitString(TugaParser.StringContext ctx) {
+        String text = ctx.getText();
+        values.put(ctx, text.substring(1, text.length() - 1));
+    }
+
+    /**
+     * Propaga o valor de uma expressao entre parenteses.
+     *
+     * @param ctx Contexto dos parenteses.
+     */
+    @Override
+    public void exitParens(TugaParser.ParensContext ctx) {
+        Object v = values.get(ctx.expr());
+        if (v != null)
+            values.put(ctx, v);
+    }
+
+    /**
+     * Avalia a negacao aritmetica (iuminus/duminus).
+     *
+     * @param ctx Contexto do operador unario '-'.
+     */
+    @Override
+    public void exitUminus(TugaParser.UminusContext ctx) {
+        Object v = values.get(ctx.expr());
+        if (v instanceof Integer i)
+            values.put(ctx, -i);
+        else if (v instanceof Double d)
+            values.put(ctx, -d);
+    }
+
+    /**
+     * Avalia a negacao logica.
+     *
+     * @param ctx Contexto do operador 'nao'.
+     */
+    @Override
+    public void exitNot(TugaParser.NotContext ctx) {
+        Object v = values.get(ctx.expr());
+        if (v instanceof Boolean b)
+            values.put(ctx, !b);
+    }
+
+    /**
+     * Avalia multiplicacoes, divisoes e modulos; a divisao por zero nao e avaliada.
+     *
+     * @param ctx Contexto da operacao.
+     */
+    @Override
+    public void exitMulDivMod(TugaParser.MulDivModContext ctx) {
+        Object left = values.get(ctx.expr(0));
+        Object right = values.get(ctx.expr(1));
+        if (left == null || right == null)
+            return;
+
+        int op = ctx.op.getType();
+        if (ctx.type == TugaType.INTEIRO) {
+            int l = (Integer) left, r = (Integer) right;
+            switch (op) {
+                case TugaParser.MUL -> values.put(ctx, l * r);
+                case TugaParser.DIV -> { if (r != 0) values.put(ctx, l / r); }
+                case TugaParser.MOD -> { if (r != 0) values.put(ctx, l % r); }
+            }
+        } else {
+            double l = toDouble(left), r = toDouble(right);
+            switch (op) {
+                case TugaParser.MUL -> values.put(ctx, l * r);
+                case TugaParser.DIV -> { if (Math.abs(r) >= 10e-9) values.put(ctx, l / r); }
+            }
+        }
+    }
+
+    /**
+     * Avalia somas, subtracoes e concatenacoes de strings.
+     *
+     * @param ctx Contexto da operacao.
+     */
+    @Override
+    public void exitAddSub(TugaParser.AddSubContext ctx) {
+        Object left = values.get(ctx.expr(0));
+        Object right = values.get(ctx.expr(1));
+        if (left == null || right == null)
+            return;
+
+        boolean add = ctx.op.getType() == TugaParser.ADD;
+        switch (ctx.type) {
+            case STRING -> values.put(ctx, toStr(left) + toStr(right));
+            case INTEIRO -> values.put(ctx, add ? (Integer) left + (Integer) right : (Integer) left - (Integer) right);
+            case REAL -> values.put(ctx, add ? toDouble(left) + toDouble(right) : toDouble(left) - toDouble(right));
+            default -> { }
+        }
+    }
+
+    /**
+     * Avalia comparacoes; '>' e '>=' seguem o codigo gerado (negacao de '<=' e '<').
+     *
+     * @param ctx Contexto da comparacao.
+     */
+    @Override
+    public void exitCompare(TugaParser.CompareContext ctx) {
+        Object left = values.get(ctx.expr(0));
+        Object right = values.get(ctx.expr(1));
+        if (left == null || right == null)
+            return;
+
+        int op = ctx.op.getType();
+        boolean result;
+        if (left instanceof Integer l && right instanceof Integer r) {
+            result = switch (op) {
+                case TugaParser.LT -> l < r;
+                case TugaParser.LE -> l <= r;
+                case TugaParser.GT -> !(l <= r);
+                default -> !(l < r);
+            };
+        } else {
+            double l = toDouble(left), r = toDouble(right);
+            result = switch (op) {
+                case TugaParser.LT -> l < r;
+                case TugaParser.LE -> l <= r;
+                case TugaParser.GT -> !(l <= r);
+                default -> !(l < r);
+            };
+        }
+        values.put(ctx, result);
+    }
+
+    /**
+     * Avalia igualdades e diferencas, com o epsilon da VM para os reais.
+     *
+     * @param ctx Contexto da comparacao de igualdade ou diferenca.
+     */
+    @Override
+    public void exitEqNotEq(TugaParser.EqNotEqContext ctx) {
+        Object left = values.get(ctx.expr(0));
+        Object right = values.get(ctx.expr(1));
+        if (left == null || right == null)
+            return;
+
+        boolean equal;
+        if (left instanceof Integer l && right instanceof Integer r)
+            equal = l.intValue() == r.intValue();
+        else if (left instanceof Boolean || left instanceof String)
+            equal = left.equals(right);
+        else
+            equal = Math.abs(toDouble(left) - toDouble(right)) < 10e-9;
+        values.put(ctx, (ctx.op.getType() == TugaParser.EQ) == equal);
+    }
+
+    /**
+     * Avalia o operador logico 'e' (ambos os operandos sao sempre avaliados pela VM).
+     *
+     * @param ctx Contexto da operacao logica 'e'.
+     */
+    @Override
+    public void exitAnd(TugaParser.AndContext ctx) {
+        foldLogical(ctx, ctx.expr(0), ctx.expr(1), true);
+    }
+
+    /**
+     * Avalia o operador logico 'ou' (ambos os operandos sao sempre avaliados pela VM).
+     *
+     * @param ctx Contexto da operacao logica 'ou'.
+     */
+    @Override
+    public void exitOr(TugaParser.OrContext ctx) {
+        foldLogical(ctx, ctx.expr(0), ctx.expr(1), false);
+    }
+
+    private void foldLogical(ParseTree ctx, ParseTree leftExpr, ParseTree rightExpr, boolean and) {
+        Object left = values.get(leftExpr);
+        Object right = values.get(rightExpr);
+        if (left == null || right == null)
+            return;
+        values.put(ctx, and ? (Boolean) left && (Boolean) right : (Boolean) left || (Boolean) right);
+    }
+}
@@ -0,0 +1,321 @@
+package Optimizer;
+
+import VM.Instruction.Instruction;
+import VM.Instruction.Instruction1Arg;
+import VM.OpCode;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Otimizador peephole sobre a lista de instrucoes gerada pelo CodeGen.
+ * E guiado por uma tabela de regras declarativas: cada regra descreve uma sequencia de opcodes
+ * e a sequencia que a substitui. As regras sao aplicadas ate nao haver mais alteracoes (ponto
+ * fixo) e cada uma conta as vezes que foi aplicada.
+ *
+ * <p>As regras preservam a semantica da Maquina Virtual, incluindo os erros de execucao: uma
+ * operacao que falharia (divisao por zero) nunca e reescrita. Uma sequencia so e reescrita se
+ * nenhuma das suas instrucoes, exceto a primeira, for destino de um salto, e os destinos sao
+ * atualizados no fim de cada passagem.</p>
+ */
+public class PeepholeOptimizer {
+
+    /**
+     * Acesso a pool de constantes do programa otimizado.
+     */
+    public interface ConstantPool {
+        /**
+         * Retorna o valor de uma constante real.
+         *
+         * @param index Indice na pool de reais.
+         * @return Valor da constante.
+         */
+        double getDouble(int index);
+
+        /**
+         * Retorna o valor de uma constante string (sem aspas).
+         *
+         * @param index Indice na pool de strings.
+         * @return Valor da constante.
+         */
+        String getString(int index);
+
+        /**
+         * Adiciona uma constante real a pool, se esta ainda nao existir.
+         *
+         * @param value Valor da constante.
+         * @return Indice da constante na pool de reais.
+         */
+        int addDouble(double value);
+
+        /**
+         * Adiciona uma constante string (sem aspas) a pool, se esta ainda nao existir.
+         *
+         * @param value Valor da constante.
+         * @return Indice da constante na pool de strings.
+         */
+        int addString(String value);
+    }
+
+    /**
+     * Reescrita associada a uma regra.
+     */
+    @FunctionalInterface
+    public interface Rewrite {
+        /**
+         * Calcula a sequencia que substitui as instrucoes encontradas.
+         *
+         * @param match Instrucoes que correspondem ao padrao da regra.
+         * @param pool Pool de constantes do programa.
+         * @return Instrucoes de substituicao (possivelmente nenhuma), ou null se a regra nao se aplica.
+         */
+        List<Instruction> apply(Instruction[] match, ConstantPool pool);
+    }
+
+    /**
+     * Regra do otimizador: a sequencia {@code pattern} e substituida pelo resultado de {@code rewrite}.
+     *
+     * @param name Nome da regra, usado nas estatisticas.
+     * @param pattern Sequencia de opcodes a procurar.
+     * @param rewrite Reescrita da sequencia.
+     */
+    public record Rule(String name, OpCode[] pattern, Rewrite rewrite) {
+        public Rule(String name, Rewrite rewrite, OpCode... pattern) {
+            this(name, pattern, rewrite);
+        }
+    }
+
+    private static int arg(Instruction inst) {
+        return ((Instruction1Arg) inst).getArg();
+    }
+
+    private static List<Instruction> of(OpCode opc) {
+        return List.of(new Instruction(opc));
+    }
+
+    private static List<Instruction> of(OpCode opc, int arg) {
+        return List.of(new Instruction1Arg(opc, arg));
+    }
+
+    private static List<Instruction> bool(boolean b) {
+        return of(b ? OpCode.tconst : OpCode.fconst);
+    }
+
+    // Regras por defeito; para acrescentar uma otimizacao basta uma nova entrada
+    public static final List<Rule> DEFAULT_RULES = List.of(
+            // conversoes de constantes
+            new Rule("iconst itod -> dconst", (m, p) -> of(OpCode.dconst, p.addDouble(arg(m[0]))),
+                    OpCode.iconst, OpCode.itod),
+            new Rule("iconst itos -> sconst", (m, p) -> of(OpCode.sconst, p.addString(Integer.toString(arg(m[0])))),
+                    OpCode.iconst, OpCode.itos),
+            new Rule("dconst dtos -> sconst",
+                    (m, p) -> of(OpCode.sconst, p.addString(Double.toString(p.getDouble(arg(m[0]))))),
+                    OpCode.dconst, OpCode.dtos),
+            new Rule("tconst btos -> sconst", (m, p) -> of(OpCode.sconst, p.addString("verdadeiro")),
+                    OpCode.tconst, OpCode.btos),
+            new Rule("fconst btos -> sconst", (m, p) -> of(OpCode.sconst, p.addString("falso")),
+                    OpCode.fconst, OpCode.btos),
+
+            // negacoes
+            new Rule("not not -> ", (m, p) -> List.of(), OpCode.not, OpCode.not),
+            new Rule("tconst not -> fconst", (m, p) -> of(OpCode.fconst), OpCode.tconst, OpCode.not),
+            new Rule("fconst not -> tconst", (m, p) -> of(OpCode.tconst), OpCode.fconst, OpCode.not),
+            new Rule("iconst iuminus -> iconst", (m, p) -> of(OpCode.iconst, -arg(m[0])), OpCode.iconst, OpCode.iuminus),
+            new Rule("dconst duminus -> dconst", (m, p) -> of(OpCode.dconst, p.addDouble(-p.getDouble(arg(m[0])))),
+                    OpCode.dconst, OpCode.duminus),
+
+            // comparacoes seguidas de 'nao': usa a comparacao inversa
+            new Rule("ieq not -> ineq", (m, p) -> of(OpCode.ineq), OpCode.ieq, OpCode.not),
+            new Rule("ineq not -> ieq", (m, p) -> of(OpCode.ieq), OpCode.ineq, OpCode.not),
+            new Rule("deq not -> dneq", (m, p) -> of(OpCode.dneq), OpCode.deq, OpCode.not),
+            new Rule("dneq not -> deq", (m, p) -> of(OpCode.deq), OpCode.dneq, OpCode.not),
+            new Rule("beq not -> bneq", (m, p) -> of(OpCode.bneq), OpCode.beq, OpCode.not),
+            new Rule("bneq not -> beq", (m, p) -> of(OpCode.beq), OpCode.bneq, OpCode.not),
+            new Rule("seq not -> sneq", (m, p) -> of(OpCode.sneq), OpCode.seq, OpCode.not),
+            new Rule("sneq not -> seq", (m, p) -> of(OpCode.seq), OpCode.sneq, OpCode.not),
+
+            // operacoes entre duas constantes
+            new Rule("iconst iconst iadd -> iconst", (m, p) -> of(OpCode.iconst, arg(m[0]) + arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.iadd),
+            new Rule("iconst iconst isub -> iconst", (m, p) -> of(OpCode.iconst, arg(m[0]) - arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.isub),
+            new Rule("iconst iconst imult -> iconst", (m, p) -> of(OpCode.iconst, arg(m[0]) * arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.imult),
+            new Rule("iconst iconst idiv -> iconst",
+                    (m, p) -> arg(m[1]) == 0 ? null : of(OpCode.iconst, arg(m[0]) / arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.idiv),
+            new Rule("iconst iconst imod -> iconst",
+                    (m, p) -> arg(m[1]) == 0 ? null : of(OpCode.iconst, arg(m[0]) % arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.imod),
+            new Rule("iconst iconst ieq -> bconst", (m, p) -> bool(arg(m[0]) == arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.ieq),
+            new Rule("iconst iconst ineq -> bconst", (m, p) -> bool(arg(m[0]) != arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.ineq),
+            new Rule("iconst iconst ilt -> bconst", (m, p) -> bool(arg(m[0]) < arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.ilt),
+            new Rule("iconst iconst ileq -> bconst", (m, p) -> bool(arg(m[0]) <= arg(m[1])),
+                    OpCode.iconst, OpCode.iconst, OpCode.ileq),
+            new Rule("dconst dconst dadd -> dconst",
+                    (m, p) -> of(OpCode.dconst, p.addDouble(p.getDouble(arg(m[0])) + p.getDouble(arg(m[1])))),
+                    OpCode.dconst, OpCode.dconst, OpCode.dadd),
+            new Rule("dconst dconst dsub -> dconst",
+                    (m, p) -> of(OpCode.dconst, p.addDouble(p.getDouble(arg(m[0])) - p.getDouble(arg(m[1])))),
+                    OpCode.dconst, OpCode.dconst, OpCode.dsub),
+            new Rule("dconst dconst dmult -> dconst",
+                    (m, p) -> of(OpCode.dconst, p.addDouble(p.getDouble(arg(m[0])) * p.getDouble(arg(m[1])))),
+                    OpCode.dconst, OpCode.dconst, OpCode.dmult),
+            new Rule("sconst sconst sconcat -> sconst",
+                    (m, p) -> of(OpCode.sconst, p.addString(p.getString(arg(m[0])) + p.getString(arg(m[1])))),
+                    OpCode.sconst, OpCode.sconst, OpCode.sconcat),
+
+            // saltos condicionais sobre constantes
+            new Rule("tconst jumpf -> ", (m, p) -> List.of(), OpCode.tconst, OpCode.jumpf),
+            new Rule("fconst jumpt -> ", (m, p) -> List.of(), OpCode.fconst, OpCode.jumpt),
+            new Rule("fconst jumpf -> jump", (m, p) -> of(OpCode.jump, arg(m[1])), OpCode.fconst, OpCode.jumpf),
+            new Rule("tconst jumpt -> jump", (m, p) -> of(OpCode.jump, arg(m[1])), OpCode.tconst, OpCode.jumpt)
+    );
+
+    private final List<Rule> rules;
+    private final long[] hits;
+    private int passes = 0;
+    private int instructionsBefore = 0;
+    private int instructionsAfter = 0;
+
+    /**
+     * Construtor do otimizador com as regras por defeito.
+     */
+    public PeepholeOptimizer() {
+        this(DEFAULT_RULES);
+    }
+
+    /**
+     * Construtor do otimizador com uma tabela de regras propria.
+     *
+     * @param rules Regras, por ordem de prioridade.
+     */
+    public PeepholeOptimizer(List<Rule> rules) {
+        this.rules = rules;
+        this.hits = new long[rules.size()];
+    }
+
+    /**
+     * Aplica as regras a lista de instrucoes ate atingir o ponto fixo.
+     * Cada passagem percorre o codigo uma vez, mantendo o resultado numa pilha: depois de
+     * acrescentar uma instrucao, as regras sao testadas sobre o fim do resultado, pelo que as
+     * reescritas em cadeia sao feitas na mesma passagem.
+     *
+     * @param code Instrucoes do programa (alteradas no proprio lugar).
+     * @param pool Pool de constantes do programa.
+     * @return Para cada indice do codigo original (e para o fim do codigo), o indice da primeira
+     *         instrucao do resultado que dele provem; exato para as instrucoes nao reescritas.
+     */
+    public int[] optimize(ArrayList<Instruction> code, ConstantPool pool) {
+        if (instructionsBefore == 0)
+            instructionsBefore = code.size();
+        int[] indexMap = new int[code.size() + 1];
+        for (int i = 0; i < indexMap.length; i++)
+            indexMap[i] = i;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            passes++;
+            // destinos dos saltos, no codigo de entrada e no resultado
+            int n = code.size();
+            boolean[] targets = new boolean[n + 1];
+            boolean hasJumps = false;
+            for (Instruction inst : code)
+                if (inst.getOpCode().isJump()) {
+                    targets[arg(inst)] = true;
+                    hasJumps = true;
+                }
+            int[] newIndex = new int[n + 1];
+            BitSet outTargets = new BitSet();
+
+            ArrayList<Instruction> out = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                newIndex[i] = out.size();
+                if (targets[i])
+                    outTargets.set(out.size());
+                out.add(code.get(i));
+                while (rewriteTail(out, outTargets, pool))
+                    changed = true;
+            }
+            newIndex[n] = out.size();
+            if (hasJumps)
+                for (int i = 0; i < out.size(); i++)
+                    if (out.get(i).getOpCode().isJump())
+                        out.set(i, new Instruction1Arg(out.get(i).getOpCode(), newIndex[arg(out.get(i))]));
+            code.clear();
+            code.addAll(out);
+            for (int i = 0; i < indexMap.length; i++)
+                indexMap[i] = newIndex[Math.min(indexMap[i], n)];
+        }
+        instructionsAfter = code.size();
+        // uma instrucao reescrita pode ter ficado com um indice que a reescrita seguinte encurtou
+        indexMap[indexMap.length - 1] = code.size();
+        for (int i = indexMap.length - 2; i >= 0; i--)
+            indexMap[i] = Math.min(indexMap[i], indexMap[i + 1]);
+        return indexMap;
+    }
+
+    /**
+     * Aplica a primeira regra que corresponde ao fim da lista.
+     *
+     * @return true se alguma regra foi aplicada.
+     */
+    private boolean rewriteTail(ArrayList<Instruction> out, BitSet targets, ConstantPool pool) {
+        for (int r = 0; r < rules.size(); r++) {
+            OpCode[] pattern = rules.get(r).pattern();
+            int start = out.size() - pattern.length;
+            if (start < 0)
+                continue;
+            int k = 0;
+            while (k < pattern.length && out.get(start + k).getOpCode() == pattern[k]
+                    && (k == 0 || !targets.get(start + k))) k++;
+            if (k < pattern.length)
+                continue;
+
+            Instruction[] match = out.subList(start, out.size()).toArray(new Instruction[0]);
+            List<Instruction> replacement = rules.get(r).rewrite().apply(match, pool);
+            if (replacement == null)
+                continue;
+            out.subList(start, out.size()).clear();
+            out.addAll(replacement);
+            hits[r]++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Retorna o numero de vezes que uma regra foi aplicada.
+     *
+     * @param name Nome da regra.
+     * @return Numero de aplicacoes (0 se a regra nao existir).
+     */
+    public long getHits(String name) {
+        for (int r = 0; r < rules.size(); r++)
+            if (rules.get(r).name().equals(name))
+                return hits[r];
+        return 0;
+    }
+
+    /**
+     * Converte as estatisticas do otimizador para texto: numero de instrucoes antes e depois,
+     * passagens ate ao ponto fixo e aplicacoes de cada regra.
+     *
+     * @return Resumo do otimizador.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*** Peephole optimizer ***\n");
+        sb.append("instructions: ").append(instructionsBefore).append(" -> ").append(instructionsAfter).append('\n');
+        sb.append("passes: ").append(passes).append('\n');
+        for (int r = 0; r < rules.size(); r++)
+            if (hits[r] > 0)
+                sb.append(String.format("  %10d  %s%n", hits[r], rules.get(r).name()));
+        return sb.toString();
+    }
+}
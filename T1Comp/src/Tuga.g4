@@ -1,5 +1,7 @@
 grammar Tuga;
 
+options { contextSuperClass = TypeChecker.TypedContext; }
+
 prog   : stat+ EOF ;
 
 stat   : 'escreve' expr ';' ;
@@ -19,6 +21,25 @@ expr   : '(' expr ')'                                       # Parens
        | STR                                                # String
        ;
 
+ESCREVE  : 'escreve' ;
+SEMI     : ';' ;
+LPAREN   : '(' ;
+RPAREN   : ')' ;
+SUB      : '-' ;
+NAO      : 'nao' ;
+MUL      : '*' ;
+DIV      : '/' ;
+MOD      : '%' ;
+ADD      : '+' ;
+LT       : '<' ;
+GT       : '>' ;
+LE       : '<=' ;
+GE       : '>=' ;
+EQ       : 'igual' ;
+NE       : 'diferente' ;
+E        : 'e' ;
+OU       : 'ou' ;
+
 INT      : DIGIT+ ; //integer
 BOOL     : 'verdadeiro' | 'falso' ;  //boolean
 DOUBLE   : DIGIT+'.'DIGIT+ ; //double/real
@@ -17,9 +17,9 @@ public class TugaLexer extends Lexer {
 	protected static final PredictionContextCache _sharedContextCache =
 		new PredictionContextCache();
 	public static final int
-		T__0=1, T__1=2, T__2=3, T__3=4, T__4=5, T__5=6, T__6=7, T__7=8, T__8=9, 
-		T__9=10, T__10=11, T__11=12, T__12=13, T__13=14, T__14=15, T__15=16, T__16=17, 
-		T__17=18, INT=19, BOOL=20, DOUBLE=21, STR=22, WS=23, SL_COMMENT=24, ML_COMMENT=25;
+		ESCREVE=1, SEMI=2, LPAREN=3, RPAREN=4, SUB=5, NAO=6, MUL=7, DIV=8, MOD=9, 
+		ADD=10, LT=11, GT=12, LE=13, GE=14, EQ=15, NE=16, E=17, OU=18, INT=19, 
+		BOOL=20, DOUBLE=21, STR=22, WS=23, SL_COMMENT=24, ML_COMMENT=25;
 	public static String[] channelNames = {
 		"DEFAULT_TOKEN_CHANNEL", "HIDDEN"
 	};
@@ -30,10 +30,9 @@ public class TugaLexer extends Lexer {
 
 	private static String[] makeRuleNames() {
 		return new String[] {
-			"T__0", "T__1", "T__2", "T__3", "T__4", "T__5", "T__6", "T__7", "T__8", 
-			"T__9", "T__10", "T__11", "T__12", "T__13", "T__14", "T__15", "T__16", 
-			"T__17", "INT", "BOOL", "DOUBLE", "STR", "WS", "SL_COMMENT", "ML_COMMENT", 
-			"DIGIT", "CHAR"
+			"ESCREVE", "SEMI", "LPAREN", "RPAREN", "SUB", "NAO", "MUL", "DIV", "MOD", 
+			"ADD", "LT", "GT", "LE", "GE", "EQ", "NE", "E", "OU", "INT", "BOOL", 
+			"DOUBLE", "STR", "WS", "SL_COMMENT", "ML_COMMENT", "DIGIT", "CHAR"
 		};
 	}
 	public static final String[] ruleNames = makeRuleNames();
@@ -48,9 +47,9 @@ public class TugaLexer extends Lexer {
 	private static final String[] _LITERAL_NAMES = makeLiteralNames();
 	private static String[] makeSymbolicNames() {
 		return new String[] {
-			null, null, null, null, null, null, null, null, null, null, null, null, 
-			null, null, null, null, null, null, null, "INT", "BOOL", "DOUBLE", "STR", 
-			"WS", "SL_COMMENT", "ML_COMMENT"
+			null, "ESCREVE", "SEMI", "LPAREN", "RPAREN", "SUB", "NAO", "MUL", "DIV", 
+			"MOD", "ADD", "LT", "GT", "LE", "GE", "EQ", "NE", "E", "OU", "INT", "BOOL", 
+			"DOUBLE", "STR", "WS", "SL_COMMENT", "ML_COMMENT"
 		};
 	}
 	private static final String[] _SYMBOLIC_NAMES = makeSymbolicNames();
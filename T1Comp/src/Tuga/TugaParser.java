@@ -17,9 +17,9 @@ public class TugaParser extends Parser {
 	protected static final PredictionContextCache _sharedContextCache =
 		new PredictionContextCache();
 	public static final int
-		T__0=1, T__1=2, T__2=3, T__3=4, T__4=5, T__5=6, T__6=7, T__7=8, T__8=9, 
-		T__9=10, T__10=11, T__11=12, T__12=13, T__13=14, T__14=15, T__15=16, T__16=17, 
-		T__17=18, INT=19, BOOL=20, DOUBLE=21, STR=22, WS=23, SL_COMMENT=24, ML_COMMENT=25;
+		ESCREVE=1, SEMI=2, LPAREN=3, RPAREN=4, SUB=5, NAO=6, MUL=7, DIV=8, MOD=9, 
+		ADD=10, LT=11, GT=12, LE=13, GE=14, EQ=15, NE=16, E=17, OU=18, INT=19, 
+		BOOL=20, DOUBLE=21, STR=22, WS=23, SL_COMMENT=24, ML_COMMENT=25;
 	public static final int
 		RULE_prog = 0, RULE_stat = 1, RULE_expr = 2;
 	private static String[] makeRuleNames() {
@@ -39,9 +39,9 @@ public class TugaParser extends Parser {
 	private static final String[] _LITERAL_NAMES = makeLiteralNames();
 	private static String[] makeSymbolicNames() {
 		return new String[] {
-			null, null, null, null, null, null, null, null, null, null, null, null, 
-			null, null, null, null, null, null, null, "INT", "BOOL", "DOUBLE", "STR", 
-			"WS", "SL_COMMENT", "ML_COMMENT"
+			null, "ESCREVE", "SEMI", "LPAREN", "RPAREN", "SUB", "NAO", "MUL", "DIV", 
+			"MOD", "ADD", "LT", "GT", "LE", "GE", "EQ", "NE", "E", "OU", "INT", "BOOL", 
+			"DOUBLE", "STR", "WS", "SL_COMMENT", "ML_COMMENT"
 		};
 	}
 	private static final String[] _SYMBOLIC_NAMES = makeSymbolicNames();
@@ -96,7 +96,7 @@ public class TugaParser extends Parser {
 	}
 
 	@SuppressWarnings("CheckReturnValue")
-	public static class ProgContext extends ParserRuleContext {
+	public static class ProgContext extends TypeChecker.TypedContext {
 		public TerminalNode EOF() { return getToken(TugaParser.EOF, 0); }
 		public List<StatContext> stat() {
 			return getRuleContexts(StatContext.class);
@@ -143,7 +143,7 @@ public class TugaParser extends Parser {
 				setState(9); 
 				_errHandler.sync(this);
 				_la = _input.LA(1);
-			} while ( _la==T__0 );
+			} while ( _la==ESCREVE );
 			setState(11);
 			match(EOF);
 			}
@@ -160,10 +160,12 @@ public class TugaParser extends Parser {
 	}
 
 	@SuppressWarnings("CheckReturnValue")
-	public static class StatContext extends ParserRuleContext {
+	public static class StatContext extends TypeChecker.TypedContext {
+		public TerminalNode ESCREVE() { return getToken(TugaParser.ESCREVE, 0); }
 		public ExprContext expr() {
 			return getRuleContext(ExprContext.class,0);
 		}
+		public TerminalNode SEMI() { return getToken(TugaParser.SEMI, 0); }
 		public StatContext(ParserRuleContext parent, int invokingState) {
 			super(parent, invokingState);
 		}
@@ -190,11 +192,11 @@ public class TugaParser extends Parser {
 			enterOuterAlt(_localctx, 1);
 			{
 			setState(13);
-			match(T__0);
+			match(ESCREVE);
 			setState(14);
 			expr(0);
 			setState(15);
-			match(T__1);
+			match(SEMI);
 			}
 		}
 		catch (RecognitionException re) {
@@ -209,7 +211,7 @@ public class TugaParser extends Parser {
 	}
 
 	@SuppressWarnings("CheckReturnValue")
-	public static class ExprContext extends ParserRuleContext {
+	public static class ExprContext extends TypeChecker.TypedContext {
 		public ExprContext(ParserRuleContext parent, int invokingState) {
 			super(parent, invokingState);
 		}
@@ -228,6 +230,7 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode OU() { return getToken(TugaParser.OU, 0); }
 		public OrContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -252,6 +255,8 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode ADD() { return getToken(TugaParser.ADD, 0); }
+		public TerminalNode SUB() { return getToken(TugaParser.SUB, 0); }
 		public AddSubContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -269,9 +274,11 @@ public class TugaParser extends Parser {
 	}
 	@SuppressWarnings("CheckReturnValue")
 	public static class ParensContext extends ExprContext {
+		public TerminalNode LPAREN() { return getToken(TugaParser.LPAREN, 0); }
 		public ExprContext expr() {
 			return getRuleContext(ExprContext.class,0);
 		}
+		public TerminalNode RPAREN() { return getToken(TugaParser.RPAREN, 0); }
 		public ParensContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -289,6 +296,7 @@ public class TugaParser extends Parser {
 	}
 	@SuppressWarnings("CheckReturnValue")
 	public static class UminusContext extends ExprContext {
+		public TerminalNode SUB() { return getToken(TugaParser.SUB, 0); }
 		public ExprContext expr() {
 			return getRuleContext(ExprContext.class,0);
 		}
@@ -345,6 +353,7 @@ public class TugaParser extends Parser {
 	}
 	@SuppressWarnings("CheckReturnValue")
 	public static class NotContext extends ExprContext {
+		public TerminalNode NAO() { return getToken(TugaParser.NAO, 0); }
 		public ExprContext expr() {
 			return getRuleContext(ExprContext.class,0);
 		}
@@ -372,6 +381,9 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode MUL() { return getToken(TugaParser.MUL, 0); }
+		public TerminalNode DIV() { return getToken(TugaParser.DIV, 0); }
+		public TerminalNode MOD() { return getToken(TugaParser.MOD, 0); }
 		public MulDivModContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -396,6 +408,8 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode EQ() { return getToken(TugaParser.EQ, 0); }
+		public TerminalNode NE() { return getToken(TugaParser.NE, 0); }
 		public EqNotEqContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -437,6 +451,7 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode E() { return getToken(TugaParser.E, 0); }
 		public AndContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -479,6 +494,10 @@ public class TugaParser extends Parser {
 		public ExprContext expr(int i) {
 			return getRuleContext(ExprContext.class,i);
 		}
+		public TerminalNode LT() { return getToken(TugaParser.LT, 0); }
+		public TerminalNode GT() { return getToken(TugaParser.GT, 0); }
+		public TerminalNode LE() { return getToken(TugaParser.LE, 0); }
+		public TerminalNode GE() { return getToken(TugaParser.GE, 0); }
 		public CompareContext(ExprContext ctx) { copyFrom(ctx); }
 		@Override
 		public void enterRule(ParseTreeListener listener) {
@@ -514,38 +533,38 @@ public class TugaParser extends Parser {
 			setState(30);
 			_errHandler.sync(this);
 			switch (_input.LA(1)) {
-			case T__2:
+			case LPAREN:
 				{
 				_localctx = new ParensContext(_localctx);
 				_ctx = _localctx;
 				_prevctx = _localctx;
 
 				setState(18);
-				match(T__2);
+				match(LPAREN);
 				setState(19);
 				expr(0);
 				setState(20);
-				match(T__3);
+				match(RPAREN);
 				}
 				break;
-			case T__4:
+			case SUB:
 				{
 				_localctx = new UminusContext(_localctx);
 				_ctx = _localctx;
 				_prevctx = _localctx;
 				setState(22);
-				match(T__4);
+				match(SUB);
 				setState(23);
 				expr(12);
 				}
 				break;
-			case T__5:
+			case NAO:
 				{
 				_localctx = new NotContext(_localctx);
 				_ctx = _localctx;
 				_prevctx = _localctx;
 				setState(24);
-				match(T__5);
+				match(NAO);
 				setState(25);
 				expr(11);
 				}
@@ -631,7 +650,7 @@ public class TugaParser extends Parser {
 						setState(36);
 						((AddSubContext)_localctx).op = _input.LT(1);
 						_la = _input.LA(1);
-						if ( !(_la==T__4 || _la==T__9) ) {
+						if ( !(_la==SUB || _la==ADD) ) {
 							((AddSubContext)_localctx).op = (Token)_errHandler.recoverInline(this);
 						}
 						else {
@@ -673,7 +692,7 @@ public class TugaParser extends Parser {
 						setState(42);
 						((EqNotEqContext)_localctx).op = _input.LT(1);
 						_la = _input.LA(1);
-						if ( !(_la==T__14 || _la==T__15) ) {
+						if ( !(_la==EQ || _la==NE) ) {
 							((EqNotEqContext)_localctx).op = (Token)_errHandler.recoverInline(this);
 						}
 						else {
@@ -692,7 +711,7 @@ public class TugaParser extends Parser {
 						setState(44);
 						if (!(precpred(_ctx, 6))) throw new FailedPredicateException(this, "precpred(_ctx, 6)");
 						setState(45);
-						match(T__16);
+						match(E);
 						setState(46);
 						expr(7);
 						}
@@ -704,7 +723,7 @@ public class TugaParser extends Parser {
 						setState(47);
 						if (!(precpred(_ctx, 5))) throw new FailedPredicateException(this, "precpred(_ctx, 5)");
 						setState(48);
-						match(T__17);
+						match(OU);
 						setState(49);
 						expr(6);
 						}
@@ -2,11 +2,29 @@ import Tuga.*;
 import TypeChecker.*;
 import ErrorListener.*;
 import CodeGenerator.*;
+import Optimizer.*;
+import IR.*;
+import Lexer.*;
 
 import VM.VM;
+import VM.Engine;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.LexerNoViableAltException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
@@ -14,6 +32,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class TugaCompileAndRun {
     public static void main(String[] args) throws Exception {
@@ -21,11 +43,69 @@ public class TugaCompileAndRun {
         boolean showLexerErrors = false;
         boolean showParserErrors = false;
         boolean showTypeCheckingErrors = false;
+        boolean showStats = false;
+        boolean profile = false;
+        boolean fusion = true;
+        boolean folding = true;
+        boolean peephole = true;
+        boolean fused = false;
+        boolean packedLexer = true;
+        boolean prattParser = true;
+        boolean sll = true;
+        boolean streaming = false;
+        boolean debugInfo = true;
+        // ficheiro onde guardar os bytecodes (null: o programa passa para a VM so em memoria)
+        String bytecodesFile = null;
+        // tamanho da pilha de chamadas da thread da analise sintatica, em MB
+        long parserStack = 1024;
+        // numero de erros (lexicos, sintaticos e de tipo) a partir do qual a compilacao para (0: sem limite)
+        int maxErrors = 0;
+
+        Engine engine = Engine.INTERPRETER;
 
         String inputFile = null;
 
-        if (args.length>0){
-            inputFile = args[0];
+        for (String arg : args) {
+            if (arg.startsWith("--engine="))
+                engine = Engine.parse(arg.substring("--engine=".length()));
+            else if (arg.equals("--stats"))
+                showStats = true;
+            else if (arg.equals("--profile"))
+                profile = true;
+            else if (arg.equals("--no-fusion"))
+                fusion = false;
+            else if (arg.equals("--no-folding"))
+                folding = false;
+            else if (arg.equals("--no-peephole"))
+                peephole = false;
+            else if (arg.equals("--fused"))
+                fused = true;
+            else if (arg.equals("--antlr-lexer"))
+                packedLexer = false;
+            else if (arg.equals("--antlr-parser"))
+                prattParser = false;
+            else if (arg.equals("--no-sll"))
+                sll = false;
+            else if (arg.equals("--stream"))
+                streaming = true;
+            else if (arg.equals("--no-debug-info"))
+                debugInfo = false;
+            else if (arg.startsWith("--parser-stack="))
+                parserStack = Long.parseLong(arg.substring("--parser-stack=".length()));
+            else if (arg.startsWith("--max-errors="))
+                maxErrors = Integer.parseInt(arg.substring("--max-errors=".length()));
+            else if (arg.equals("--save-bytecodes"))
+                bytecodesFile = "bytecodes";
+            else if (arg.startsWith("--save-bytecodes="))
+                bytecodesFile = arg.substring("--save-bytecodes=".length());
+            else
+                inputFile = arg;
+        }
+
+        if (profile && engine != Engine.INTERPRETER) {
+            // so o interpretador de referencia regista o perfil; com outro motor sairia vazio
+            System.err.println("--profile so pode ser usado com --engine=interpreter");
+            System.exit(1);
         }
 
         InputStream is = System.in;
@@ -35,61 +115,324 @@ public class TugaCompileAndRun {
                 is = new FileInputStream(inputFile);
             }
 
-            CharStream input = CharStreams.fromStream(is);
+            long stackSize = parserStack * 1024 * 1024;
 
-            ErrorListener el = new ErrorListener(showLexerErrors,showParserErrors);
+            if (streaming) {
+                // compilacao por estatistica: nem o codigo fonte, nem os tokens, nem a arvore
+                // sintatica, nem o codigo gerado ficam todos em memoria
+                String file = bytecodesFile;
+                if (file == null) {
+                    File tmp = File.createTempFile("tuga", ".bc");
+                    tmp.deleteOnExit();
+                    file = tmp.getPath();
+                }
 
-            TugaLexer lexer = new TugaLexer(input);
+                Diagnostics diagnostics = new Diagnostics(maxErrors);
+                ErrorListener el = new ErrorListener(showLexerErrors,showParserErrors,diagnostics);
+                TugaTypeChecker typeChecker = new TugaTypeChecker(showTypeCheckingErrors, diagnostics);
+                PeepholeOptimizer optimizer = peephole ? new PeepholeOptimizer() : null;
+                CodeGen codeGen = new CodeGen();
+                codeGen.setDebugInfo(debugInfo);
+                codeGen.addMetadata("source", inputFile != null ? inputFile : "<stdin>");
 
-            lexer.removeErrorListeners();
-            lexer.addErrorListener(el);
+                InputStream source = is;
+                try (BytecodeWriter out = new BytecodeWriter(file, debugInfo)) {
+                    StreamingCodeGen streamingCodeGen = new StreamingCodeGen(el, typeChecker, folding, optimizer, codeGen, out);
+                    try {
+                        onParserThread(stackSize, () -> parseStreaming(source, el, streamingCodeGen));
+                    } catch (Diagnostics.LimitReached e) {
+                        // a compilacao parou no erro que atingiu o limite
+                    }
+                    if (el.getNumLexerErrors() == 0 && el.getNumParsingErrors() == 0 && !typeChecker.hasErrors())
+                        codeGen.finish(out);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
 
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
+                boolean syntaxErrors = el.getNumLexerErrors() > 0 || el.getNumParsingErrors() > 0;
+                if (syntaxErrors)
+                    diagnostics.discardTypeErrors();
+                diagnostics.flush();
+                if (syntaxErrors || typeChecker.hasErrors()) {
+                    if (el.getNumLexerErrors() > 0) {
+                        if (!showLexerErrors)
+                            System.out.println("Input has lexical errors");
+                    } else if (el.getNumParsingErrors() > 0) {
+                        if (!showParserErrors)
+                            System.out.println("Input has parsing errors");
+                    } else if (!showTypeCheckingErrors) {
+                        System.out.println("Input has type checking errors");
+                    }
+                    new File(file).delete();
+                    return;
+                }
 
-            TugaParser parser = new TugaParser(tokens);
-            parser.removeErrorListeners();
-            parser.addErrorListener(el);
+                if (showStats && optimizer != null)
+                    System.err.print(optimizer);
+                run(new VM(file, engine), fusion, profile);
+                return;
+            }
 
-            ParseTree tree = parser.prog();
+            CharStream input = CharStreams.fromStream(is);
+            PackedLexer tokens = packedLexer ? new PackedLexer(input) : null;
 
-            if (el.getNumLexerErrors() > 0) {
-                if (!showLexerErrors) {
-                    System.out.println("Input has lexical errors");
+            CodeGen codeGen = null;
+            CodeGen unfolded = null;
+            if (prattParser && !fused && tokens != null && !tokens.hasErrors()) {
+                // analise, verificacao de tipos e geracao de codigo numa so passagem pelos tokens
+                codeGen = new CodeGen();
+                codeGen.setDebugInfo(debugInfo);
+                if (!new PrattCodeGen(tokens, folding, codeGen).compile()) {
+                    // programa com erros: e compilado pelo TugaParser, que os reporta
+                    codeGen = null;
+                } else if (showStats && folding) {
+                    unfolded = new CodeGen();
+                    new PrattCodeGen(tokens, false, unfolded).compile();
                 }
-                return;
             }
 
-            if (el.getNumParsingErrors() > 0) {
-                if (!showParserErrors) {
-                    System.out.println("Input has parsing errors");
+            if (codeGen == null) {
+                Diagnostics diagnostics = new Diagnostics(maxErrors);
+                ErrorListener el = new ErrorListener(showLexerErrors,showParserErrors,diagnostics);
+
+                boolean twoStage = sll;
+                long parseStart = System.nanoTime();
+                ParseTree tree;
+                try {
+                    tree = onParserThread(stackSize, () -> parse(input, tokens, el, twoStage));
+                } catch (Diagnostics.LimitReached e) {
+                    // a analise parou no erro que atingiu o limite
+                    tree = null;
+                }
+                diagnostics.flush();
+                if (showStats) {
+                    System.err.println("*** Parsing ***");
+                    System.err.println("prediction: " + (twoStage ? "SLL -> LL" : "LL"));
+                    System.err.printf("parse time: %.3f ms%n", (System.nanoTime() - parseStart) / 1e6);
                 }
-                return;
-            }
 
-            TugaTypeChecker typeChecker = new TugaTypeChecker(showTypeCheckingErrors);
-            ParseTreeWalker walker = new ParseTreeWalker();
-            walker.walk(typeChecker, tree);
+                if (el.getNumLexerErrors() > 0) {
+                    if (!showLexerErrors) {
+                        System.out.println("Input has lexical errors");
+                    }
+                    return;
+                }
 
-            if (typeChecker.hasErrors()) {
-                if (!showTypeCheckingErrors) {
-                    System.out.println("Input has type checking errors");
+                if (el.getNumParsingErrors() > 0) {
+                    if (!showParserErrors) {
+                        System.out.println("Input has parsing errors");
+                    }
+                    return;
                 }
-                return;
-            }
 
-            CodeGen codeGen = new CodeGen(typeChecker.getTypes());
+                TugaTypeChecker typeChecker = new TugaTypeChecker(showTypeCheckingErrors, diagnostics);
+                // avaliacao das expressoes constantes em tempo de compilacao
+                ConstantFolder folder = folding ? new ConstantFolder() : null;
+                codeGen = new CodeGen();
+                codeGen.setDebugInfo(debugInfo);
 
-            codeGen.visit(tree);
-            codeGen.dumpCode();
+                try {
+                    // travessia com uma pilha explicita, sem recursao por nivel da arvore
+                    ParseTreeWalker walker = new IterativeParseTreeWalker();
+                    if (fused) {
+                        // verificacao de tipos, avaliacao das constantes e geracao de codigo numa so travessia
+                        walker.walk(new FusedCodeGen(typeChecker, folder, codeGen), tree);
+                    } else {
+                        walker.walk(typeChecker, tree);
+                        if (!typeChecker.hasErrors() && folder != null)
+                            walker.walk(folder, tree);
+                    }
+                } catch (Diagnostics.LimitReached e) {
+                    // a verificacao parou no erro que atingiu o limite (typeChecker.hasErrors())
+                }
+                diagnostics.flush();
 
-            codeGen.saveBytecodes("bytecodes");
+                if (typeChecker.hasErrors()) {
+                    if (!showTypeCheckingErrors) {
+                        System.out.println("Input has type checking errors");
+                    }
+                    return;
+                }
+
+                if (showStats && folder != null) {
+                    unfolded = new CodeGen();
+                    unfolded.generate(new Lowering(null).lower(tree));
+                }
+                if (!fused) {
+                    TugaIR ir = new Lowering(folder != null ? folder.getValues() : null).lower(tree);
+                    // a arvore sintatica, os tokens e os valores das constantes deixam de estar acessiveis
+                    tree = null;
+                    folder = null;
+                    codeGen.generate(ir);
+                }
+            }
+
+            if (unfolded != null) {
+                System.err.println("*** Constant folding ***");
+                System.err.println("folded expressions: " + codeGen.getFoldedExpressions());
+                System.err.println("instructions: " + unfolded.getCodeSize() + " -> " + codeGen.getCodeSize());
+            }
+            if (peephole) {
+                PeepholeOptimizer optimizer = new PeepholeOptimizer();
+                codeGen.optimize(optimizer);
+                if (showStats)
+                    System.err.print(optimizer);
+            }
+            codeGen.addMetadata("source", inputFile != null ? inputFile : "<stdin>");
+            codeGen.dumpCode();
 
-            VM vm = new VM("bytecodes");
+            if (bytecodesFile != null) {
+                try {
+                    codeGen.saveBytecodes(bytecodesFile);
+                } catch (IOException e) {
+                    // o motor MAPPED iria carregar um ficheiro inexistente ou incompleto
+                    System.err.println("Erro ao guardar os bytecodes em " + bytecodesFile + ": " + e);
+                    System.exit(1);
+                }
+            }
 
-            vm.run();
+            // o motor MAPPED executa a partir do ficheiro mapeado, quando este foi guardado
+            VM vm = engine == Engine.MAPPED && bytecodesFile != null
+                    ? new VM(bytecodesFile, engine)
+                    : new VM(codeGen.toBytecodes(), engine);
+            run(vm, fusion, profile);
         }
         catch (java.io.IOException e) {
             System.out.println(e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Executa um programa carregado na Maquina Virtual e mostra o perfil, se for pedido.
+     */
+    private static void run(VM vm, boolean fusion, boolean profile) {
+        vm.setFusion(fusion);
+        if (profile)
+            vm.enableProfiling();
+
+        vm.run();
+
+        if (profile)
+            System.err.print(vm.getProfile());
+    }
+
+    /**
+     * Executa uma fase recursiva da compilacao (a analise pelo TugaParser, com ou sem --stream)
+     * numa thread com uma pilha de chamadas do tamanho dado, para que expressoes muito aninhadas
+     * nao esgotem a pilha da thread principal.
+     *
+     * @param stackSize Tamanho da pilha da thread, em bytes.
+     * @param task Fase a executar.
+     * @return O resultado da fase.
+     * @throws Exception A excecao (ou erro) lancada pela fase.
+     */
+    private static <T> T onParserThread(long stackSize, Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(null, future, "tuga-parser", stackSize);
+        thread.start();
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * Analisa o programa em modo de compilacao por estatistica: os caracteres e os tokens sao
+     * lidos sem ficarem guardados (UnbufferedCharStream e UnbufferedTokenStream) e cada
+     * estatistica e compilada e descartada pelo StreamingCodeGen quando o parser a termina.
+     *
+     * @param is Codigo fonte.
+     * @param el Listener que conta (e mostra) os erros.
+     * @param listener Compilacao por estatistica.
+     * @return null.
+     * @throws Diagnostics.LimitReached Se o numero de erros atinge o limite dos Diagnostics.
+     */
+    private static Void parseStreaming(InputStream is, ErrorListener el, StreamingCodeGen listener) {
+        TugaLexer lexer = new TugaLexer(new UnbufferedCharStream(is)) {
+            // a mensagem de um erro lexico no fim do ficheiro tem o texto ate ao ultimo caracter,
+            // como com o CharStream do CharStreams (o UnbufferedCharStream nao aceita um
+            // intervalo que inclua o fim do ficheiro)
+            @Override
+            public void notifyListeners(LexerNoViableAltException e) {
+                int stop = _input.LA(1) == IntStream.EOF ? _input.index() - 1 : _input.index();
+                String text = _input.getText(Interval.of(_tokenStartCharIndex, stop));
+                getErrorListenerDispatch().syntaxError(this, null, _tokenStartLine, _tokenStartCharPositionInLine,
+                        "token recognition error at: '" + getErrorDisplay(text) + "'", e);
+            }
+
+            // sem isto, o texto copiado do token EOF seria "" e as mensagens de erro mostrariam ''
+            @Override
+            public Token emitEOF() {
+                CommonToken eof = (CommonToken) super.emitEOF();
+                eof.setText("<EOF>");
+                return eof;
+            }
+        };
+        // o texto de cada token e copiado, porque o stream descarta os caracteres ja lidos
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(el);
+
+        TugaParser parser = new TugaParser(new UnbufferedTokenStream<>(lexer));
+        parser.removeErrorListeners();
+        parser.addErrorListener(el);
+        parser.addParseListener(listener);
+
+        parser.prog();
+        return null;
+    }
+
+    /**
+     * Analisa lexica e sintaticamente o programa. O lexer, o parser e o stream de tokens so ficam
+     * acessiveis a partir da arvore devolvida. Tambem e usado pelo SllParseBench (tools/).
+     *
+     * @param input Codigo fonte.
+     * @param tokens Tokens do PackedLexer, ou null; com erros lexicos (ou se for null) o programa
+     *               e analisado pelo TugaLexer, que os reporta.
+     * @param el Listener que conta (e mostra) os erros.
+     * @param twoStage Se o programa e analisado primeiro em modo SLL, que para no primeiro erro,
+     *                 e so se este falhar outra vez em modo LL; se for false, so em modo LL.
+     * @return A arvore sintatica do programa.
+     * @throws Diagnostics.LimitReached Se o numero de erros atinge o limite dos Diagnostics do
+     *                                  listener; a analise para nesse erro.
+     */
+    static ParseTree parse(CharStream input, PackedLexer tokens, ErrorListener el, boolean twoStage) {
+        TokenSource source;
+        if (tokens != null && !tokens.hasErrors()) {
+            source = new PackedTokenSource(tokens);
+        } else {
+            TugaLexer lexer = new TugaLexer(input);
+
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(el);
+            source = lexer;
+        }
+
+        CommonTokenStream tokenStream = new CommonTokenStream(source);
+
+        TugaParser parser = new TugaParser(tokenStream);
+        parser.removeErrorListeners();
+
+        if (twoStage) {
+            // SLL e mais rapido e so falha em programas com erros (ou muito raramente, em
+            // programas validos que so o LL consegue analisar); nenhum erro e reportado
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.setErrorHandler(new BailErrorStrategy());
+            try {
+                return parser.prog();
+            } catch (ParseCancellationException e) {
+                // os tokens ja lidos ficam no stream: os erros lexicos nao sao reportados duas vezes
+                tokenStream.seek(0);
+                parser.reset();
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            }
+        }
+
+        parser.addErrorListener(el);
+        return parser.prog();
+    }
+}
@@ -0,0 +1,39 @@
+package TypeChecker;
+
+/**
+ * Tipos das expressoes da lingua Tuga, anotados pelo TugaTypeChecker.
+ * ERRO e o tipo de uma expressao com um erro de tipo, para nao repetir o erro nas
+ * expressoes que a contem.
+ */
+public enum TugaType {
+    INTEIRO("inteiro"),
+    REAL("real"),
+    BOOLEANO("booleano"),
+    STRING("string"),
+    ERRO("erro");
+
+    private final String name;
+
+    TugaType(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Verifica se o tipo e numerico (inteiro ou real).
+     *
+     * @return true se o tipo for inteiro ou real.
+     */
+    public boolean isNumeric() {
+        return this == INTEIRO || this == REAL;
+    }
+
+    /**
+     * Retorna o nome do tipo na lingua Tuga, usado nas mensagens de erro.
+     *
+     * @return O nome do tipo.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
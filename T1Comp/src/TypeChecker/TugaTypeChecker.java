@@ -1,55 +1,73 @@
 package TypeChecker;
 
+import ErrorListener.Diagnostic;
+import ErrorListener.Diagnostics;
 import Tuga.*;
-import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import static TypeChecker.TugaType.*;
 
 /**
  * Classe que realiza a verificacao de tipos na lingua Tuga.
  * Analisa a arvore sintatica, anota os tipos das expressoes e reporta inconsistencias.
+ * O tipo de cada expressao fica no campo type do seu contexto (TypedContext).
  *
  * @version 1.0 (Abril 2025)
  */
 public class TugaTypeChecker extends TugaBaseListener {
     private boolean showTypeErrors;
-    private ParseTreeProperty<String> types = new ParseTreeProperty<>();
+    private final Diagnostics diagnostics;
     private boolean hasError = false;
 
     /**
      * Construtor do verificador de tipos.
      *
      * @param showTypeErrors Define se os erros de tipo devem ser apresentados.
+     * @param diagnostics Erros da compilacao, onde os erros de tipo sao registados.
      */
-    public TugaTypeChecker(boolean showTypeErrors) {
+    public TugaTypeChecker(boolean showTypeErrors, Diagnostics diagnostics) {
         this.showTypeErrors = showTypeErrors;
+        this.diagnostics = diagnostics;
     }
 
     /**
-     * Retorna a propriedade que associa os tipos as expressoes.
+     * Verifica se ocorreram erros de tipo.
      *
-     * @return A propriedade dos tipos.
+     * @return true se existirem erros, false caso contrario.
      */
-    public ParseTreeProperty<String> getTypes() {
-        return types;
+    public boolean hasErrors() {
+        return hasError;
     }
 
     /**
-     * Verifica se ocorreram erros de tipo.
+     * Regista um erro de tipo num operando. A mensagem so e formatada se for mostrada.
      *
-     * @return true se existirem erros, false caso contrario.
+     * @param ctx Contexto da expressao com o erro.
+     * @param format Formato da mensagem, com o tipo do operando e a linha.
+     * @param type Tipo do operando.
+     * @throws Diagnostics.LimitReached Se o erro atinge o limite de erros.
      */
-    public boolean hasErrors() {
-        return hasError;
+    private void error(ParserRuleContext ctx, String format, TugaType type) {
+        hasError = true;
+        int line = ctx.getStart().getLine();
+        diagnostics.report(new Diagnostic(Diagnostic.Kind.TYPE, line, ctx.getStart().getCharPositionInLine(),
+                format, type, line), showTypeErrors);
     }
 
     /**
-     * Regista um erro de tipo.
+     * Regista um erro de tipo entre dois operandos. A mensagem so e formatada se for mostrada.
      *
-     * @param msg Mensagem de erro a registar.
+     * @param ctx Contexto da expressao com o erro.
+     * @param format Formato da mensagem, com os tipos dos operandos e a linha.
+     * @param type1 Tipo do primeiro operando.
+     * @param type2 Tipo do segundo operando.
+     * @throws Diagnostics.LimitReached Se o erro atinge o limite de erros.
      */
-    private void error(String msg) {
+    private void error(ParserRuleContext ctx, String format, TugaType type1, TugaType type2) {
         hasError = true;
-        if (showTypeErrors)
-            System.out.println(msg);
+        int line = ctx.getStart().getLine();
+        diagnostics.report(new Diagnostic(Diagnostic.Kind.TYPE, line, ctx.getStart().getCharPositionInLine(),
+                format, type1, type2, line), showTypeErrors);
     }
 
     /**
@@ -59,9 +77,8 @@ public class TugaTypeChecker extends TugaBaseListener {
      * @param type2 Tipo do segundo operando.
      * @return true se ambos forem numericos, false caso contrario.
      */
-    private boolean areNumerics(String type1, String type2) {
-        return ((type1.equals("inteiro") || type1.equals("real")) &&
-                (type2.equals("inteiro") || type2.equals("real")));
+    private boolean areNumerics(TugaType type1, TugaType type2) {
+        return type1.isNumeric() && type2.isNumeric();
     }
 
     /**
@@ -69,10 +86,10 @@ public class TugaTypeChecker extends TugaBaseListener {
      *
      * @param type1 Tipo do primeiro operando.
      * @param type2 Tipo do segundo operando.
-     * @return "real" se pelo menos um operando for real, "inteiro" caso ambos sejam inteiros.
+     * @return REAL se pelo menos um operando for real, INTEIRO caso ambos sejam inteiros.
      */
-    private String getExprType(String type1, String type2) {
-        return (type1.equals("real") || type2.equals("real")) ? "real" : "inteiro";
+    private TugaType getExprType(TugaType type1, TugaType type2) {
+        return (type1 == REAL || type2 == REAL) ? REAL : INTEIRO;
     }
 
     /**
@@ -82,7 +99,7 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitInt(TugaParser.IntContext ctx) {
-        types.put(ctx, "inteiro");
+        ctx.type = INTEIRO;
     }
 
     /**
@@ -92,7 +109,7 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitReal(TugaParser.RealContext ctx) {
-        types.put(ctx, "real");
+        ctx.type = REAL;
     }
 
     /**
@@ -102,7 +119,7 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitBool(TugaParser.BoolContext ctx) {
-        types.put(ctx, "booleano");
+        ctx.type = BOOLEANO;
     }
 
     /**
@@ -112,7 +129,7 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitString(TugaParser.StringContext ctx) {
-        types.put(ctx, "string");
+        ctx.type = STRING;
     }
 
     /**
@@ -122,7 +139,7 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitParens(TugaParser.ParensContext ctx) {
-        types.put(ctx, types.get(ctx.expr()));
+        ctx.type = ctx.expr().type;
     }
 
     /**
@@ -132,19 +149,15 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitUminus(TugaParser.UminusContext ctx) {
-        String type = types.get(ctx.expr());
+        TugaType type = ctx.expr().type;
 
-        if (type.equals("erro")) {
-            types.put(ctx, "erro");
-            return;
-        }
-
-        if (!(type.equals("inteiro") || type.equals("real"))) {
-            error("Erro de tipo: Operador unario '-' nao pode ser aplicado ao tipo '"
-                    + type + "' (linha " + ctx.getStart().getLine() + ")");
-            type = "erro";
+        switch (type) {
+            case ERRO, INTEIRO, REAL -> ctx.type = type;
+            default -> {
+                error(ctx, "Erro de tipo: Operador unario '-' nao pode ser aplicado ao tipo '%s' (linha %d)", type);
+                ctx.type = ERRO;
+            }
         }
-        types.put(ctx, type);
     }
 
     /**
@@ -154,19 +167,15 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitNot(TugaParser.NotContext ctx) {
-        String type = types.get(ctx.expr());
-
-        if (type.equals("erro")) {
-            types.put(ctx, "erro");
-            return;
-        }
+        TugaType type = ctx.expr().type;
 
-        if (!type.equals("booleano")) {
-            error("Erro de tipo: Operador de negacao 'nao' nao pode ser aplicado ao tipo '"
-                    + type + "' (linha " + ctx.getStart().getLine() + ")");
-            type = "erro";
+        switch (type) {
+            case ERRO, BOOLEANO -> ctx.type = type;
+            default -> {
+                error(ctx, "Erro de tipo: Operador de negacao 'nao' nao pode ser aplicado ao tipo '%s' (linha %d)", type);
+                ctx.type = ERRO;
+            }
         }
-        types.put(ctx, type);
     }
 
     /**
@@ -176,35 +185,29 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitAddSub(TugaParser.AddSubContext ctx) {
-        String type1 = types.get(ctx.expr(0));
-        String type2 = types.get(ctx.expr(1));
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
 
-        if (type1.equals("erro") || type2.equals("erro")) {
-            types.put(ctx, "erro");
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
             return;
         }
 
-        String exprType;
-
-        if (ctx.op.getText().equals("+")) {
-            if (type1.equals("string") || type2.equals("string")) {
-                types.put(ctx, "string");
+        if (ctx.op.getType() == TugaParser.ADD) {
+            if (type1 == STRING || type2 == STRING) {
+                ctx.type = STRING;
             } else if (areNumerics(type1, type2)) {
-                exprType = getExprType(type1, type2);
-                types.put(ctx, exprType);
+                ctx.type = getExprType(type1, type2);
             } else {
-                error("Erro de tipo: Operacao de soma nao pode ser realizada entre os tipos '"
-                        + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-                types.put(ctx, "erro");
+                error(ctx, "Erro de tipo: Operacao de soma nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+                ctx.type = ERRO;
             }
-        } else if (ctx.op.getText().equals("-")) {
+        } else {
             if (areNumerics(type1, type2)) {
-                exprType = getExprType(type1, type2);
-                types.put(ctx, exprType);
+                ctx.type = getExprType(type1, type2);
             } else {
-                error("Erro de tipo: Operacao de subtracao nao pode ser realizada entre os tipos '"
-                        + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-                types.put(ctx, "erro");
+                error(ctx, "Erro de tipo: Operacao de subtracao nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+                ctx.type = ERRO;
             }
         }
     }
@@ -216,36 +219,54 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitMulDivMod(TugaParser.MulDivModContext ctx) {
-        String type1 = types.get(ctx.expr(0));
-        String type2 = types.get(ctx.expr(1));
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
 
-        if (type1.equals("erro") || type2.equals("erro")) {
-            types.put(ctx, "erro");
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
             return;
         }
 
-        String exprType;
-
-        if (ctx.op.getText().equals("*") || ctx.op.getText().equals("/")) {
+        if (ctx.op.getType() != TugaParser.MOD) {
             if (areNumerics(type1, type2)) {
-                exprType = getExprType(type1, type2);
-                types.put(ctx, exprType);
+                ctx.type = getExprType(type1, type2);
             } else {
-                error("Erro de tipo: Operacao de multiplicacao ou divisao nao pode ser realizada entre os tipos '"
-                        + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-                types.put(ctx, "erro");
+                error(ctx, "Erro de tipo: Operacao de multiplicacao ou divisao nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+                ctx.type = ERRO;
             }
-        } else if (ctx.op.getText().equals("%")) {
-            if (type1.equals("inteiro") && type2.equals("inteiro")) {
-                types.put(ctx, "inteiro");
+        } else {
+            if (type1 == INTEIRO && type2 == INTEIRO) {
+                ctx.type = INTEIRO;
             } else {
-                error("Erro de tipo: Operacao de modulo nao pode ser realizada entre os tipos '"
-                        + type1 + "' e '" + type2 + "', apenas pode ser feita entre inteiros (linha " + ctx.getStart().getLine() + ")");
-                types.put(ctx, "erro");
+                error(ctx, "Erro de tipo: Operacao de modulo nao pode ser realizada entre os tipos '%s' e '%s', apenas pode ser feita entre inteiros (linha %d)", type1, type2);
+                ctx.type = ERRO;
             }
         }
     }
 
+    /**
+     * Verifica o tipo de expressoes de comparacao (<, <=, >, >=) e regista o tipo.
+     *
+     * @param ctx Contexto da comparacao.
+     */
+    @Override
+    public void exitCompare(TugaParser.CompareContext ctx) {
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
+
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
+            return;
+        }
+
+        if (areNumerics(type1, type2)) {
+            ctx.type = BOOLEANO;
+        } else {
+            error(ctx, "Erro de tipo: Operacao de comparacao nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+            ctx.type = ERRO;
+        }
+    }
+
     /**
      * Verifica o tipo de expressoes com o operador logico 'e' e regista o tipo.
      *
@@ -253,20 +274,19 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitAnd(TugaParser.AndContext ctx) {
-        String type1 = types.get(ctx.expr(0));
-        String type2 = types.get(ctx.expr(1));
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
 
-        if (type1.equals("erro") || type2.equals("erro")) {
-            types.put(ctx, "erro");
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
             return;
         }
 
-        if (!(type1.equals("booleano") && type2.equals("booleano"))) {
-            error("Erro de tipo: Operacao logica 'e' nao pode ser realizada entre os tipos '"
-                    + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-            types.put(ctx, "erro");
+        if (!(type1 == BOOLEANO && type2 == BOOLEANO)) {
+            error(ctx, "Erro de tipo: Operacao logica 'e' nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+            ctx.type = ERRO;
         } else {
-            types.put(ctx, "booleano");
+            ctx.type = BOOLEANO;
         }
     }
 
@@ -277,20 +297,19 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitOr(TugaParser.OrContext ctx) {
-        String type1 = types.get(ctx.expr(0));
-        String type2 = types.get(ctx.expr(1));
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
 
-        if (type1.equals("erro") || type2.equals("erro")) {
-            types.put(ctx, "erro");
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
             return;
         }
 
-        if (!(type1.equals("booleano") && type2.equals("booleano"))) {
-            error("Erro de tipo: Operacao logica 'ou' nao pode ser realizada entre os tipos '"
-                    + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-            types.put(ctx, "erro");
+        if (!(type1 == BOOLEANO && type2 == BOOLEANO)) {
+            error(ctx, "Erro de tipo: Operacao logica 'ou' nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+            ctx.type = ERRO;
         } else {
-            types.put(ctx, "booleano");
+            ctx.type = BOOLEANO;
         }
     }
 
@@ -301,22 +320,21 @@ public class TugaTypeChecker extends TugaBaseListener {
      */
     @Override
     public void exitEqNotEq(TugaParser.EqNotEqContext ctx) {
-        String type1 = types.get(ctx.expr(0));
-        String type2 = types.get(ctx.expr(1));
+        TugaType type1 = ctx.expr(0).type;
+        TugaType type2 = ctx.expr(1).type;
 
-        if (type1.equals("erro") || type2.equals("erro")) {
-            types.put(ctx, "erro");
+        if (type1 == ERRO || type2 == ERRO) {
+            ctx.type = ERRO;
             return;
         }
 
-        if ((type1.equals("booleano") && type2.equals("booleano")) ||
-                (type1.equals("string") && type2.equals("string")) ||
+        if ((type1 == BOOLEANO && type2 == BOOLEANO) ||
+                (type1 == STRING && type2 == STRING) ||
                 areNumerics(type1, type2)) {
-            types.put(ctx, "booleano");
+            ctx.type = BOOLEANO;
         } else {
-            error("Erro de tipo: Operacao de igualdade ou diferenca nao pode ser realizada entre os tipos '"
-                    + type1 + "' e '" + type2 + "' (linha " + ctx.getStart().getLine() + ")");
-            types.put(ctx, "erro");
+            error(ctx, "Erro de tipo: Operacao de igualdade ou diferenca nao pode ser realizada entre os tipos '%s' e '%s' (linha %d)", type1, type2);
+            ctx.type = ERRO;
         }
     }
 }
@@ -0,0 +1,22 @@
+package TypeChecker;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Superclasse dos contextos gerados pelo ANTLR (opcao contextSuperClass da gramatica).
+ * Guarda no proprio no o tipo anotado pelo TugaTypeChecker, que os passos seguintes leem
+ * diretamente, sem uma tabela indexada pelos nos.
+ */
+public class TypedContext extends ParserRuleContext {
+    /**
+     * Tipo da expressao, ou null se o no nao e uma expressao ou ainda nao foi verificado.
+     */
+    public TugaType type;
+
+    public TypedContext() {
+    }
+
+    public TypedContext(ParserRuleContext parent, int invokingStateNumber) {
+        super(parent, invokingStateNumber);
+    }
+}
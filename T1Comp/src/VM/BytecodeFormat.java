@@ -0,0 +1,107 @@
+package VM;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constantes e utilitarios do formato de bytecodes, partilhados pelo CodeGen (que escreve)
+ * e pela Maquina Virtual (que le).
+ *
+ * <p>Formato v2 (todos os inteiros em big-endian):</p>
+ * <pre>
+ * cabecalho   int magic ("TUGA"), short versao, short numero de seccoes
+ * tabela      por seccao: int id, int deslocamento (desde o inicio), int tamanho em bytes
+ * DOUBLES     int n, n x double
+ * STRINGS     int n, n x (int bytes, UTF-8)
+ * CODE        int numero de instrucoes, instrucoes (opcode de 1 byte, argumento de 4 bytes)
+ * STACK       int profundidade maxima da pilha de operandos (opcional)
+ * LINES       int n, n x (int indice da instrucao, int linha, int coluna), por ordem de indice
+ *             (opcional, so de depuracao)
+ * METADATA    int n, n x (chave, valor), com as strings codificadas como em STRINGS (opcional)
+ * </pre>
+ * Os indices das instrucoes dconst e sconst referem-se a pool do respetivo tipo e o argumento
+ * dos saltos e o deslocamento em bytes do destino, a contar da primeira instrucao. Seccoes com
+ * um id desconhecido sao ignoradas. Sem a seccao STACK, a profundidade maxima e calculada
+ * pela Maquina Virtual ao carregar o programa. A seccao LINES da a posicao no codigo fonte a
+ * partir de cada instrucao listada ate a seguinte entrada; so e lida quando ha um erro de
+ * execucao ou o perfil de opcodes esta ativo. O compilador omite-a com --no-debug-info e os
+ * erros de execucao sao entao escritos sem a posicao.
+ *
+ * <p>O formato v1 (sem cabecalho) continua a ser aceite pela Maquina Virtual: int numero de
+ * constantes, cada uma com um byte de tipo (1 = double, 3 = string em UTF-16), seguido das
+ * instrucoes ate ao fim do ficheiro.</p>
+ */
+public final class BytecodeFormat {
+    // "TUGA" em ASCII
+    public static final int MAGIC = 0x54554741;
+    public static final int VERSION = 2;
+
+    // Identificadores das seccoes
+    public static final int SECTION_DOUBLES = 1;
+    public static final int SECTION_STRINGS = 2;
+    public static final int SECTION_CODE = 3;
+    public static final int SECTION_METADATA = 4;
+    public static final int SECTION_STACK = 5;
+    public static final int SECTION_LINES = 6;
+
+    // Tamanho do cabecalho fixo e de cada entrada da tabela de seccoes
+    public static final int HEADER_SIZE = 8;
+    public static final int SECTION_ENTRY_SIZE = 12;
+
+    private BytecodeFormat() {
+    }
+
+    /**
+     * Verifica se um buffer comeca com o cabecalho do formato v2 (sem alterar a sua posicao).
+     *
+     * @param buf Buffer com os bytecodes.
+     * @return true se o buffer tem o numero magico.
+     */
+    public static boolean hasHeader(ByteBuffer buf) {
+        return buf.remaining() >= HEADER_SIZE && buf.getInt(buf.position()) == MAGIC;
+    }
+
+    /**
+     * Codifica uma string em UTF-8.
+     *
+     * @param s String a codificar.
+     * @return Bytes da string.
+     */
+    public static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escreve uma string ja codificada, precedida do seu tamanho em bytes.
+     *
+     * @param out Buffer de destino.
+     * @param bytes Bytes UTF-8 da string.
+     */
+    public static void putString(ByteBuffer out, byte[] bytes) {
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Le uma string precedida do seu tamanho em bytes, descodificando-a em bloco.
+     *
+     * @param buf Buffer de origem, posicionado no tamanho da string.
+     * @return String lida.
+     */
+    public static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new BufferUnderflowException();
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(buf.position(), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
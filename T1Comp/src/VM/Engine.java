@@ -0,0 +1,26 @@
+package VM;
+
+/**
+ * Enumeracao dos motores de execucao disponiveis na Maquina Virtual.
+ */
+public enum Engine {
+    // Interpretador de referencia sobre Instruction[]
+    INTERPRETER,
+    // Codigo compactado num int[] (opcode e argumento em linha) com um so ciclo de despacho
+    PACKED,
+    // Regioes do programa compiladas para classes escondidas da JVM, com o interpretador como recurso
+    JIT,
+    // Executa os bytecodes no proprio buffer (o ficheiro mapeado em memoria), sem os descodificar
+    MAPPED
+    ;
+
+    /**
+     * Converte o nome de um motor (sem distinguir maiusculas) no respetivo valor.
+     *
+     * @param name Nome do motor.
+     * @return Engine correspondente.
+     */
+    public static Engine parse(String name) {
+        return Engine.valueOf(name.toUpperCase());
+    }
+}
@@ -3,6 +3,7 @@ package VM.Instruction;
 import VM.OpCode;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Classe que representa uma instrucao da Maquina Virtual.
@@ -55,4 +56,13 @@ public class Instruction {
     public void writeTo(DataOutputStream out) throws IOException {
         out.writeByte(opc.ordinal());
     }
+
+    /**
+     * Escreve a instrucao num buffer, a partir da sua posicao atual.
+     *
+     * @param out Buffer de destino.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put((byte) opc.ordinal());
+    }
 }
@@ -3,6 +3,7 @@ package VM.Instruction;
 import VM.OpCode;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Classe que representa uma instrucao com um argumento da Maquina Virtual.
@@ -70,4 +71,15 @@ public class Instruction1Arg extends Instruction {
         out.writeByte(super.opc.ordinal());
         out.writeInt(arg);
     }
+
+    /**
+     * Escreve a instrucao num buffer, a partir da sua posicao atual.
+     *
+     * @param out Buffer de destino.
+     */
+    @Override
+    public void writeTo(ByteBuffer out) {
+        out.put((byte) super.opc.ordinal());
+        out.putInt(arg);
+    }
 }
@@ -0,0 +1,612 @@
+package VM;
+
+import VM.Instruction.Instruction;
+import VM.Instruction.Instruction1Arg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compilador das instrucoes da Maquina Virtual para bytecode da JVM.
+ * O programa e dividido em regioes que comecam e acabam com a pilha vazia; cada regiao
+ * e traduzida para o metodo estatico {@code boolean run()} de uma classe escondida, carregada com
+ * {@link MethodHandles.Lookup#defineHiddenClass}. Os valores da pilha da Maquina Virtual
+ * passam a ser valores tipados da pilha da JVM (int, double, String), pelo que a pilha
+ * de operandos desaparece do codigo compilado.
+ *
+ * <p>O HotSpot nao compila metodos com mais de 8000 bytes de bytecode, por isso o codigo de
+ * uma regiao e repartido por metodos auxiliares de tamanho limitado, cortados em pontos onde
+ * a pilha da Maquina Virtual tem no maximo um valor; esse valor passa de um metodo para o
+ * seguinte como argumento e valor de retorno. O metodo {@code run()} so encadeia as chamadas.
+ * Os saltos passam a ifeq/ifne/goto da JVM; como sao sempre para a frente e curtos, nenhum
+ * corte e feito enquanto houver um salto por resolver.</p>
+ *
+ * <p>As classes sao geradas na versao 49 do formato, que nao exige a tabela StackMapTable.
+ * Uma regiao que nao possa ser compilada (metodo demasiado grande, string que excede os
+ * limites da pool da JVM, opcode desconhecido) devolve null e fica no interpretador.</p>
+ */
+final class JitCompiler {
+    // Numero de instrucoes a partir do qual uma regiao e fechada no proximo ponto de pilha vazia
+    static final int MAX_REGION = 4096;
+    // Bytes de bytecode a partir dos quais um metodo auxiliar e fechado no proximo ponto de corte
+    private static final int CHUNK_BYTES = 4000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType RUN_TYPE = MethodType.methodType(boolean.class);
+    private static final String RUNTIME = "VM/JitRuntime";
+    private static final String SELF = "VM/JitRegion";
+
+    // Opcodes da JVM usados na traducao
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12,
+            LDC_W = 0x13, LDC2_W = 0x14, ILOAD_0 = 0x1a, DLOAD_0 = 0x26, ALOAD_0 = 0x2a,
+            IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67, IMUL = 0x68, DMUL = 0x6b,
+            INEG = 0x74, DNEG = 0x77, IAND = 0x7e, IOR = 0x80, IXOR = 0x82, I2D = 0x87,
+            IFEQ = 0x99, IFNE = 0x9a, GOTO = 0xa7,
+            IRETURN = 0xac, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1,
+            INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8;
+
+    private JitCompiler() {
+    }
+
+    /**
+     * Divide o codigo em regioes delimitadas por pontos em que a pilha esta vazia e que nao
+     * ficam no meio de um salto (todos os saltos sao para a frente e ficam dentro da regiao).
+     * Cada regiao tem pelo menos {@code maxRegion} instrucoes, exceto a ultima.
+     *
+     * @param code Instrucoes do programa.
+     * @param maxRegion Numero de instrucoes a partir do qual a regiao e fechada.
+     * @return Limites das regioes: a regiao r vai de bounds[r] (inclusive) a bounds[r+1].
+     */
+    static int[] regions(Instruction[] code, int maxRegion) {
+        int[] bounds = new int[code.length / Math.max(1, maxRegion) + 2];
+        int n = 0;
+        bounds[n++] = 0;
+        int depth = 0;
+        int start = 0;
+        // maior destino de um salto ja visto e altura da pilha em cada destino
+        int pending = 0;
+        HashMap<Integer, Integer> targetDepth = new HashMap<>();
+        for (int i = 0; i < code.length; i++) {
+            OpCode opc = code[i].getOpCode();
+            depth += opc.stackEffect();
+            if (opc.isJump()) {
+                int target = ((Instruction1Arg) code[i]).getArg();
+                targetDepth.put(target, depth);
+                pending = Math.max(pending, target);
+                // depois de um salto incondicional so se chega a instrucao seguinte por outro salto
+                if (opc == OpCode.jump)
+                    depth = targetDepth.getOrDefault(i + 1, depth);
+            }
+            if (depth == 0 && pending <= i + 1 && i + 1 - start >= maxRegion && i + 1 < code.length) {
+                if (n == bounds.length) bounds = Arrays.copyOf(bounds, n * 2);
+                bounds[n++] = start = i + 1;
+            }
+        }
+        if (n == bounds.length) bounds = Arrays.copyOf(bounds, n + 1);
+        bounds[n++] = code.length;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Compila uma regiao do programa para uma classe escondida.
+     *
+     * @param code Instrucoes do programa.
+     * @param from Indice da primeira instrucao da regiao.
+     * @param to Indice seguinte a ultima instrucao da regiao.
+     * @param doubleConstants Constantes reais, indexadas como na pool.
+     * @param stringConstants Constantes string, indexadas como na pool.
+     * @return Handle para o metodo {@code run()} gerado, ou null se a regiao nao for compilavel.
+     */
+    static MethodHandle compile(Instruction[] code, int from, int to,
+                                double[] doubleConstants, String[] stringConstants) {
+        try {
+            ClassBuilder cb = new ClassBuilder();
+            cb.beginChunk();
+            for (int i = from; i < to; i++) {
+                cb.label(i);
+                OpCode opc = code[i].getOpCode();
+                if (opc == OpCode.halt) {
+                    cb.halt();
+                    continue;
+                }
+                if (opc.isJump()) {
+                    cb.jump(opc, ((Instruction1Arg) code[i]).getArg());
+                    continue;
+                }
+                cb.translate(code[i], i, doubleConstants, stringConstants);
+                if (cb.canSplit() && i + 1 < to) {
+                    cb.endChunk();
+                    cb.beginChunk();
+                }
+            }
+            cb.label(to);
+            cb.endChunk();
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(cb.toByteArray(), true);
+            return hidden.findStatic(hidden.lookupClass(), "run", RUN_TYPE);
+        } catch (IOException | ReflectiveOperationException | UnsupportedOperationException
+                 | IllegalArgumentException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executa uma regiao compilada.
+     *
+     * @param region Handle devolvido por {@link #compile}.
+     * @return true se a regiao executou a instrucao halt.
+     */
+    static boolean invoke(MethodHandle region) {
+        try {
+            return (boolean) region.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Tipo JVM do valor empilhado por uma instrucao: 'I' (inteiro ou booleano), 'D' (real),
+     * 'S' (string) ou 0 se a instrucao nao empilha nada.
+     *
+     * @param opc Opcode da instrucao.
+     * @return Tipo do resultado.
+     */
+    private static char resultType(OpCode opc) {
+        switch (opc) {
+            case dconst: case itod: case duminus: case dadd: case dsub: case dmult: case ddiv:
+                return 'D';
+            case sconst: case itos: case dtos: case sconcat: case btos:
+                return 'S';
+            case iprint: case dprint: case sprint: case bprint: case halt:
+                return 0;
+            default:
+                return 'I';
+        }
+    }
+
+    /**
+     * Metodo em construcao: codigo e alturas maximas da pilha e das variaveis locais da JVM.
+     */
+    private static final class MethodBuilder {
+        final String name;
+        String desc;
+        final Code code = new Code();
+        int depth = 0;
+        int maxDepth = 0;
+        int maxLocals = 0;
+
+        MethodBuilder(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    /**
+     * Bytecode de um metodo, com acesso para corrigir os deslocamentos dos saltos.
+     */
+    private static final class Code extends ByteArrayOutputStream {
+        void patch2(int pos, int v) {
+            buf[pos] = (byte) (v >>> 8);
+            buf[pos + 1] = (byte) v;
+        }
+    }
+
+    /**
+     * Construtor de um ficheiro class com o metodo {@code static boolean run()} e os
+     * metodos auxiliares que este chama.
+     */
+    private static final class ClassBuilder {
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final HashMap<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        private final MethodBuilder main = new MethodBuilder("run", "()Z");
+        private final ArrayList<MethodBuilder> chunks = new ArrayList<>();
+        private MethodBuilder current;
+        private String chunkParam;
+
+        // tipos dos valores da pilha da Maquina Virtual no ponto atual
+        private char[] types = new char[16];
+        private int typesTop = 0;
+
+        // saltos por resolver (destino, posicao do opcode) e estado da pilha em cada destino
+        private final ArrayList<int[]> fixups = new ArrayList<>();
+        private final HashMap<Integer, char[]> targetTypes = new HashMap<>();
+        private final HashMap<Integer, Integer> targetDepth = new HashMap<>();
+        // false depois de um salto incondicional, ate ao proximo destino
+        private boolean reachable = true;
+
+        /**
+         * Marca o inicio da instrucao {@code index}: resolve os saltos para ela e, se so se
+         * chega ali por um salto, repoe o estado da pilha registado nesse salto.
+         */
+        void label(int index) {
+            if (!reachable) {
+                char[] saved = targetTypes.get(index);
+                if (saved != null) {
+                    types = Arrays.copyOf(saved, Math.max(16, saved.length));
+                    typesTop = saved.length;
+                    current.depth = targetDepth.get(index);
+                }
+                reachable = true;
+            }
+            for (int f = fixups.size() - 1; f >= 0; f--) {
+                int[] fixup = fixups.get(f);
+                if (fixup[0] != index) continue;
+                int offset = current.code.size() - fixup[1];
+                if (offset > Short.MAX_VALUE) throw new UnsupportedOperationException("jump too far");
+                current.code.patch2(fixup[1] + 1, offset);
+                fixups.remove(f);
+            }
+        }
+
+        /**
+         * Traduz um salto: jumpf/jumpt testam o booleano no topo da pilha (ifeq/ifne).
+         */
+        void jump(OpCode opc, int target) {
+            if (opc != OpCode.jump) {
+                typesTop--;
+                current.depth--;
+            }
+            targetTypes.put(target, Arrays.copyOf(types, typesTop));
+            targetDepth.put(target, current.depth);
+            fixups.add(new int[] { target, current.code.size() });
+            current.code.write(opc == OpCode.jump ? GOTO : opc == OpCode.jumpf ? IFEQ : IFNE);
+            u2(0);
+            if (opc == OpCode.jump)
+                reachable = false;
+        }
+
+        /**
+         * Abre um metodo auxiliar; recebe como argumento o valor que estiver na pilha.
+         */
+        void beginChunk() {
+            chunkParam = typesTop == 0 ? "" : descriptor(types[0]);
+            current = new MethodBuilder("c" + chunks.size(), null);
+            chunks.add(current);
+            if (typesTop == 1) {
+                char t = types[0];
+                op(t == 'I' ? ILOAD_0 : t == 'D' ? DLOAD_0 : ALOAD_0, t == 'D' ? 2 : 1);
+                current.maxLocals = t == 'D' ? 2 : 1;
+            }
+        }
+
+        /**
+         * Fecha o metodo auxiliar atual, que devolve o valor que estiver na pilha,
+         * e acrescenta a sua chamada ao metodo run().
+         */
+        void endChunk() throws IOException {
+            if (typesTop > 1) throw new UnsupportedOperationException("chunk split");
+            char t = typesTop == 0 ? 0 : types[0];
+            op(t == 0 ? RETURN : t == 'I' ? IRETURN : t == 'D' ? DRETURN : ARETURN, 0);
+            current.desc = "(" + chunkParam + ")" + (t == 0 ? "V" : descriptor(t));
+            MethodBuilder chunk = current;
+            current = main;
+            invoke(INVOKESTATIC, SELF, chunk.name, chunk.desc);
+        }
+
+        /**
+         * Indica se o metodo auxiliar atual ja e grande e pode ser cortado neste ponto.
+         */
+        boolean canSplit() {
+            return current.code.size() >= CHUNK_BYTES && typesTop <= 1 && fixups.isEmpty();
+        }
+
+        /**
+         * Traduz halt: termina run() com true depois das chamadas anteriores.
+         */
+        void halt() throws IOException {
+            if (typesTop != 0) throw new UnsupportedOperationException("halt");
+            endChunk();
+            current = main;
+            pushInt(1);
+            op(IRETURN, -1);
+            beginChunk();
+        }
+
+        private static String descriptor(char t) {
+            return t == 'S' ? "Ljava/lang/String;" : String.valueOf(t);
+        }
+
+        void translate(Instruction inst, int index, double[] doubleConstants, String[] stringConstants)
+                throws IOException {
+            OpCode opc = inst.getOpCode();
+            switch (opc) {
+                case iconst:
+                    pushInt(((Instruction1Arg) inst).getArg()); break;
+                case dconst:
+                    ldc2(doubleConst(doubleConstants[((Instruction1Arg) inst).getArg()])); break;
+                case sconst:
+                    ldc(stringConst(stringConstants[((Instruction1Arg) inst).getArg()])); break;
+                case tconst:
+                    pushInt(1); break;
+                case fconst:
+                    pushInt(0); break;
+
+                case iprint:
+                    invokeRuntime("iprint", "(I)V"); break;
+                case dprint:
+                    invokeRuntime("dprint", "(D)V"); break;
+                case sprint:
+                    invokeRuntime("sprint", "(Ljava/lang/String;)V"); break;
+                case bprint:
+                    invokeRuntime("bprint", "(Z)V"); break;
+
+                case iuminus:
+                    op(INEG, 0); break;
+                case iadd:
+                    op(IADD, -1); break;
+                case isub:
+                    op(ISUB, -1); break;
+                case imult:
+                    op(IMUL, -1); break;
+                case idiv:
+                    pushInt(index);
+                    invokeRuntime("idiv", "(III)I"); break;
+                case imod:
+                    pushInt(index);
+                    invokeRuntime("imod", "(III)I"); break;
+                case ieq:
+                    invokeRuntime("ieq", "(II)Z"); break;
+                case ineq:
+                    invokeRuntime("ineq", "(II)Z"); break;
+                case ilt:
+                    invokeRuntime("ilt", "(II)Z"); break;
+                case ileq:
+                    invokeRuntime("ileq", "(II)Z"); break;
+                case itod:
+                    op(I2D, +1); break;
+                case itos:
+                    invoke(INVOKESTATIC, "java/lang/Integer", "toString", "(I)Ljava/lang/String;"); break;
+
+                case duminus:
+                    op(DNEG, 0); break;
+                case dadd:
+                    op(DADD, -2); break;
+                case dsub:
+                    op(DSUB, -2); break;
+                case dmult:
+                    op(DMUL, -2); break;
+                case ddiv:
+                    pushInt(index);
+                    invokeRuntime("ddiv", "(DDI)D"); break;
+                case deq:
+                    invokeRuntime("deq", "(DD)Z"); break;
+                case dneq:
+                    invokeRuntime("dneq", "(DD)Z"); break;
+                case dlt:
+                    invokeRuntime("dlt", "(DD)Z"); break;
+                case dleq:
+                    invokeRuntime("dleq", "(DD)Z"); break;
+                case dtos:
+                    invoke(INVOKESTATIC, "java/lang/Double", "toString", "(D)Ljava/lang/String;"); break;
+
+                case sconcat:
+                    invoke(INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;"); break;
+                case seq:
+                    invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z"); break;
+                case sneq:
+                    invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                    pushInt(1);
+                    op(IXOR, -1);
+                    break;
+
+                case beq:
+                    op(IXOR, -1);
+                    pushInt(1);
+                    op(IXOR, -1);
+                    break;
+                case bneq:
+                    op(IXOR, -1); break;
+                case and:
+                    op(IAND, -1); break;
+                case or:
+                    op(IOR, -1); break;
+                case not:
+                    pushInt(1);
+                    op(IXOR, -1);
+                    break;
+                case btos:
+                    invokeRuntime("btos", "(Z)Ljava/lang/String;"); break;
+                default:
+                    throw new UnsupportedOperationException(opc.toString());
+            }
+            char result = resultType(opc);
+            typesTop -= (result == 0 ? 0 : 1) - opc.stackEffect();
+            if (result != 0) {
+                if (typesTop == types.length) types = Arrays.copyOf(types, typesTop * 2);
+                types[typesTop++] = result;
+            }
+        }
+
+        void op(int opcode, int delta) {
+            current.code.write(opcode);
+            adjust(delta);
+        }
+
+        private void adjust(int delta) {
+            current.depth += delta;
+            if (current.depth > current.maxDepth) current.maxDepth = current.depth;
+        }
+
+        private void u2(int v) {
+            current.code.write(v >>> 8);
+            current.code.write(v);
+        }
+
+        void pushInt(int v) throws IOException {
+            if (v >= -1 && v <= 5) {
+                current.code.write(ICONST_0 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                current.code.write(BIPUSH);
+                current.code.write(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                current.code.write(SIPUSH);
+                u2(v);
+            } else {
+                ldc(intConst(v));
+                return;
+            }
+            adjust(+1);
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xff) {
+                current.code.write(LDC);
+                current.code.write(index);
+            } else {
+                current.code.write(LDC_W);
+                u2(index);
+            }
+            adjust(+1);
+        }
+
+        private void ldc2(int index) {
+            current.code.write(LDC2_W);
+            u2(index);
+            adjust(+2);
+        }
+
+        private void invokeRuntime(String name, String desc) throws IOException {
+            invoke(INVOKESTATIC, RUNTIME, name, desc);
+        }
+
+        private void invoke(int opcode, String owner, String name, String desc) throws IOException {
+            int ref = methodRef(owner, name, desc);
+            current.code.write(opcode);
+            u2(ref);
+            int delta = returnWords(desc) - argWords(desc);
+            if (opcode != INVOKESTATIC) delta--;
+            adjust(delta);
+        }
+
+        private static int argWords(String desc) {
+            int words = 0;
+            for (int i = 1; desc.charAt(i) != ')'; i++) {
+                char c = desc.charAt(i);
+                if (c == 'L') i = desc.indexOf(';', i);
+                words += (c == 'D' || c == 'J') ? 2 : 1;
+            }
+            return words;
+        }
+
+        private static int returnWords(String desc) {
+            char c = desc.charAt(desc.indexOf(')') + 1);
+            return c == 'V' ? 0 : (c == 'D' || c == 'J') ? 2 : 1;
+        }
+
+        // Entradas da pool de constantes da classe, partilhadas por chave
+
+        private int entry(String key, int slots, PoolWriter writer) throws IOException {
+            Integer index = poolIndex.get(key);
+            if (index != null) return index;
+            writer.write(pool);
+            index = poolCount;
+            poolCount += slots;
+            if (poolCount > 0xffff) throw new UnsupportedOperationException("constant pool");
+            poolIndex.put(key, index);
+            return index;
+        }
+
+        private int utf8(String s) throws IOException {
+            return entry("U" + s, 1, out -> { out.writeByte(1); out.writeUTF(s); });
+        }
+
+        private int classRef(String name) throws IOException {
+            int n = utf8(name);
+            return entry("C" + name, 1, out -> { out.writeByte(7); out.writeShort(n); });
+        }
+
+        private int intConst(int v) throws IOException {
+            return entry("I" + v, 1, out -> { out.writeByte(3); out.writeInt(v); });
+        }
+
+        private int doubleConst(double v) throws IOException {
+            long bits = Double.doubleToRawLongBits(v);
+            return entry("D" + bits, 2, out -> { out.writeByte(6); out.writeLong(bits); });
+        }
+
+        private int stringConst(String s) throws IOException {
+            int u = utf8(s);
+            return entry("S" + s, 1, out -> { out.writeByte(8); out.writeShort(u); });
+        }
+
+        private int methodRef(String owner, String name, String desc) throws IOException {
+            int c = classRef(owner);
+            int n = utf8(name);
+            int d = utf8(desc);
+            int nt = entry("N" + name + desc, 1, out -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+            return entry("M" + owner + "." + name + desc, 1,
+                    out -> { out.writeByte(10); out.writeShort(c); out.writeShort(nt); });
+        }
+
+        byte[] toByteArray() throws IOException {
+            current = main;
+            pushInt(0);
+            op(IRETURN, -1);
+
+            ArrayList<MethodBuilder> methods = new ArrayList<>(chunks);
+            methods.add(main);
+            int thisClass = classRef(SELF);
+            int superClass = classRef("java/lang/Object");
+            int codeAttr = utf8("Code");
+            int[] names = new int[methods.size()];
+            int[] descs = new int[methods.size()];
+            int size = poolBytes.size() + 64;
+            for (int m = 0; m < methods.size(); m++) {
+                MethodBuilder mb = methods.get(m);
+                if (mb.code.size() > 0xffff) throw new UnsupportedOperationException("method too large");
+                names[m] = utf8(mb.name);
+                descs[m] = utf8(mb.desc);
+                size += mb.code.size() + 32;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(0x0030);         // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);              // interfaces
+            out.writeShort(0);              // fields
+            out.writeShort(methods.size());
+            for (int m = 0; m < methods.size(); m++) {
+                MethodBuilder mb = methods.get(m);
+                out.writeShort(0x0009);     // ACC_PUBLIC | ACC_STATIC
+                out.writeShort(names[m]);
+                out.writeShort(descs[m]);
+                out.writeShort(1);          // atributos do metodo: Code
+                out.writeShort(codeAttr);
+                out.writeInt(12 + mb.code.size());
+                out.writeShort(mb.maxDepth);
+                out.writeShort(mb.maxLocals);
+                out.writeInt(mb.code.size());
+                mb.code.writeTo(out);
+                out.writeShort(0);          // exception_table
+                out.writeShort(0);          // atributos do Code
+            }
+            out.writeShort(0);              // atributos da classe
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Escreve o conteudo de uma entrada da pool de constantes da classe.
+     */
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
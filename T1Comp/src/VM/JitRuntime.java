@@ -0,0 +1,83 @@
+package VM;
+
+/**
+ * Operacoes de suporte chamadas pelo codigo gerado pelo JitCompiler.
+ * Reunem os casos que precisam de saltos ou de verificacoes de erro; o HotSpot
+ * expande-as em linha no codigo compilado. As operacoes que podem falhar recebem tambem o
+ * indice da instrucao, usado apenas na mensagem de erro.
+ */
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    static void iprint(int v) {
+        System.out.println(v);
+    }
+
+    static void dprint(double v) {
+        System.out.println(v);
+    }
+
+    static void sprint(String s) {
+        System.out.println(s);
+    }
+
+    static void bprint(boolean b) {
+        System.out.println(b ? "verdadeiro" : "falso");
+    }
+
+    static int idiv(int left, int right, int at) {
+        if (right == 0)
+            VM.runtime_error("division by 0", at);
+        return left / right;
+    }
+
+    static int imod(int left, int right, int at) {
+        if (right == 0)
+            VM.runtime_error("0 is not valid in %", at);
+        return left % right;
+    }
+
+    static double ddiv(double left, double right, int at) {
+        if (Math.abs(right) < 10e-9)
+            VM.runtime_error("division by 0", at);
+        return left / right;
+    }
+
+    static boolean ieq(int left, int right) {
+        return left == right;
+    }
+
+    static boolean ineq(int left, int right) {
+        return left != right;
+    }
+
+    static boolean ilt(int left, int right) {
+        return left < right;
+    }
+
+    static boolean ileq(int left, int right) {
+        return left <= right;
+    }
+
+    static boolean deq(double left, double right) {
+        return Math.abs(left - right) < 10e-9;
+    }
+
+    static boolean dneq(double left, double right) {
+        return Math.abs(left - right) >= 10e-9;
+    }
+
+    static boolean dlt(double left, double right) {
+        return left < right;
+    }
+
+    static boolean dleq(double left, double right) {
+        return left <= right;
+    }
+
+    static String btos(boolean b) {
+        return b ? "verdadeiro" : "falso";
+    }
+}
@@ -0,0 +1,214 @@
+package VM;
+
+import java.nio.ByteBuffer;
+
+import static VM.PackedInterpreter.*;
+
+/**
+ * Interpretador que executa os bytecodes diretamente do buffer onde estao (normalmente o
+ * MappedByteBuffer do ficheiro), sem os descodificar antes.
+ * O opcode (1 byte) e o argumento (4 bytes, big-endian) sao lidos no proprio lugar, pelo
+ * deslocamento da instrucao, e os saltos usam diretamente o deslocamento guardado no ficheiro;
+ * a memoria usada nao depende do tamanho do programa e a
+ * primeira instrucao corre logo que a pool de constantes esta carregada.
+ */
+final class MappedInterpreter {
+    private MappedInterpreter() {
+    }
+
+    /**
+     * Mostra no ecran as instrucoes guardadas no buffer.
+     *
+     * @param code Bytecodes das instrucoes (da posicao 0 ao limite).
+     */
+    static void dump(ByteBuffer code) {
+        OpCode[] opcodes = OpCode.values();
+        int n = 0;
+        for (int ip = 0; ip < code.limit(); n++) {
+            OpCode opc = opcodes[code.get(ip++)];
+            if (opc.nArgs() == 1) {
+                System.out.println(n + ": " + opc + " " + code.getInt(ip));
+                ip += 4;
+            } else {
+                System.out.println(n + ": " + opc);
+            }
+        }
+    }
+
+    /**
+     * Executa os bytecodes a partir do buffer.
+     *
+     * @param code Bytecodes das instrucoes (da posicao 0 ao limite), em big-endian.
+     * @param doubleConstants Constantes reais, indexadas como na pool.
+     * @param stringConstants Constantes string, indexadas como na pool.
+     * @param maxStack Profundidade maxima da pilha, verificada ao carregar o programa.
+     */
+    static void run(ByteBuffer code, double[] doubleConstants, String[] stringConstants, int maxStack) {
+        // a pilha tem o tamanho final: nenhuma instrucao precisa de a fazer crescer
+        int[] ints = new int[maxStack];
+        double[] doubles = new double[maxStack];
+        String[] strings = new String[maxStack];
+        int sp = 0;
+        int ip = 0;
+        int end = code.limit();
+
+        while (ip < end) {
+            // os bytes de opcode do ficheiro sao ordinais de OpCode
+            switch (CODES[code.get(ip++)]) {
+                case ICONST:
+                    ints[sp++] = code.getInt(ip);
+                    ip += 4;
+                    break;
+                case DCONST:
+                    doubles[sp++] = doubleConstants[code.getInt(ip)];
+                    ip += 4;
+                    break;
+                case SCONST:
+                    strings[sp++] = stringConstants[code.getInt(ip)];
+                    ip += 4;
+                    break;
+                case TCONST:
+                    ints[sp++] = 1;
+                    break;
+                case FCONST:
+                    ints[sp++] = 0;
+                    break;
+
+                case IPRINT:
+                    System.out.println(ints[--sp]);
+                    break;
+                case IUMINUS:
+                    ints[sp - 1] = -ints[sp - 1];
+                    break;
+                case IADD:
+                    sp--; ints[sp - 1] = ints[sp - 1] + ints[sp];
+                    break;
+                case ISUB:
+                    sp--; ints[sp - 1] = ints[sp - 1] - ints[sp];
+                    break;
+                case IMULT:
+                    sp--; ints[sp - 1] = ints[sp - 1] * ints[sp];
+                    break;
+                case IDIV:
+                    sp--;
+                    if (ints[sp] == 0) VM.runtime_error("division by 0", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] / ints[sp];
+                    break;
+                case IMOD:
+                    sp--;
+                    if (ints[sp] == 0) VM.runtime_error("0 is not valid in %", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] % ints[sp];
+                    break;
+                case IEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] == ints[sp] ? 1 : 0;
+                    break;
+                case INEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] != ints[sp] ? 1 : 0;
+                    break;
+                case ILT:
+                    sp--; ints[sp - 1] = ints[sp - 1] < ints[sp] ? 1 : 0;
+                    break;
+                case ILEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] <= ints[sp] ? 1 : 0;
+                    break;
+                case ITOD:
+                    doubles[sp - 1] = ints[sp - 1];
+                    break;
+                case ITOS:
+                    strings[sp - 1] = Integer.toString(ints[sp - 1]);
+                    break;
+
+                case DPRINT:
+                    System.out.println(doubles[--sp]);
+                    break;
+                case DUMINUS:
+                    doubles[sp - 1] = -doubles[sp - 1];
+                    break;
+                case DADD:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] + doubles[sp];
+                    break;
+                case DSUB:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] - doubles[sp];
+                    break;
+                case DMULT:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] * doubles[sp];
+                    break;
+                case DDIV:
+                    sp--;
+                    if (Math.abs(doubles[sp]) < 10e-9) VM.runtime_error("division by 0", ip - 1);
+                    doubles[sp - 1] = doubles[sp - 1] / doubles[sp];
+                    break;
+                case DEQ:
+                    sp--; ints[sp - 1] = Math.abs(doubles[sp - 1] - doubles[sp]) < 10e-9 ? 1 : 0;
+                    break;
+                case DNEQ:
+                    sp--; ints[sp - 1] = Math.abs(doubles[sp - 1] - doubles[sp]) >= 10e-9 ? 1 : 0;
+                    break;
+                case DLT:
+                    sp--; ints[sp - 1] = doubles[sp - 1] < doubles[sp] ? 1 : 0;
+                    break;
+                case DLEQ:
+                    sp--; ints[sp - 1] = doubles[sp - 1] <= doubles[sp] ? 1 : 0;
+                    break;
+                case DTOS:
+                    strings[sp - 1] = Double.toString(doubles[sp - 1]);
+                    break;
+
+                case SPRINT:
+                    System.out.println(strings[--sp]);
+                    strings[sp] = null;
+                    break;
+                case SCONCAT:
+                    sp--; strings[sp - 1] = strings[sp - 1] + strings[sp];
+                    strings[sp] = null;
+                    break;
+                case SEQ:
+                    sp--; ints[sp - 1] = strings[sp - 1].equals(strings[sp]) ? 1 : 0;
+                    strings[sp] = null;
+                    break;
+                case SNEQ:
+                    sp--; ints[sp - 1] = strings[sp - 1].equals(strings[sp]) ? 0 : 1;
+                    strings[sp] = null;
+                    break;
+
+                case BPRINT:
+                    System.out.println(ints[--sp] != 0 ? "verdadeiro" : "falso");
+                    break;
+                case BEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] == ints[sp] ? 1 : 0;
+                    break;
+                case BNEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] != ints[sp] ? 1 : 0;
+                    break;
+                case AND:
+                    sp--; ints[sp - 1] = ints[sp - 1] & ints[sp];
+                    break;
+                case OR:
+                    sp--; ints[sp - 1] = ints[sp - 1] | ints[sp];
+                    break;
+                case NOT:
+                    ints[sp - 1] ^= 1;
+                    break;
+                case BTOS:
+                    strings[sp - 1] = ints[sp - 1] != 0 ? "verdadeiro" : "falso";
+                    break;
+                case HALT:
+                    return;
+                case JUMP:
+                    ip = code.getInt(ip);
+                    break;
+                case JUMPF:
+                    ip = ints[--sp] == 0 ? code.getInt(ip) : ip + 4;
+                    break;
+                case JUMPT:
+                    ip = ints[--sp] != 0 ? code.getInt(ip) : ip + 4;
+                    break;
+
+
+                default:
+                    System.out.println("This should never happen! In file MappedInterpreter.java, method run()");
+                    System.exit(1);
+            }
+        }
+    }
+}
@@ -5,59 +5,80 @@ package VM;
  */
 public enum OpCode {
     // Instrucoes com 1 argumento (ocupam 5 bytes)
-    iconst   (1),
-    dconst   (1),
-    sconst   (1),
+    iconst   (1, +1),
+    dconst   (1, +1),
+    sconst   (1, +1),
     // Instrucoes sem argumentos (ocupam 1 byte)
-    iprint   (0),
-    iuminus  (0),
-    iadd     (0),
-    isub     (0),
-    imult    (0),
-    idiv     (0),
-    imod     (0),
-    ieq      (0),
-    ineq     (0),
-    ilt      (0),
-    ileq     (0),
-    itod     (0),
-    itos     (0),
-    dprint   (0),
-    duminus  (0),
-    dadd     (0),
-    dsub     (0),
-    dmult    (0),
-    ddiv     (0),
-    deq      (0),
-    dneq     (0),
-    dlt      (0),
-    dleq     (0),
-    dtos     (0),
-    sprint   (0),
-    sconcat  (0),
-    seq      (0),
-    sneq     (0),
-    tconst   (0),
-    fconst   (0),
-    bprint   (0),
-    beq      (0),
-    bneq     (0),
-    and      (0),
-    or       (0),
-    not      (0),
-    btos     (0),
-    halt     (0)
+    iprint   (0, -1),
+    iuminus  (0,  0),
+    iadd     (0, -1),
+    isub     (0, -1),
+    imult    (0, -1),
+    idiv     (0, -1),
+    imod     (0, -1),
+    ieq      (0, -1),
+    ineq     (0, -1),
+    ilt      (0, -1),
+    ileq     (0, -1),
+    itod     (0,  0),
+    itos     (0,  0),
+    dprint   (0, -1),
+    duminus  (0,  0),
+    dadd     (0, -1),
+    dsub     (0, -1),
+    dmult    (0, -1),
+    ddiv     (0, -1),
+    deq      (0, -1),
+    dneq     (0, -1),
+    dlt      (0, -1),
+    dleq     (0, -1),
+    dtos     (0,  0),
+    sprint   (0, -1),
+    sconcat  (0, -1),
+    seq      (0, -1),
+    sneq     (0, -1),
+    tconst   (0, +1),
+    fconst   (0, +1),
+    bprint   (0, -1),
+    beq      (0, -1),
+    bneq     (0, -1),
+    and      (0, -1),
+    or       (0, -1),
+    not      (0,  0),
+    btos     (0,  0),
+    halt     (0,  0),
+    // Saltos (1 argumento: o destino; no ficheiro e o deslocamento em bytes na seccao de codigo,
+    // em memoria e o indice da instrucao). jumpf/jumpt desempilham um booleano e saltam se
+    // este for falso/verdadeiro.
+    jump     (1,  0),
+    jumpf    (1, -1),
+    jumpt    (1, -1),
+    // Superinstrucoes: criadas pela VM ao carregar o programa (ver Superinstructions),
+    // nunca sao geradas pelo compilador
+    iconst_idiv    (1,  0),
+    iconst_imod    (1,  0),
+    iconst_imult   (1,  0),
+    sconcat_sprint (0, -2),
+    iconst_iadd    (1,  0),
+    iconst_isub    (1,  0),
+    sconst_sconcat (1,  0),
+    dconst_ddiv    (1,  0),
+    iconst_iprint  (1,  0),
+    sconst_sprint  (1,  0)
     ;
 
     private final int nArgs;
+    private final int stackEffect;
 
     /**
      * Construtor da enumeracao OpCode.
      *
      * @param nArgs Numero de argumentos da instrucao.
+     * @param stackEffect Variacao da altura da pilha de operandos ao executar a instrucao.
      */
-    OpCode(int nArgs) {
+    OpCode(int nArgs, int stackEffect) {
         this.nArgs = nArgs;
+        this.stackEffect = stackEffect;
     }
 
     /**
@@ -67,6 +88,20 @@ public enum OpCode {
      */
     public int nArgs() { return nArgs; }
 
+    /**
+     * Retorna a variacao da altura da pilha de operandos causada pela instrucao.
+     *
+     * @return Numero de valores empilhados menos o numero de valores desempilhados.
+     */
+    public int stackEffect() { return stackEffect; }
+
+    /**
+     * Indica se a instrucao e um salto (o argumento e o destino).
+     *
+     * @return true para jump, jumpf e jumpt.
+     */
+    public boolean isJump() { return this == jump || this == jumpf || this == jumpt; }
+
     /**
      * Converte um valor byte para o respetivo OpCode.
      *
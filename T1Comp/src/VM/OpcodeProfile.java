@@ -0,0 +1,162 @@
+package VM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Perfil dinamico das instrucoes executadas pela Maquina Virtual.
+ * Conta a frequencia de cada par e de cada trio de opcodes consecutivos na sequencia de
+ * instrucoes efetivamente executadas. As tabelas sao ordenadas por contagem e, em caso de
+ * empate, pelos nomes dos opcodes, pelo que o resultado e reproduzivel.
+ * Conta tambem as execucoes de cada instrucao, que a tabela de linhas do programa (quando
+ * existe) agrupa por linha do codigo fonte.
+ */
+public final class OpcodeProfile {
+    private static final int N = OpCode.values().length;
+    // Numero de entradas mostradas em cada tabela
+    private static final int TOP = 20;
+
+    private final long[] singles = new long[N];
+    private final long[] pairs = new long[N * N];
+    private final long[] triples = new long[N * N * N];
+    private int prev2 = -1;
+    private int prev1 = -1;
+    private long instructions = 0;
+    // execucoes por indice de instrucao e linha do codigo fonte de cada indice (ou null)
+    private long[] perInstruction = new long[64];
+    private IntUnaryOperator sourceLine;
+
+    /**
+     * Regista a execucao de uma instrucao.
+     *
+     * @param opc Opcode da instrucao executada.
+     * @param index Indice da instrucao no codigo.
+     */
+    void record(OpCode opc, int index) {
+        if (index >= perInstruction.length)
+            perInstruction = Arrays.copyOf(perInstruction, Math.max(index + 1, 2 * perInstruction.length));
+        perInstruction[index]++;
+        int cur = opc.ordinal();
+        instructions++;
+        singles[cur]++;
+        if (prev1 >= 0) {
+            pairs[prev1 * N + cur]++;
+            if (prev2 >= 0)
+                triples[(prev2 * N + prev1) * N + cur]++;
+        }
+        prev2 = prev1;
+        prev1 = cur;
+    }
+
+    /**
+     * Retorna o numero de execucoes de uma sequencia de opcodes (de 1 a 3 opcodes).
+     *
+     * @param seq Sequencia de opcodes.
+     * @return Numero de vezes que a sequencia foi executada.
+     */
+    public long count(OpCode... seq) {
+        switch (seq.length) {
+            case 1:
+                return singles[seq[0].ordinal()];
+            case 2:
+                return pairs[seq[0].ordinal() * N + seq[1].ordinal()];
+            case 3:
+                return triples[(seq[0].ordinal() * N + seq[1].ordinal()) * N + seq[2].ordinal()];
+            default:
+                throw new IllegalArgumentException("sequencia de 1 a 3 opcodes");
+        }
+    }
+
+    /**
+     * Indica a linha do codigo fonte de cada instrucao, para a tabela de linhas do relatorio.
+     *
+     * @param sourceLine Linha de um indice de instrucao (0 se desconhecida).
+     */
+    void setSourceLines(IntUnaryOperator sourceLine) {
+        this.sourceLine = sourceLine;
+    }
+
+    /**
+     * Retorna o numero total de instrucoes executadas.
+     *
+     * @return Numero de instrucoes.
+     */
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Junta as sequencias com contagem positiva de uma tabela, ordenadas de forma estavel.
+     */
+    private static ArrayList<long[]> sorted(long[] table) {
+        ArrayList<long[]> rows = new ArrayList<>();
+        for (int i = 0; i < table.length; i++)
+            if (table[i] > 0) rows.add(new long[] { table[i], i });
+        rows.sort(Comparator.<long[]>comparingLong(r -> -r[0]).thenComparingLong(r -> r[1]));
+        return rows;
+    }
+
+    private static String names(long key, int length) {
+        OpCode[] opcodes = OpCode.values();
+        String[] parts = new String[length];
+        for (int i = length - 1; i >= 0; i--) {
+            parts[i] = opcodes[(int) (key % N)].toString();
+            key /= N;
+        }
+        return String.join(" ", parts);
+    }
+
+    private void appendTable(StringBuilder sb, String title, long[] table, int length) {
+        sb.append(title).append(":\n");
+        ArrayList<long[]> rows = sorted(table);
+        for (int i = 0; i < Math.min(TOP, rows.size()); i++) {
+            long[] r = rows.get(i);
+            sb.append(String.format("  %12d  %6.2f%%  %s%n", r[0], 100.0 * r[0] / Math.max(1, instructions),
+                    names(r[1], length)));
+        }
+    }
+
+    private void appendLines(StringBuilder sb) {
+        HashMap<Integer, Long> perLine = new HashMap<>();
+        for (int i = 0; i < perInstruction.length; i++)
+            if (perInstruction[i] > 0)
+                perLine.merge(sourceLine.applyAsInt(i), perInstruction[i], Long::sum);
+        ArrayList<long[]> rows = new ArrayList<>();
+        perLine.forEach((line, count) -> rows.add(new long[] { count, line }));
+        rows.sort(Comparator.<long[]>comparingLong(r -> -r[0]).thenComparingLong(r -> r[1]));
+        sb.append("lines:\n");
+        for (int i = 0; i < Math.min(TOP, rows.size()); i++) {
+            long[] r = rows.get(i);
+            sb.append(String.format("  %12d  %6.2f%%  linha %d%n", r[0], 100.0 * r[0] / Math.max(1, instructions), r[1]));
+        }
+    }
+
+    /**
+     * Converte o perfil para texto: tabelas de pares e trios mais frequentes, linhas do codigo
+     * fonte com mais instrucoes executadas (se conhecidas) e, para cada superinstrucao, a
+     * sequencia que substitui e a sua frequencia.
+     *
+     * @return Relatorio do perfil.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*** Opcode profile ***\n");
+        sb.append("instructions: ").append(instructions).append('\n');
+        appendTable(sb, "pairs", pairs, 2);
+        appendTable(sb, "triples", triples, 3);
+        if (sourceLine != null)
+            appendLines(sb);
+        sb.append("fusions:\n");
+        for (Superinstructions.Fusion f : Superinstructions.FUSIONS) {
+            StringBuilder seq = new StringBuilder();
+            for (OpCode opc : f.pattern())
+                seq.append(seq.length() == 0 ? "" : " ").append(opc);
+            sb.append(String.format("  %12d  %s -> %s%n", count(f.pattern()), seq, f.result()));
+        }
+        return sb.toString();
+    }
+}
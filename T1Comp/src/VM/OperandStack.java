@@ -0,0 +1,72 @@
+package VM;
+
+import java.util.Arrays;
+
+/**
+ * Pilha de operandos da Maquina Virtual baseada em arrays de slots primitivos.
+ * Cada slot e usado por um so tipo: inteiros e booleanos ficam em {@code ints}
+ * (booleano como 0/1), reais em {@code doubles} e strings em {@code strings}.
+ * O tipo de cada slot e conhecido pelo opcode que o le, pelo que nao ha boxing
+ * nem casts na execucao.
+ * A capacidade e a profundidade maxima do programa, verificada ao carrega-lo, pelo que os
+ * arrays nunca crescem e push/pop nao fazem verificacoes.
+ */
+final class OperandStack {
+    private final int[] ints;
+    private final double[] doubles;
+    private final String[] strings;
+    private int sp = 0;
+
+    /**
+     * Cria uma pilha com uma capacidade fixa.
+     *
+     * @param capacity Profundidade maxima da pilha.
+     */
+    OperandStack(int capacity) {
+        ints = new int[capacity];
+        doubles = new double[capacity];
+        strings = new String[capacity];
+    }
+
+    /**
+     * Esvazia a pilha.
+     */
+    void clear() {
+        Arrays.fill(strings, 0, sp, null);
+        sp = 0;
+    }
+
+    void pushInt(int v) {
+        ints[sp++] = v;
+    }
+
+    int popInt() {
+        return ints[--sp];
+    }
+
+    void pushBool(boolean b) {
+        ints[sp++] = b ? 1 : 0;
+    }
+
+    boolean popBool() {
+        return ints[--sp] != 0;
+    }
+
+    void pushDouble(double v) {
+        doubles[sp++] = v;
+    }
+
+    double popDouble() {
+        return doubles[--sp];
+    }
+
+    void pushString(String s) {
+        strings[sp++] = s;
+    }
+
+    String popString() {
+        String s = strings[--sp];
+        strings[sp] = null;
+        return s;
+    }
+}
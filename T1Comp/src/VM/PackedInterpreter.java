@@ -0,0 +1,424 @@
+package VM;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Interpretador do codigo compactado num int[].
+ * Cada instrucao ocupa uma palavra com o codigo do opcode, seguida do argumento em linha
+ * quando o opcode o tem; o argumento dos saltos e o deslocamento (em palavras) do destino.
+ * A execucao decorre num unico ciclo de despacho, com o IP, o SP e os arrays da pilha em
+ * variaveis locais.
+ */
+final class PackedInterpreter {
+    // Codigos das palavras de opcode, numerados aqui e nao pelos ordinais de OpCode (os casos
+    // do switch de run() tem de ser constantes); CODES e OPCODES convertem nos dois sentidos
+    static final int ICONST = 0, DCONST = 1, SCONST = 2, IPRINT = 3, IUMINUS = 4, IADD = 5,
+            ISUB = 6, IMULT = 7, IDIV = 8, IMOD = 9, IEQ = 10, INEQ = 11, ILT = 12, ILEQ = 13,
+            ITOD = 14, ITOS = 15, DPRINT = 16, DUMINUS = 17, DADD = 18, DSUB = 19, DMULT = 20,
+            DDIV = 21, DEQ = 22, DNEQ = 23, DLT = 24, DLEQ = 25, DTOS = 26, SPRINT = 27,
+            SCONCAT = 28, SEQ = 29, SNEQ = 30, TCONST = 31, FCONST = 32, BPRINT = 33, BEQ = 34,
+            BNEQ = 35, AND = 36, OR = 37, NOT = 38, BTOS = 39, HALT = 40,
+            JUMP = 41, JUMPF = 42, JUMPT = 43,
+            ICONST_IDIV = 44, ICONST_IMOD = 45, ICONST_IMULT = 46, SCONCAT_SPRINT = 47,
+            ICONST_IADD = 48, ICONST_ISUB = 49, SCONST_SCONCAT = 50, DCONST_DDIV = 51,
+            ICONST_IPRINT = 52, SCONST_SPRINT = 53;
+
+    // Codigo de cada opcode, indexado pelo ordinal em OpCode, e opcode de cada codigo
+    static final int[] CODES = new int[OpCode.values().length];
+    static final OpCode[] OPCODES = new OpCode[OpCode.values().length];
+
+    static {
+        for (OpCode opc : OpCode.values()) {
+            CODES[opc.ordinal()] = code(opc);
+            OPCODES[code(opc)] = opc;
+        }
+    }
+
+    /**
+     * Retorna o codigo de um opcode. O switch nao tem default: um opcode novo em OpCode sem
+     * codigo aqui e um erro de compilacao.
+     *
+     * @param opc Opcode.
+     * @return Codigo do opcode no codigo compactado.
+     */
+    private static int code(OpCode opc) {
+        return switch (opc) {
+            case iconst -> ICONST;
+            case dconst -> DCONST;
+            case sconst -> SCONST;
+            case iprint -> IPRINT;
+            case iuminus -> IUMINUS;
+            case iadd -> IADD;
+            case isub -> ISUB;
+            case imult -> IMULT;
+            case idiv -> IDIV;
+            case imod -> IMOD;
+            case ieq -> IEQ;
+            case ineq -> INEQ;
+            case ilt -> ILT;
+            case ileq -> ILEQ;
+            case itod -> ITOD;
+            case itos -> ITOS;
+            case dprint -> DPRINT;
+            case duminus -> DUMINUS;
+            case dadd -> DADD;
+            case dsub -> DSUB;
+            case dmult -> DMULT;
+            case ddiv -> DDIV;
+            case deq -> DEQ;
+            case dneq -> DNEQ;
+            case dlt -> DLT;
+            case dleq -> DLEQ;
+            case dtos -> DTOS;
+            case sprint -> SPRINT;
+            case sconcat -> SCONCAT;
+            case seq -> SEQ;
+            case sneq -> SNEQ;
+            case tconst -> TCONST;
+            case fconst -> FCONST;
+            case bprint -> BPRINT;
+            case beq -> BEQ;
+            case bneq -> BNEQ;
+            case and -> AND;
+            case or -> OR;
+            case not -> NOT;
+            case btos -> BTOS;
+            case halt -> HALT;
+            case jump -> JUMP;
+            case jumpf -> JUMPF;
+            case jumpt -> JUMPT;
+            case iconst_idiv -> ICONST_IDIV;
+            case iconst_imod -> ICONST_IMOD;
+            case iconst_imult -> ICONST_IMULT;
+            case sconcat_sprint -> SCONCAT_SPRINT;
+            case iconst_iadd -> ICONST_IADD;
+            case iconst_isub -> ICONST_ISUB;
+            case sconst_sconcat -> SCONST_SCONCAT;
+            case dconst_ddiv -> DCONST_DDIV;
+            case iconst_iprint -> ICONST_IPRINT;
+            case sconst_sprint -> SCONST_SPRINT;
+        };
+    }
+
+    private int[] words;
+    private int length = 0;
+    // deslocamento de cada instrucao acrescentada e posicoes dos opcodes de salto
+    private int[] starts = new int[64];
+    private int count = 0;
+    private int[] jumps = new int[8];
+    private int numJumps = 0;
+
+    PackedInterpreter() {
+        this(256);
+    }
+
+    /**
+     * Construtor com a capacidade inicial do codigo, quando o tamanho final e conhecido.
+     *
+     * @param capacity Numero de palavras previsto.
+     */
+    PackedInterpreter(int capacity) {
+        words = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Acrescenta uma instrucao sem argumentos ao codigo compactado.
+     *
+     * @param opc Opcode da instrucao.
+     */
+    void add(OpCode opc) {
+        if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+        starts[count++] = length;
+        if (opc.isJump()) {
+            if (numJumps == jumps.length) jumps = Arrays.copyOf(jumps, numJumps * 2);
+            jumps[numJumps++] = length;
+        }
+        if (length == words.length) words = Arrays.copyOf(words, length * 2);
+        words[length++] = CODES[opc.ordinal()];
+    }
+
+    /**
+     * Acrescenta uma instrucao com um argumento ao codigo compactado.
+     *
+     * @param opc Opcode da instrucao.
+     * @param arg Valor do argumento.
+     */
+    void add(OpCode opc, int arg) {
+        add(opc);
+        if (length == words.length) words = Arrays.copyOf(words, length * 2);
+        words[length++] = arg;
+    }
+
+    /**
+     * Devolve o codigo compactado com o tamanho exato; os argumentos dos saltos sao indices
+     * de instrucoes e passam a deslocamentos no codigo compactado.
+     *
+     * @return Array de palavras.
+     */
+    int[] toArray() {
+        return toArray(IntUnaryOperator.identity());
+    }
+
+    /**
+     * Devolve o codigo compactado com o tamanho exato, convertendo o argumento de cada salto
+     * num indice de instrucao com {@code target} e depois no deslocamento dessa instrucao.
+     *
+     * @param target Conversao do argumento de um salto no indice da instrucao de destino.
+     * @return Array de palavras.
+     */
+    int[] toArray(IntUnaryOperator target) {
+        int[] packed = Arrays.copyOf(words, length);
+        for (int j = 0; j < numJumps; j++) {
+            int index = target.applyAsInt(packed[jumps[j] + 1]);
+            packed[jumps[j] + 1] = index == count ? length : starts[index];
+        }
+        return packed;
+    }
+
+    /**
+     * Converte o codigo compactado em indices de instrucoes: a posicao i do resultado
+     * tem o indice da instrucao que comeca na palavra i (ou -1 se nenhuma comeca ali).
+     *
+     * @param code Codigo compactado.
+     * @return Indice de cada palavra, com uma entrada extra para o fim do codigo.
+     */
+    static int[] instructionIndex(int[] code) {
+        int[] index = new int[code.length + 1];
+        Arrays.fill(index, -1);
+        int n = 0;
+        for (int ip = 0; ip < code.length; n++) {
+            index[ip] = n;
+            ip += 1 + OPCODES[code[ip]].nArgs();
+        }
+        index[code.length] = n;
+        return index;
+    }
+
+    /**
+     * Mostra no ecran as instrucoes do codigo compactado.
+     *
+     * @param code Codigo compactado.
+     */
+    static void dump(int[] code) {
+        int n = 0;
+        for (int ip = 0; ip < code.length; n++) {
+            OpCode opc = OPCODES[code[ip++]];
+            if (opc.nArgs() == 1)
+                System.out.println(n + ": " + opc + " " + code[ip++]);
+            else
+                System.out.println(n + ": " + opc);
+        }
+    }
+
+    /**
+     * Executa o codigo compactado.
+     *
+     * @param code Codigo compactado.
+     * @param doubleConstants Constantes reais, indexadas como na pool.
+     * @param stringConstants Constantes string, indexadas como na pool.
+     * @param maxStack Profundidade maxima da pilha, verificada ao carregar o programa.
+     */
+    static void run(int[] code, double[] doubleConstants, String[] stringConstants, int maxStack) {
+        // a pilha tem o tamanho final: nenhuma instrucao precisa de a fazer crescer
+        int[] ints = new int[maxStack];
+        double[] doubles = new double[maxStack];
+        String[] strings = new String[maxStack];
+        int sp = 0;
+        int ip = 0;
+
+        while (ip < code.length) {
+            switch (code[ip++]) {
+                case ICONST:
+                    ints[sp++] = code[ip++];
+                    break;
+                case DCONST:
+                    doubles[sp++] = doubleConstants[code[ip++]];
+                    break;
+                case SCONST:
+                    strings[sp++] = stringConstants[code[ip++]];
+                    break;
+                case TCONST:
+                    ints[sp++] = 1;
+                    break;
+                case FCONST:
+                    ints[sp++] = 0;
+                    break;
+
+                case IPRINT:
+                    System.out.println(ints[--sp]);
+                    break;
+                case IUMINUS:
+                    ints[sp - 1] = -ints[sp - 1];
+                    break;
+                case IADD:
+                    sp--; ints[sp - 1] = ints[sp - 1] + ints[sp];
+                    break;
+                case ISUB:
+                    sp--; ints[sp - 1] = ints[sp - 1] - ints[sp];
+                    break;
+                case IMULT:
+                    sp--; ints[sp - 1] = ints[sp - 1] * ints[sp];
+                    break;
+                case IDIV:
+                    sp--;
+                    if (ints[sp] == 0) VM.runtime_error("division by 0", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] / ints[sp];
+                    break;
+                case IMOD:
+                    sp--;
+                    if (ints[sp] == 0) VM.runtime_error("0 is not valid in %", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] % ints[sp];
+                    break;
+                case IEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] == ints[sp] ? 1 : 0;
+                    break;
+                case INEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] != ints[sp] ? 1 : 0;
+                    break;
+                case ILT:
+                    sp--; ints[sp - 1] = ints[sp - 1] < ints[sp] ? 1 : 0;
+                    break;
+                case ILEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] <= ints[sp] ? 1 : 0;
+                    break;
+                case ITOD:
+                    doubles[sp - 1] = ints[sp - 1];
+                    break;
+                case ITOS:
+                    strings[sp - 1] = Integer.toString(ints[sp - 1]);
+                    break;
+
+                case DPRINT:
+                    System.out.println(doubles[--sp]);
+                    break;
+                case DUMINUS:
+                    doubles[sp - 1] = -doubles[sp - 1];
+                    break;
+                case DADD:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] + doubles[sp];
+                    break;
+                case DSUB:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] - doubles[sp];
+                    break;
+                case DMULT:
+                    sp--; doubles[sp - 1] = doubles[sp - 1] * doubles[sp];
+                    break;
+                case DDIV:
+                    sp--;
+                    if (Math.abs(doubles[sp]) < 10e-9) VM.runtime_error("division by 0", ip - 1);
+                    doubles[sp - 1] = doubles[sp - 1] / doubles[sp];
+                    break;
+                case DEQ:
+                    sp--; ints[sp - 1] = Math.abs(doubles[sp - 1] - doubles[sp]) < 10e-9 ? 1 : 0;
+                    break;
+                case DNEQ:
+                    sp--; ints[sp - 1] = Math.abs(doubles[sp - 1] - doubles[sp]) >= 10e-9 ? 1 : 0;
+                    break;
+                case DLT:
+                    sp--; ints[sp - 1] = doubles[sp - 1] < doubles[sp] ? 1 : 0;
+                    break;
+                case DLEQ:
+                    sp--; ints[sp - 1] = doubles[sp - 1] <= doubles[sp] ? 1 : 0;
+                    break;
+                case DTOS:
+                    strings[sp - 1] = Double.toString(doubles[sp - 1]);
+                    break;
+
+                case SPRINT:
+                    System.out.println(strings[--sp]);
+                    strings[sp] = null;
+                    break;
+                case SCONCAT:
+                    sp--; strings[sp - 1] = strings[sp - 1] + strings[sp];
+                    strings[sp] = null;
+                    break;
+                case SEQ:
+                    sp--; ints[sp - 1] = strings[sp - 1].equals(strings[sp]) ? 1 : 0;
+                    strings[sp] = null;
+                    break;
+                case SNEQ:
+                    sp--; ints[sp - 1] = strings[sp - 1].equals(strings[sp]) ? 0 : 1;
+                    strings[sp] = null;
+                    break;
+
+                case BPRINT:
+                    System.out.println(ints[--sp] != 0 ? "verdadeiro" : "falso");
+                    break;
+                case BEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] == ints[sp] ? 1 : 0;
+                    break;
+                case BNEQ:
+                    sp--; ints[sp - 1] = ints[sp - 1] != ints[sp] ? 1 : 0;
+                    break;
+                case AND:
+                    sp--; ints[sp - 1] = ints[sp - 1] & ints[sp];
+                    break;
+                case OR:
+                    sp--; ints[sp - 1] = ints[sp - 1] | ints[sp];
+                    break;
+                case NOT:
+                    ints[sp - 1] ^= 1;
+                    break;
+                case BTOS:
+                    strings[sp - 1] = ints[sp - 1] != 0 ? "verdadeiro" : "falso";
+                    break;
+                case HALT:
+                    return;
+                case JUMP:
+                    ip = code[ip];
+                    break;
+                case JUMPF:
+                    ip = ints[--sp] == 0 ? code[ip] : ip + 1;
+                    break;
+                case JUMPT:
+                    ip = ints[--sp] != 0 ? code[ip] : ip + 1;
+                    break;
+
+                // superinstrucoes
+                case ICONST_IDIV:
+                    if (code[ip] == 0) VM.runtime_error("division by 0", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] / code[ip++];
+                    break;
+                case ICONST_IMOD:
+                    if (code[ip] == 0) VM.runtime_error("0 is not valid in %", ip - 1);
+                    ints[sp - 1] = ints[sp - 1] % code[ip++];
+                    break;
+                case ICONST_IMULT:
+                    ints[sp - 1] = ints[sp - 1] * code[ip++];
+                    break;
+                case SCONCAT_SPRINT:
+                    sp -= 2;
+                    System.out.println(strings[sp] + strings[sp + 1]);
+                    strings[sp] = strings[sp + 1] = null;
+                    break;
+                case ICONST_IADD:
+                    ints[sp - 1] = ints[sp - 1] + code[ip++];
+                    break;
+                case ICONST_ISUB:
+                    ints[sp - 1] = ints[sp - 1] - code[ip++];
+                    break;
+                case SCONST_SCONCAT:
+                    strings[sp - 1] = strings[sp - 1] + stringConstants[code[ip++]];
+                    break;
+                case DCONST_DDIV: {
+                    double right = doubleConstants[code[ip]];
+                    if (Math.abs(right) < 10e-9) VM.runtime_error("division by 0", ip - 1);
+                    ip++;
+                    doubles[sp - 1] = doubles[sp - 1] / right;
+                    break;
+                }
+                case ICONST_IPRINT:
+                    System.out.println(code[ip++]);
+                    break;
+                case SCONST_SPRINT:
+                    System.out.println(stringConstants[code[ip++]]);
+                    break;
+
+                default:
+                    System.out.println("This should never happen! In file PackedInterpreter.java, method run()");
+                    System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package VM;
+
+/**
+ * Erro de execucao de um programa (divisao por zero, ...), lancado pelos motores da Maquina
+ * Virtual e tratado por {@link VM#run()}, que o mostra e termina a execucao.
+ * A posicao da instrucao que falhou esta na representacao do codigo do motor: indice da
+ * instrucao, deslocamento em palavras (PACKED) ou em bytes (MAPPED). So e convertida para a
+ * posicao no codigo fonte quando o erro acontece.
+ */
+final class RuntimeError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int position;
+
+    /**
+     * Construtor do erro; nao guarda o stack trace, que nao e mostrado.
+     *
+     * @param message Mensagem do erro.
+     * @param position Posicao da instrucao que falhou, no codigo do motor.
+     */
+    RuntimeError(String message, int position) {
+        super(message, null, false, false);
+        this.position = position;
+    }
+
+    /**
+     * Retorna a posicao da instrucao que falhou.
+     *
+     * @return Posicao no codigo do motor.
+     */
+    int getPosition() {
+        return position;
+    }
+}
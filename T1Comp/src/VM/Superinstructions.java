@@ -0,0 +1,170 @@
+package VM;
+
+import VM.Instruction.Instruction;
+import VM.Instruction.Instruction1Arg;
+
+/**
+ * Fusao de sequencias frequentes de instrucoes em superinstrucoes, feita ao carregar o programa.
+ * Cada fusao reduz o numero de despachos do interpretador sem alterar o resultado.
+ */
+final class Superinstructions {
+
+    /**
+     * Regra de fusao: a sequencia {@code pattern} e substituida pela superinstrucao {@code result},
+     * cujo argumento e o da unica instrucao da sequencia que o tem.
+     *
+     * <p>A avaliacao de constantes (iconst iconst iadd, tconst not, ...) nao e feita aqui: e do
+     * ConstantFolder e do PeepholeOptimizer, no compilador.</p>
+     *
+     * @param result Superinstrucao resultante.
+     * @param pattern Sequencia de opcodes a substituir.
+     */
+    record Fusion(OpCode result, OpCode... pattern) {
+    }
+
+    // Pares escolhidos a partir do perfil do tools/OpcodeProfileRun (corpus em tools/corpus,
+    // compilado com --no-folding --no-peephole), pela regra que este aplica: o par cobre pelo
+    // menos 1% das instrucoes executadas, o segundo opcode consome o valor empilhado pelo
+    // primeiro (nao sao duas constantes seguidas, nem um 'escreve' seguido da estatistica
+    // seguinte) e nao e reescrito pelo PeepholeOptimizer. Ficam de fora, por isso, iconst itod e
+    // iconst iuminus, e tambem tconst not e fconst not: estas sequencias sao avaliadas pelas
+    // regras do PeepholeOptimizer e nao chegam a VM. Por ordem da percentagem
+    // medida, que e tambem a ordem de prioridade (a primeira regra que se aplica e usada); o
+    // OpcodeProfileRun falha se esta tabela nao corresponder ao perfil.
+    static final Fusion[] FUSIONS = {
+            new Fusion(OpCode.iconst_idiv, OpCode.iconst, OpCode.idiv),            // 2.79%
+            new Fusion(OpCode.iconst_imod, OpCode.iconst, OpCode.imod),            // 2.58%
+            new Fusion(OpCode.iconst_imult, OpCode.iconst, OpCode.imult),          // 2.02%
+            new Fusion(OpCode.sconcat_sprint, OpCode.sconcat, OpCode.sprint),      // 1.93%
+            new Fusion(OpCode.iconst_iadd, OpCode.iconst, OpCode.iadd),            // 1.80%
+            new Fusion(OpCode.iconst_isub, OpCode.iconst, OpCode.isub),            // 1.79%
+            new Fusion(OpCode.sconst_sconcat, OpCode.sconst, OpCode.sconcat),      // 1.32%
+            new Fusion(OpCode.dconst_ddiv, OpCode.dconst, OpCode.ddiv),            // 1.20%
+            new Fusion(OpCode.iconst_iprint, OpCode.iconst, OpCode.iprint),        // 1.14%
+            new Fusion(OpCode.sconst_sprint, OpCode.sconst, OpCode.sprint),        // 1.05%
+    };
+
+    private Superinstructions() {
+    }
+
+    /**
+     * Aplica as fusoes a uma sequencia de instrucoes, da esquerda para a direita.
+     * Os arrays de opcodes e argumentos sao reescritos no proprio lugar. Uma sequencia so e
+     * fundida se nenhuma das suas instrucoes, exceto a primeira, for destino de um salto; os
+     * destinos dos saltos (indices de instrucoes) sao atualizados no fim.
+     *
+     * @param ops Ordinais dos opcodes.
+     * @param args Argumentos (ignorados nas instrucoes sem argumentos).
+     * @param n Numero de instrucoes.
+     * @param origin Se nao for null, recebe o indice original de cada instrucao resultante (numa
+     *               superinstrucao, o da ultima instrucao da sequencia, a unica que pode falhar).
+     * @return Numero de instrucoes depois da fusao.
+     */
+    private static int fuse(int[] ops, int[] args, int n, int[] origin) {
+        OpCode[] opcodes = OpCode.values();
+        boolean[] targets = new boolean[n + 1];
+        boolean hasJumps = false;
+        for (int i = 0; i < n; i++)
+            if (opcodes[ops[i]].isJump()) {
+                targets[args[i]] = true;
+                hasJumps = true;
+            }
+        int[] newIndex = new int[n + 1];
+
+        int out = 0;
+        int i = 0;
+        while (i < n) {
+            Fusion match = null;
+            for (Fusion f : FUSIONS) {
+                OpCode[] p = f.pattern();
+                if (i + p.length > n) continue;
+                int k = 0;
+                while (k < p.length && ops[i + k] == p[k].ordinal() && (k == 0 || !targets[i + k])) k++;
+                if (k == p.length) {
+                    match = f;
+                    break;
+                }
+            }
+            if (origin != null)
+                origin[out] = match == null ? i : i + match.pattern().length - 1;
+            if (match == null) {
+                newIndex[i] = out;
+                ops[out] = ops[i];
+                args[out++] = args[i++];
+                continue;
+            }
+            OpCode[] p = match.pattern();
+            int arg = 0;
+            for (int k = 0; k < p.length; k++)
+                if (p[k].nArgs() == 1) arg = args[i + k];
+            for (int k = 0; k < p.length; k++)
+                newIndex[i + k] = out;
+            ops[out] = match.result().ordinal();
+            args[out++] = arg;
+            i += p.length;
+        }
+        newIndex[n] = out;
+        if (hasJumps)
+            for (int j = 0; j < out; j++)
+                if (opcodes[ops[j]].isJump())
+                    args[j] = newIndex[args[j]];
+        return out;
+    }
+
+    /**
+     * Aplica as fusoes ao codigo do interpretador de referencia.
+     *
+     * @param code Instrucoes do programa.
+     * @param origin Se nao for null, recebe o indice original de cada instrucao resultante.
+     * @return Instrucoes com as superinstrucoes.
+     */
+    static Instruction[] fuse(Instruction[] code, int[] origin) {
+        int n = code.length;
+        int[] ops = new int[n];
+        int[] args = new int[n];
+        for (int i = 0; i < n; i++) {
+            ops[i] = code[i].getOpCode().ordinal();
+            if (code[i] instanceof Instruction1Arg inst1)
+                args[i] = inst1.getArg();
+        }
+        n = fuse(ops, args, n, origin);
+        OpCode[] opcodes = OpCode.values();
+        Instruction[] fused = new Instruction[n];
+        for (int i = 0; i < n; i++) {
+            OpCode opc = opcodes[ops[i]];
+            fused[i] = opc.nArgs() == 1 ? new Instruction1Arg(opc, args[i]) : new Instruction(opc);
+        }
+        return fused;
+    }
+
+    /**
+     * Aplica as fusoes ao codigo compactado do motor PACKED.
+     *
+     * @param packed Codigo compactado.
+     * @param origin Se nao for null, recebe o indice original de cada instrucao resultante.
+     * @return Codigo compactado com as superinstrucoes.
+     */
+    static int[] fuse(int[] packed, int[] origin) {
+        OpCode[] opcodes = OpCode.values();
+        int[] ops = new int[packed.length];
+        int[] args = new int[packed.length];
+        // os saltos do codigo compactado usam deslocamentos; aqui passam a indices de instrucoes
+        int[] index = PackedInterpreter.instructionIndex(packed);
+        int n = 0;
+        for (int ip = 0; ip < packed.length; n++) {
+            ops[n] = PackedInterpreter.OPCODES[packed[ip++]].ordinal();
+            if (opcodes[ops[n]].nArgs() == 1)
+                args[n] = packed[ip++];
+            if (opcodes[ops[n]].isJump())
+                args[n] = index[args[n]];
+        }
+        n = fuse(ops, args, n, origin);
+        PackedInterpreter out = new PackedInterpreter();
+        for (int i = 0; i < n; i++) {
+            OpCode opc = opcodes[ops[i]];
+            if (opc.nArgs() == 1) out.add(opc, args[i]);
+            else out.add(opc);
+        }
+        return out.toArray();
+    }
+}
@@ -4,100 +4,376 @@ import VM.Instruction.Instruction;
 import VM.Instruction.Instruction1Arg;
 
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
 
 
 public class VM {
+    private final Engine engine;
     private Instruction[] code;
+    // packed code, used instead of this.code by the PACKED engine
+    private int[] packedCode;
+    // MAPPED engine: the instruction bytes, read in place from the mapped file
+    private ByteBuffer mappedCode;
+    // version of the loaded bytecodes and, for v2, the (undecoded) metadata section
+    private int formatVersion;
+    private ByteBuffer metadataSection;
+    // line table of a v2 file (undecoded), only read on a runtime error or when profiling
+    private ByteBuffer linesSection;
+    // superinstruction fusion: original index of each fused instruction (only with a line table)
+    private int[] fusedOrigin;
+    // JIT engine: region bounds and the compiled region (null if left to the interpreter)
+    private int[] regionBounds;
+    private MethodHandle[] compiledRegions;
+    // opcode pair/triple profile, recorded by the reference interpreter when enabled
+    private OpcodeProfile profile;
+    // superinstruction fusion (INTERPRETER and PACKED), applied once before the first run
+    private boolean fusion = true;
+    private boolean prepared = false;
     private int IP;
-    private final Stack<Object> stack = new Stack<>();
+    private boolean halted;
+    // operand stack with the maximum depth of the program, allocated once it is loaded
+    private OperandStack stack;
+    private int maxStack;
+    // false if the bytecodes were rejected when loading them; such a program is never run
+    private boolean loaded = false;
     private final ArrayList<Object> constantPool = new ArrayList<>();
+    // typed views of the constant pool (same indices in v1, one pool per type in v2),
+    // so dconst/sconst need no unboxing or casts
+    private double[] doubleConstants;
+    private String[] stringConstants;
 
 
 
     public VM(String filename) {
-        decode(filename);
+        this(filename, Engine.INTERPRETER);
+    }
+
+    public VM(String filename, Engine engine) {
+        this.engine = engine;
+        // map the whole file at once instead of reading it byte by byte
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        catch (IOException e) {
+            System.out.println(e);
+        }
+        initEngine();
+    }
+
+    // run a program handed over in memory (e.g. by CodeGen.toBytecodes()), with no file involved
+    public VM(ByteBuffer bytecodes, Engine engine) {
+        this.engine = engine;
+        decode(bytecodes.duplicate());
+        initEngine();
+    }
+
+    private void initEngine() {
         this.IP = 0;
+        if (!loaded)
+            return;
+        stack = new OperandStack(maxStack);
+        if (engine == Engine.JIT)
+            compileRegions();
     }
 
 
 
     // decode the bytecodes into instructions and store them in this.code
-    private void decode(String filename) {
-        ArrayList<Instruction> inst = new ArrayList<>();
+    // (or in this.packedCode, for the PACKED engine; the MAPPED engine only loads the constant pool)
+    private void decode(ByteBuffer buf) {
+        buf.order(ByteOrder.BIG_ENDIAN);
         try {
-            // feed the bytecodes into a data input stream
-            DataInputStream din = new DataInputStream(new FileInputStream(filename));
-
-            int numConstants = din.readInt();
-
-            for (int i = 0; i < numConstants; i++) {
-                int type = din.readUnsignedByte();
-                if (type == 1) {
-                    constantPool.add(din.readDouble());
-                } else if (type == 3) {
-                    int length = din.readInt();
-                    char[] chars = new char[length];
-                    for (int j = 0; j < length; j++) {
-                        chars[j] = din.readChar();
-                    }
-                    constantPool.add(new String(chars));
-                } else {
-                    throw new IOException("Tipo de constante invalido.");
-                }
-            }
-
-
+            if (BytecodeFormat.hasHeader(buf))
+                decodeV2(buf);
+            else
+                decodeV1(buf);
+            loaded = true;
+        }
+        catch (BufferUnderflowException e) {
+            System.out.println(new EOFException("Bytecodes truncados."));
+        }
+        catch (UncheckedIOException e) {
+            System.out.println(e.getCause());
+        }
+        catch (IOException e) {
+            System.out.println(e);
+        }
+    }
 
 
-            // convert them into intructions
-            while (true) {
-                byte b = din.readByte();
-                OpCode opc = OpCode.convert(b);
-                switch (opc.nArgs()) {
-                    case 0:
-                        inst.add(new Instruction(opc));
-                        break;
-                    case 1:
-                        int val = din.readInt();
-                        inst.add(new Instruction1Arg(opc, val));
-                        break;
-                    default:
-                        System.out.println("This should never happen! In file VM.java, method decode(...)");
-                        System.exit(1);
-                }
+    // v1: a single tagged constant pool, followed by the instructions up to the end of the buffer
+    private void decodeV1(ByteBuffer buf) throws IOException {
+        formatVersion = 1;
+        int numConstants = buf.getInt();
+        doubleConstants = new double[numConstants];
+        stringConstants = new String[numConstants];
+
+        for (int i = 0; i < numConstants; i++) {
+            int type = buf.get() & 0xFF;
+            if (type == 1) {
+                doubleConstants[i] = buf.getDouble();
+                constantPool.add(doubleConstants[i]);
+            } else if (type == 3) {
+                int length = buf.getInt();
+                // decode all the characters of the string in one go
+                char[] chars = new char[length];
+                buf.asCharBuffer().get(chars);
+                buf.position(buf.position() + 2 * length);
+                stringConstants[i] = new String(chars);
+                constantPool.add(stringConstants[i]);
+            } else {
+                throw new IOException("Tipo de constante invalido.");
             }
         }
-        catch (EOFException e) {
-            // System.out.println("reached end of input stream");
-            // reached end of input stream, convert arraylist to array
-            this.code = new Instruction[ inst.size() ];
-            inst.toArray(this.code);
+        decodeInstructions(buf.slice(), -1, -1);
+    }
+
+
+    // v2: header and section table; only the sections needed to run are decoded
+    private void decodeV2(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        int size = buf.remaining();
+        buf.getInt();   // magic
+        formatVersion = buf.getShort() & 0xFFFF;
+        int numSections = buf.getShort() & 0xFFFF;
+        if (formatVersion != BytecodeFormat.VERSION)
+            throw new IOException("Versao de bytecodes nao suportada: " + formatVersion);
+
+        ByteBuffer doubles = null, strings = null, instructions = null;
+        int declaredStack = -1;
+        for (int i = 0; i < numSections; i++) {
+            int id = buf.getInt();
+            int offset = buf.getInt();
+            int length = buf.getInt();
+            if (offset < 0 || length < 0 || offset > size - length)
+                throw new IOException("Seccao " + id + " fora dos bytecodes.");
+            ByteBuffer section = buf.slice(start + offset, length);
+            switch (id) {
+                case BytecodeFormat.SECTION_DOUBLES: doubles = section; break;
+                case BytecodeFormat.SECTION_STRINGS: strings = section; break;
+                case BytecodeFormat.SECTION_CODE: instructions = section; break;
+                case BytecodeFormat.SECTION_METADATA: metadataSection = section; break;
+                case BytecodeFormat.SECTION_LINES: linesSection = section; break;
+                case BytecodeFormat.SECTION_STACK:
+                    declaredStack = section.getInt();
+                    if (declaredStack < 0)
+                        throw new IOException("Profundidade maxima da pilha invalida: " + declaredStack + ".");
+                    break;
+                default: break;     // unknown sections are skipped
+            }
         }
-        catch (IOException e) {
-            System.out.println(e);
+        if (doubles == null || strings == null || instructions == null)
+            throw new IOException("Seccao obrigatoria em falta nos bytecodes.");
+
+        doubleConstants = new double[doubles.getInt()];
+        for (int i = 0; i < doubleConstants.length; i++)
+            doubleConstants[i] = doubles.getDouble();
+        stringConstants = new String[strings.getInt()];
+        for (int i = 0; i < stringConstants.length; i++)
+            stringConstants[i] = BytecodeFormat.getString(strings);
+
+        int count = instructions.getInt();
+        decodeInstructions(instructions.slice(), count, declaredStack);
+    }
+
+
+    // decode the instruction bytes (count is -1 when unknown, in v1; declaredStack is -1 when
+    // the bytecodes do not declare the maximum stack depth)
+    private void decodeInstructions(ByteBuffer buf, int count, int declaredStack) throws IOException {
+        // the interpreters trust the types and the depth of the stack, so the code is verified
+        // here, before running; the stack is then allocated once with its final size
+        IntPredicate isDouble = formatVersion == 1
+                ? i -> i >= 0 && i < constantPool.size() && constantPool.get(i) instanceof Double
+                : i -> i >= 0 && i < doubleConstants.length;
+        IntPredicate isString = formatVersion == 1
+                ? i -> i >= 0 && i < constantPool.size() && constantPool.get(i) instanceof String
+                : i -> i >= 0 && i < stringConstants.length;
+        int depth = Verifier.verify(buf, isDouble, isString);
+        if (declaredStack >= 0 && depth > declaredStack)
+            throw new IOException("Profundidade da pilha (" + depth + ") excede o maximo declarado ("
+                    + declaredStack + ").");
+        maxStack = declaredStack >= 0 ? declaredStack : depth;
+
+        if (engine == Engine.MAPPED) {
+            // the instructions are executed from the buffer, starting here
+            this.mappedCode = buf;
+            return;
         }
+
+        boolean isPacked = engine == Engine.PACKED;
+        // with a known count the arrays are allocated with their exact size
+        PackedInterpreter packed = isPacked
+                ? new PackedInterpreter(count < 0 ? buf.remaining() / 2 : count + (buf.remaining() - count) / 4)
+                : null;
+        Instruction[] inst = new Instruction[isPacked ? 0 : count < 0 ? 64 : count];
+        // byte offset of each instruction, to turn jump targets into instruction indices
+        int[] starts = new int[count < 0 ? 64 : count];
+        int codeLength = buf.remaining();
+        boolean hasJumps = false;
+        OpCode[] opcodes = OpCode.values();
+        int n = 0;
+
+        // convert them into intructions
+        while (buf.hasRemaining()) {
+            if (n == starts.length) starts = Arrays.copyOf(starts, Math.max(16, 2 * n));
+            starts[n] = buf.position();
+            byte b = buf.get();
+            OpCode opc = opcodes[b];
+            hasJumps |= opc.isJump();
+            switch (opc.nArgs()) {
+                case 0:
+                    if (isPacked) packed.add(opc);
+                    else {
+                        if (n == inst.length) inst = Arrays.copyOf(inst, Math.max(16, 2 * n));
+                        inst[n] = new Instruction(opc);
+                    }
+                    n++;
+                    break;
+                case 1:
+                    int val = buf.getInt();
+                    if (isPacked) packed.add(opc, val);
+                    else {
+                        if (n == inst.length) inst = Arrays.copyOf(inst, Math.max(16, 2 * n));
+                        inst[n] = new Instruction1Arg(opc, val);
+                    }
+                    n++;
+                    break;
+            }
+        }
+        if (count >= 0 && n != count)
+            throw new IOException("Numero de instrucoes invalido: " + n + " em vez de " + count + ".");
+
+        // reached end of input, trim the array
+        this.code = n == inst.length ? inst : Arrays.copyOf(inst, n);
+        final int[] offsets = starts;
+        final int numInstructions = n;
+        if (isPacked)
+            this.packedCode = packed.toArray(offset -> jumpTarget(offsets, numInstructions, codeLength, offset));
+        else if (hasJumps)
+            for (int i = 0; i < n; i++)
+                if (code[i].getOpCode().isJump()) {
+                    Instruction1Arg jump = (Instruction1Arg) code[i];
+                    jump.setArg(jumpTarget(starts, n, codeLength, jump.getArg()));
+                }
+    }
+
+
+    // index of the instruction that starts at a byte offset of the code (n for the end of the code)
+    private static int jumpTarget(int[] starts, int n, int codeLength, int offset) {
+        if (offset == codeLength)
+            return n;
+        int index = Arrays.binarySearch(starts, 0, n, offset);
+        if (index < 0)
+            throw new UncheckedIOException(new IOException("Destino de salto invalido: " + offset + "."));
+        return index;
+    }
+
+
+    // split the code into empty-stack regions and compile each one to a hidden class
+    private void compileRegions() {
+        regionBounds = JitCompiler.regions(code, JitCompiler.MAX_REGION);
+        compiledRegions = new MethodHandle[regionBounds.length - 1];
+        for (int r = 0; r < compiledRegions.length; r++)
+            compiledRegions[r] = JitCompiler.compile(code, regionBounds[r], regionBounds[r + 1],
+                    doubleConstants, stringConstants);
     }
 
 
     // dump the instructions to the screen
     public void dumpInstructions() {
+        if (engine == Engine.MAPPED) {
+            MappedInterpreter.dump(mappedCode);
+            return;
+        }
+        if (engine == Engine.PACKED) {
+            PackedInterpreter.dump(packedCode);
+            return;
+        }
         for (int i=0; i< code.length; i++)
             System.out.println( i + ": " + code[i] );
     }
 
     public void dumpConstantPool() {
-        for(int i = 0; i < constantPool.size(); i++) {
-            System.out.println(i+": "+constantPool.get(i));
+        if (formatVersion == 1) {
+            for(int i = 0; i < constantPool.size(); i++) {
+                System.out.println(i+": "+constantPool.get(i));
+            }
+            return;
+        }
+        // v2: one pool per type
+        System.out.println("doubles:");
+        for (int i = 0; i < doubleConstants.length; i++)
+            System.out.println(i + ": " + doubleConstants[i]);
+        System.out.println("strings:");
+        for (int i = 0; i < stringConstants.length; i++)
+            System.out.println(i + ": " + stringConstants[i]);
+    }
+
+    // metadata of a v2 file, decoded on demand (empty for v1 or when the section is absent)
+    public Map<String, String> getMetadata() {
+        LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
+        if (metadataSection == null)
+            return metadata;
+        ByteBuffer buf = metadataSection.duplicate();
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            String key = BytecodeFormat.getString(buf);
+            metadata.put(key, BytecodeFormat.getString(buf));
         }
+        return metadata;
     }
 
 
 
-    private void runtime_error(String msg) {
-        System.out.println("runtime error: " + msg);
-        System.exit(1);
+    // runtime errors carry the position of the failing instruction in the engine's code;
+    // run() reports them with the source position and stops
+    static void runtime_error(String msg, int position) {
+        throw new RuntimeError(msg, position);
+    }
+
+    // index in the loaded code of the instruction at a position of the engine's code
+    private int instructionIndex(int position) {
+        if (engine == Engine.MAPPED) {
+            OpCode[] opcodes = OpCode.values();
+            int n = 0;
+            for (int ip = 0; ip < position; n++)
+                ip += 1 + 4 * opcodes[mappedCode.get(ip)].nArgs();
+            return n;
+        }
+        int index = engine == Engine.PACKED ? PackedInterpreter.instructionIndex(packedCode)[position] : position;
+        return fusedOrigin != null ? fusedOrigin[index] : index;
+    }
+
+    // source position of an instruction, from the line table: {line, column}, or null if unknown
+    private int[] sourcePosition(int index) {
+        if (linesSection == null)
+            return null;
+        ByteBuffer lines = linesSection;
+        int n = lines.getInt(0);
+        if (n <= 0 || n > (lines.limit() - 4) / 12)
+            return null;
+        // last entry that starts at or before the instruction
+        int lo = 0, hi = n - 1;
+        if (lines.getInt(4) > index)
+            return null;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lines.getInt(4 + 12 * mid) <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return new int[] { lines.getInt(8 + 12 * lo), lines.getInt(12 + 12 * lo) };
     }
 
 
@@ -106,20 +382,20 @@ public class VM {
 
 
 
-    private void exec_iconst(Integer v) {
-        stack.push(v);
+    private void exec_iconst(int v) {
+        stack.pushInt(v);
     }
 
 
     private void exec_dconst(int index) {
-        double constant = (double) constantPool.get(index);
-        stack.push(constant);
+        double constant = doubleConstants[index];
+        stack.pushDouble(constant);
     }
 
 
     private void exec_sconst(int index) {
-        String constant = (String) constantPool.get(index);
-        stack.push(constant);
+        String constant = stringConstants[index];
+        stack.pushString(constant);
     }
 
 
@@ -128,239 +404,239 @@ public class VM {
 
 
     private void exec_iprint() {
-        int v = (int) stack.pop();
+        int v = stack.popInt();
         System.out.println(v);
     }
 
 
 
     private void exec_iuminus() {
-        int v = (int) stack.pop();
-        stack.push(-v);
+        int v = stack.popInt();
+        stack.pushInt(-v);
     }
 
 
 
     private void exec_iadd() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
-        stack.push(left + right);
+        int right = stack.popInt();
+        int left = stack.popInt();
+        stack.pushInt(left + right);
     }
 
 
     private void exec_isub() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
-        stack.push(left - right);
+        int right = stack.popInt();
+        int left = stack.popInt();
+        stack.pushInt(left - right);
     }
 
     private void exec_imult() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
-        stack.push(left * right);
+        int right = stack.popInt();
+        int left = stack.popInt();
+        stack.pushInt(left * right);
     }
 
 
 
     private void exec_idiv() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
         if (right != 0)
-            stack.push(left / right);
+            stack.pushInt(left / right);
         else
-            runtime_error("division by 0");
+            runtime_error("division by 0", IP);
     }
 
     private void exec_imod() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
         if (right != 0)
-            stack.push(left % right);
+            stack.pushInt(left % right);
         else
-            runtime_error("0 is not valid in %");
+            runtime_error("0 is not valid in %", IP);
     }
 
 
     private void exec_ieq() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
 
         boolean value = left == right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_ineq() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
 
         boolean value = left != right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_ilt() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
 
         boolean value = left < right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
 
     private void exec_ileq() {
-        int right = (int) stack.pop();
-        int left = (int) stack.pop();
+        int right = stack.popInt();
+        int left = stack.popInt();
 
         boolean value = left <= right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_itod() {
-        int v = (int) stack.pop();
+        int v = stack.popInt();
 
-        stack.push((double) v);
+        stack.pushDouble((double) v);
     }
 
 
     private void exec_itos() {
-        int v = (int) stack.pop();
+        int v = stack.popInt();
 
-        stack.push(Integer.toString(v));
+        stack.pushString(Integer.toString(v));
     }
 
 
 
     private void exec_dprint() {
-        double v = (double) stack.pop();
+        double v = stack.popDouble();
         System.out.println(v);
     }
 
 
 
     private void exec_duminus() {
-        double v = (double) stack.pop();
-        stack.push(-v);
+        double v = stack.popDouble();
+        stack.pushDouble(-v);
     }
 
 
 
     private void exec_dadd() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
-        stack.push(left + right);
+        double right = stack.popDouble();
+        double left = stack.popDouble();
+        stack.pushDouble(left + right);
     }
 
 
     private void exec_dsub() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
-        stack.push(left - right);
+        double right = stack.popDouble();
+        double left = stack.popDouble();
+        stack.pushDouble(left - right);
     }
 
     private void exec_dmult() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
-        stack.push(left * right);
+        double right = stack.popDouble();
+        double left = stack.popDouble();
+        stack.pushDouble(left * right);
     }
 
 
 
     private void exec_ddiv() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
+        double right = stack.popDouble();
+        double left = stack.popDouble();
         if (Math.abs(right) >= 10e-9)
-            stack.push(left / right);
+            stack.pushDouble(left / right);
         else
-            runtime_error("division by 0");
+            runtime_error("division by 0", IP);
     }
 
 
     private void exec_deq() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
+        double right = stack.popDouble();
+        double left = stack.popDouble();
 
         boolean value = (Math.abs(left - right) < 10e-9);
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_dneq() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
+        double right = stack.popDouble();
+        double left = stack.popDouble();
 
         boolean value = (Math.abs(left - right) >= 10e-9);
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_dlt() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
+        double right = stack.popDouble();
+        double left = stack.popDouble();
 
         boolean value = left < right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
 
     private void exec_dleq() {
-        double right = (double) stack.pop();
-        double left = (double) stack.pop();
+        double right = stack.popDouble();
+        double left = stack.popDouble();
 
         boolean value = left <= right;
-        stack.push(value);
+        stack.pushBool(value);
     }
 
 
     private void exec_dtos() {
-        double v = (double) stack.pop();
+        double v = stack.popDouble();
 
-        stack.push(Double.toString(v));
+        stack.pushString(Double.toString(v));
     }
 
 
     private void exec_sprint() {
-        String s = (String) stack.pop();
+        String s = stack.popString();
         System.out.println(s);
     }
 
     private void exec_sconcat() {
-        String right = (String) stack.pop();
-        String left = (String) stack.pop();
+        String right = stack.popString();
+        String left = stack.popString();
 
-        stack.push(left+right);
+        stack.pushString(left+right);
     }
 
 
     private void exec_seq() {
-        String left = (String) stack.pop();
-        String right = (String) stack.pop();
+        String left = stack.popString();
+        String right = stack.popString();
 
-        stack.push(left.equals(right));
+        stack.pushBool(left.equals(right));
     }
 
     private void exec_sneq() {
-        String left = (String) stack.pop();
-        String right = (String) stack.pop();
+        String left = stack.popString();
+        String right = stack.popString();
 
-        stack.push(!left.equals(right));
+        stack.pushBool(!left.equals(right));
     }
 
 
     private void exec_tconst() {
-        stack.push(true);
+        stack.pushBool(true);
     }
 
     private void exec_fconst() {
-        stack.push(false);
+        stack.pushBool(false);
     }
 
 
     private void exec_bprint() {
-        boolean b = (boolean) stack.pop();
+        boolean b = stack.popBool();
         if (b) System.out.println("verdadeiro");
         else System.out.println("falso");
     }
@@ -368,44 +644,123 @@ public class VM {
 
 
     private void exec_beq() {
-        boolean left = (boolean) stack.pop();
-        boolean right = (boolean) stack.pop();
-        stack.push(left == right);
+        boolean left = stack.popBool();
+        boolean right = stack.popBool();
+        stack.pushBool(left == right);
     }
 
 
     private void exec_bneq() {
-        boolean left = (boolean) stack.pop();
-        boolean right = (boolean) stack.pop();
-        stack.push(left != right);
+        boolean left = stack.popBool();
+        boolean right = stack.popBool();
+        stack.pushBool(left != right);
     }
 
     private void exec_and() {
-        boolean left = (boolean) stack.pop();
-        boolean right = (boolean) stack.pop();
-        stack.push(left && right);
+        boolean left = stack.popBool();
+        boolean right = stack.popBool();
+        stack.pushBool(left && right);
     }
 
     private void exec_or() {
-        boolean left = (boolean) stack.pop();
-        boolean right = (boolean) stack.pop();
-        stack.push(left || right);
+        boolean left = stack.popBool();
+        boolean right = stack.popBool();
+        stack.pushBool(left || right);
     }
 
     private void exec_not() {
-        boolean b = (boolean) stack.pop();
-        stack.push(!b);
+        boolean b = stack.popBool();
+        stack.pushBool(!b);
     }
 
 
     private void exec_btos() {
-        boolean b = (boolean) stack.pop();
-        if (b) stack.push("verdadeiro");
-        else stack.push("falso");
+        boolean b = stack.popBool();
+        if (b) stack.pushString("verdadeiro");
+        else stack.pushString("falso");
     }
 
     private void exec_halt() {
-        System.exit(0);
+        halted = true;
+    }
+
+    // jumps: IP is incremented after each instruction, so it is left just before the target
+    private void exec_jump(int target) {
+        IP = target - 1;
+    }
+
+    private void exec_jumpf(int target) {
+        if (!stack.popBool())
+            IP = target - 1;
+    }
+
+    private void exec_jumpt(int target) {
+        if (stack.popBool())
+            IP = target - 1;
+    }
+
+
+
+
+    // superinstructions
+
+    private void exec_iconst_idiv(int right) {
+        int left = stack.popInt();
+        if (right != 0)
+            stack.pushInt(left / right);
+        else
+            runtime_error("division by 0", IP);
+    }
+
+    private void exec_iconst_imod(int right) {
+        int left = stack.popInt();
+        if (right != 0)
+            stack.pushInt(left % right);
+        else
+            runtime_error("0 is not valid in %", IP);
+    }
+
+    private void exec_iconst_imult(int right) {
+        int left = stack.popInt();
+        stack.pushInt(left * right);
+    }
+
+    private void exec_sconcat_sprint() {
+        String right = stack.popString();
+        String left = stack.popString();
+        System.out.println(left + right);
+    }
+
+    private void exec_iconst_iadd(int right) {
+        int left = stack.popInt();
+        stack.pushInt(left + right);
+    }
+
+    private void exec_iconst_isub(int right) {
+        int left = stack.popInt();
+        stack.pushInt(left - right);
+    }
+
+    private void exec_sconst_sconcat(int index) {
+        String left = stack.popString();
+        stack.pushString(left + stringConstants[index]);
+    }
+
+    private void exec_dconst_ddiv(int index) {
+        double right = doubleConstants[index];
+        double left = stack.popDouble();
+        if (Math.abs(right) >= 10e-9)
+            stack.pushDouble(left / right);
+        else
+            runtime_error("division by 0", IP);
+    }
+
+    private void exec_iconst_iprint(int v) {
+        System.out.println(v);
+    }
+
+    private void exec_sconst_sprint(int index) {
+        System.out.println(stringConstants[index]);
     }
 
 
@@ -503,6 +858,32 @@ public class VM {
                 exec_btos(); break;
             case halt:
                 exec_halt(); break;
+            case jump:
+                exec_jump(((Instruction1Arg) inst).getArg()); break;
+            case jumpf:
+                exec_jumpf(((Instruction1Arg) inst).getArg()); break;
+            case jumpt:
+                exec_jumpt(((Instruction1Arg) inst).getArg()); break;
+            case iconst_idiv:
+                exec_iconst_idiv(((Instruction1Arg) inst).getArg()); break;
+            case iconst_imod:
+                exec_iconst_imod(((Instruction1Arg) inst).getArg()); break;
+            case iconst_imult:
+                exec_iconst_imult(((Instruction1Arg) inst).getArg()); break;
+            case sconcat_sprint:
+                exec_sconcat_sprint(); break;
+            case iconst_iadd:
+                exec_iconst_iadd(((Instruction1Arg) inst).getArg()); break;
+            case iconst_isub:
+                exec_iconst_isub(((Instruction1Arg) inst).getArg()); break;
+            case sconst_sconcat:
+                exec_sconst_sconcat(((Instruction1Arg) inst).getArg()); break;
+            case dconst_ddiv:
+                exec_dconst_ddiv(((Instruction1Arg) inst).getArg()); break;
+            case iconst_iprint:
+                exec_iconst_iprint(((Instruction1Arg) inst).getArg()); break;
+            case sconst_sprint:
+                exec_sconst_sprint(((Instruction1Arg) inst).getArg()); break;
 
             default:
                 System.out.println("This should never happen! In file VM.java, method exec_inst()");
@@ -510,12 +891,96 @@ public class VM {
         }
     }
 
+    // the program can be run several times; halt ends the current run
     public void run() {
+        if (!loaded)
+            return;
         System.out.println("*** VM output ***");
-        while (IP < code.length) {
+        try {
+            execute();
+        }
+        catch (RuntimeError e) {
+            int[] source = sourcePosition(instructionIndex(e.getPosition()));
+            System.out.println("runtime error: " + e.getMessage()
+                    + (source == null ? "" : " (linha " + source[0] + ", coluna " + source[1] + ")"));
+            System.exit(1);
+        }
+    }
+
+    private void execute() {
+        stack.clear();
+        if (!prepared) {
+            prepared = true;
+            // the profile must see the code as the compiler emitted it
+            if (fusion && profile == null) {
+                if (linesSection != null && (engine == Engine.INTERPRETER || engine == Engine.PACKED))
+                    fusedOrigin = new int[code.length];
+                if (engine == Engine.INTERPRETER) code = Superinstructions.fuse(code, fusedOrigin);
+                if (engine == Engine.PACKED) packedCode = Superinstructions.fuse(packedCode, fusedOrigin);
+            }
+        }
+        if (engine == Engine.PACKED) {
+            PackedInterpreter.run(packedCode, doubleConstants, stringConstants, maxStack);
+            return;
+        }
+        if (engine == Engine.MAPPED) {
+            MappedInterpreter.run(mappedCode, doubleConstants, stringConstants, maxStack);
+            return;
+        }
+        if (engine == Engine.JIT) {
+            for (int r = 0; r < compiledRegions.length; r++) {
+                boolean stop = compiledRegions[r] != null
+                        ? JitCompiler.invoke(compiledRegions[r])
+                        : interpret(regionBounds[r], regionBounds[r + 1]);
+                if (stop) return;
+            }
+            return;
+        }
+        interpret(0, code.length);
+    }
+
+    // run the instructions in [from, to) with the reference interpreter;
+    // returns true if halt was executed
+    boolean interpret(int from, int to) {
+        IP = from;
+        halted = false;
+        if (profile != null) {
+            while (!halted && IP < to) {
+                profile.record(code[IP].getOpCode(), IP);
+                exec_inst( code[IP] );
+                IP++;
+            }
+            return halted;
+        }
+        // the code was verified when loaded: nothing is checked besides the dispatch
+        while (!halted && IP < to) {
             exec_inst( code[IP] );
             IP++;
         }
+        return halted;
+    }
+
+    // enable or disable superinstruction fusion (must be called before run)
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    // start recording the opcode profile (reference interpreter only: the other engines would
+    // leave it empty)
+    public void enableProfiling() {
+        if (engine != Engine.INTERPRETER)
+            throw new IllegalStateException("profiling requires the INTERPRETER engine, not " + engine);
+        profile = new OpcodeProfile();
+    }
+
+    // the profile also counts the instructions run per source line, if there is a line table
+    public OpcodeProfile getProfile() {
+        if (profile != null && linesSection != null)
+            profile.setSourceLines(index -> {
+                int[] source = sourcePosition(index);
+                return source == null ? 0 : source[0];
+            });
+        return profile;
     }
 
 }
\ No newline at end of file
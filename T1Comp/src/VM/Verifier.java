@@ -0,0 +1,199 @@
+package VM;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Verificador dos bytecodes, executado ao carregar o programa.
+ * Interpreta as instrucoes de forma abstrata, com o tipo de cada valor da pilha em vez do valor,
+ * e verifica que cada instrucao encontra na pilha os operandos do tipo que espera, que os indices
+ * de dconst e sconst sao constantes do tipo certo, que os saltos sao para a frente e encontram no
+ * destino sempre a mesma pilha e que o programa termina com halt.
+ *
+ * <p>A pilha de operandos guarda cada tipo no seu array de slots, sem etiquetas, e os
+ * interpretadores leem os slots sem verificar o tipo; e esta verificacao que garante que um
+ * slot e sempre lido com o tipo com que foi escrito.</p>
+ */
+final class Verifier {
+    // Tipos dos valores na pilha (0 = a instrucao nao empilha nada)
+    private static final byte INT = 1, DOUBLE = 2, STRING = 3, BOOL = 4;
+    private static final String[] TYPE_NAMES = {"", "inteiro", "real", "string", "booleano"};
+
+    // Por opcode: tipos desempilhados (do fundo para o topo) e tipo empilhado;
+    // null para os opcodes que nao podem aparecer nos bytecodes (superinstrucoes)
+    private static final byte[][] POPS = new byte[OpCode.values().length][];
+    private static final byte[] PUSH = new byte[OpCode.values().length];
+
+    static {
+        sig(OpCode.iconst, INT);
+        sig(OpCode.dconst, DOUBLE);
+        sig(OpCode.sconst, STRING);
+        sig(OpCode.iprint, 0, INT);
+        sig(OpCode.iuminus, INT, INT);
+        sig(OpCode.iadd, INT, INT, INT);
+        sig(OpCode.isub, INT, INT, INT);
+        sig(OpCode.imult, INT, INT, INT);
+        sig(OpCode.idiv, INT, INT, INT);
+        sig(OpCode.imod, INT, INT, INT);
+        sig(OpCode.ieq, BOOL, INT, INT);
+        sig(OpCode.ineq, BOOL, INT, INT);
+        sig(OpCode.ilt, BOOL, INT, INT);
+        sig(OpCode.ileq, BOOL, INT, INT);
+        sig(OpCode.itod, DOUBLE, INT);
+        sig(OpCode.itos, STRING, INT);
+        sig(OpCode.dprint, 0, DOUBLE);
+        sig(OpCode.duminus, DOUBLE, DOUBLE);
+        sig(OpCode.dadd, DOUBLE, DOUBLE, DOUBLE);
+        sig(OpCode.dsub, DOUBLE, DOUBLE, DOUBLE);
+        sig(OpCode.dmult, DOUBLE, DOUBLE, DOUBLE);
+        sig(OpCode.ddiv, DOUBLE, DOUBLE, DOUBLE);
+        sig(OpCode.deq, BOOL, DOUBLE, DOUBLE);
+        sig(OpCode.dneq, BOOL, DOUBLE, DOUBLE);
+        sig(OpCode.dlt, BOOL, DOUBLE, DOUBLE);
+        sig(OpCode.dleq, BOOL, DOUBLE, DOUBLE);
+        sig(OpCode.dtos, STRING, DOUBLE);
+        sig(OpCode.sprint, 0, STRING);
+        sig(OpCode.sconcat, STRING, STRING, STRING);
+        sig(OpCode.seq, BOOL, STRING, STRING);
+        sig(OpCode.sneq, BOOL, STRING, STRING);
+        sig(OpCode.tconst, BOOL);
+        sig(OpCode.fconst, BOOL);
+        sig(OpCode.bprint, 0, BOOL);
+        sig(OpCode.beq, BOOL, BOOL, BOOL);
+        sig(OpCode.bneq, BOOL, BOOL, BOOL);
+        sig(OpCode.and, BOOL, BOOL, BOOL);
+        sig(OpCode.or, BOOL, BOOL, BOOL);
+        sig(OpCode.not, BOOL, BOOL);
+        sig(OpCode.btos, STRING, BOOL);
+        sig(OpCode.halt, 0);
+        sig(OpCode.jump, 0);
+        sig(OpCode.jumpf, 0, BOOL);
+        sig(OpCode.jumpt, 0, BOOL);
+    }
+
+    private static void sig(OpCode opc, int push, byte... pops) {
+        POPS[opc.ordinal()] = pops;
+        PUSH[opc.ordinal()] = (byte) push;
+    }
+
+    private Verifier() {
+    }
+
+    /**
+     * Verifica as instrucoes de um programa.
+     * Uma instrucao so alcancavel depois de um jump ou de um halt, sem nenhum salto para ela,
+     * nunca e executada e por isso nao e verificada (alem de ter de ser uma instrucao valida).
+     *
+     * @param code Bytecodes das instrucoes (da posicao 0 ao limite).
+     * @param isDouble Indica se um indice e o de uma constante real (argumento de dconst).
+     * @param isString Indica se um indice e o de uma constante string (argumento de sconst).
+     * @return Profundidade maxima da pilha de operandos.
+     * @throws IOException Se os bytecodes forem invalidos; a mensagem indica a instrucao e o erro.
+     */
+    static int verify(ByteBuffer code, IntPredicate isDouble, IntPredicate isString) throws IOException {
+        OpCode[] opcodes = OpCode.values();
+        // pilha esperada em cada destino de salto ainda por alcancar
+        HashMap<Integer, byte[]> targets = new HashMap<>();
+        byte[] stack = new byte[16];
+        int sp = 0, max = 0;
+        boolean reachable = true;
+        OpCode last = null;
+        int end = code.limit();
+
+        for (int ip = 0, n = 0; ip < end; n++) {
+            byte[] expected = targets.remove(ip);
+            if (expected != null) {
+                if (reachable && !Arrays.equals(stack, 0, sp, expected, 0, expected.length))
+                    throw error(n, ip, null, "a pilha " + describe(stack, sp)
+                            + " e diferente da pilha dos saltos para esta instrucao " + describe(expected, expected.length));
+                if (!reachable) {
+                    if (expected.length > stack.length)
+                        stack = Arrays.copyOf(expected, expected.length * 2);
+                    System.arraycopy(expected, 0, stack, 0, expected.length);
+                    sp = expected.length;
+                    reachable = true;
+                }
+            }
+
+            int start = ip;
+            int b = code.get(ip) & 0xFF;
+            if (b >= opcodes.length || POPS[b] == null)
+                throw error(n, start, null, "opcode invalido " + b);
+            OpCode opc = opcodes[b];
+            if (ip + 1 + 4 * opc.nArgs() > end)
+                throw new BufferUnderflowException();
+            int arg = opc.nArgs() == 1 ? code.getInt(ip + 1) : 0;
+            ip += 1 + 4 * opc.nArgs();
+            last = opc;
+            if (!reachable)
+                continue;
+
+            byte[] pops = POPS[b];
+            if (sp < pops.length)
+                throw error(n, start, opc, "sao precisos " + pops.length + " operandos e a pilha tem " + sp);
+            for (int k = 0; k < pops.length; k++) {
+                byte type = stack[sp - pops.length + k];
+                if (type != pops[k])
+                    throw error(n, start, opc, "esperado " + TYPE_NAMES[pops[k]] + ", encontrado " + TYPE_NAMES[type]);
+            }
+            sp -= pops.length;
+            if (PUSH[b] != 0) {
+                if (sp == stack.length)
+                    stack = Arrays.copyOf(stack, sp * 2);
+                stack[sp++] = PUSH[b];
+                max = Math.max(max, sp);
+            }
+
+            switch (opc) {
+                case dconst:
+                    if (!isDouble.test(arg))
+                        throw error(n, start, opc, "o indice " + arg + " nao e uma constante real da pool");
+                    break;
+                case sconst:
+                    if (!isString.test(arg))
+                        throw error(n, start, opc, "o indice " + arg + " nao e uma constante string da pool");
+                    break;
+                case jump:
+                case jumpf:
+                case jumpt:
+                    if (arg <= start)
+                        throw error(n, start, opc, "salto para tras (" + arg + ")");
+                    if (arg < ip)
+                        throw error(n, start, opc, "destino de salto invalido (" + arg + ")");
+                    byte[] previous = targets.putIfAbsent(arg, Arrays.copyOf(stack, sp));
+                    if (previous != null && !Arrays.equals(stack, 0, sp, previous, 0, previous.length))
+                        throw error(n, start, opc, "a pilha " + describe(stack, sp)
+                                + " e diferente da de outro salto para " + arg + " " + describe(previous, previous.length));
+                    break;
+                default:
+                    break;
+            }
+            if (opc == OpCode.jump || opc == OpCode.halt)
+                reachable = false;
+        }
+
+        if (last != OpCode.halt)
+            throw new IOException("Bytecodes invalidos: o programa nao termina com halt.");
+        // os destinos que sobram nao sao o inicio de nenhuma instrucao
+        if (!targets.isEmpty())
+            throw new IOException("Bytecodes invalidos: destino de salto invalido ("
+                    + targets.keySet().iterator().next() + ").");
+        return max;
+    }
+
+    private static IOException error(int n, int offset, OpCode opc, String msg) {
+        return new IOException("Bytecodes invalidos na instrucao " + n
+                + (opc == null ? "" : " (" + opc + ")") + ", deslocamento " + offset + ": " + msg + ".");
+    }
+
+    private static String describe(byte[] stack, int sp) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < sp; i++)
+            sb.append(i == 0 ? "" : ", ").append(TYPE_NAMES[stack[i]]);
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,106 @@
+import CodeGenerator.CodeGen;
+import ErrorListener.Diagnostics;
+import IR.Lowering;
+import IR.TugaIR;
+import Tuga.TugaLexer;
+import Tuga.TugaParser;
+import TypeChecker.TugaTypeChecker;
+import VM.BytecodeFormat;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Medicao da escala das pools de constantes do CodeGen (indices HashMap por tipo).
+ *
+ * <p>Para cada N, gera um programa de N estatisticas que escrevem literais distintos, alternando
+ * strings e reais, e mede o CodeGen.generate sobre a representacao intermedia ja verificada
+ * (melhor de 9 execucoes, depois de aquecer). Com as pools indexadas, o tempo por literal deve
+ * ficar aproximadamente constante quando N duplica; uma pesquisa linear na pool tornava-o
+ * proporcional a N.</p>
+ *
+ * <p>Uso: {@code java ConstantPoolBench [N...]} (por omissao 10000 20000 40000 80000 160000);
+ * com -Xms2g -Xmx2g a recolha de lixo perturba menos as medicoes maiores.</p>
+ */
+public class ConstantPoolBench {
+    private static final int RUNS = 9;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 10_000, 20_000, 40_000, 80_000, 160_000 };
+
+        // aquecimento do JIT da JVM
+        TugaIR warmup = lower(program(50_000));
+        for (int i = 0; i < 20; i++)
+            new CodeGen().generate(warmup);
+
+        System.out.printf("%10s  %10s  %12s  %8s  %8s%n", "literals", "best ms", "ns/literal", "doubles", "strings");
+        for (int n : sizes) {
+            TugaIR ir = lower(program(n));
+            long best = Long.MAX_VALUE;
+            CodeGen codeGen = null;
+            for (int r = 0; r < RUNS; r++) {
+                codeGen = null;
+                // a recolha de lixo de uma execucao anterior nao conta
+                System.gc();
+                codeGen = new CodeGen();
+                long start = System.nanoTime();
+                codeGen.generate(ir);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            int[] pools = poolSizes(codeGen);
+            System.out.printf("%10d  %10.2f  %12.1f  %8d  %8d%n", n, best / 1e6, (double) best / n, pools[0], pools[1]);
+        }
+    }
+
+    /**
+     * Programa com n literais distintos, metade strings e metade reais.
+     */
+    private static String program(int n) {
+        StringBuilder sb = new StringBuilder(n * 20);
+        for (int i = 0; i < n; i++) {
+            if (i % 2 == 0)
+                sb.append("escreve \"s").append(i).append("\";\n");
+            else
+                sb.append("escreve ").append(i).append(".5;\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Analisa, verifica e converte um programa valido para a representacao intermedia.
+     */
+    private static TugaIR lower(String program) {
+        TugaParser parser = new TugaParser(new CommonTokenStream(new TugaLexer(CharStreams.fromString(program))));
+        ParseTree tree = parser.prog();
+        TugaTypeChecker checker = new TugaTypeChecker(true, new Diagnostics(0));
+        new IterativeParseTreeWalker().walk(checker, tree);
+        if (parser.getNumberOfSyntaxErrors() > 0 || checker.hasErrors())
+            throw new IllegalStateException("programa gerado invalido");
+        return new Lowering(null).lower(tree);
+    }
+
+    /**
+     * Numero de reais e de strings nas pools, lidos do cabecalho dos bytecodes (formato v2).
+     */
+    private static int[] poolSizes(CodeGen codeGen) {
+        ByteBuffer bc = codeGen.toBytecodes();
+        int sections = bc.getShort(6);
+        int[] sizes = new int[2];
+        for (int s = 0; s < sections; s++) {
+            int entry = BytecodeFormat.HEADER_SIZE + s * BytecodeFormat.SECTION_ENTRY_SIZE;
+            int id = bc.getInt(entry);
+            int offset = bc.getInt(entry + 4);
+            if (id == BytecodeFormat.SECTION_DOUBLES)
+                sizes[0] = bc.getInt(offset);
+            else if (id == BytecodeFormat.SECTION_STRINGS)
+                sizes[1] = bc.getInt(offset);
+        }
+        return sizes;
+    }
+}
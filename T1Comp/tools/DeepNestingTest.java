@@ -0,0 +1,61 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Teste de escala das expressoes muito longas ou muito aninhadas, que nao podem esgotar a pilha
+ * de chamadas em nenhuma fase da compilacao (TugaParser, PrattCodeGen, FusedCodeGen,
+ * verificacao de tipos, ConstantFolder, Lowering e CodeGen).
+ *
+ * <p>Gera tres programas com N operandos ou niveis (por omissao 10^6): uma cadeia
+ * '1 + 1 + ... + 1', N parenteses aninhados a volta de 1 e N menos unarios antes de 1. Cada um
+ * e compilado e executado pelo TugaCompileAndRun, numa JVM nova, em cada caminho da compilacao
+ * (por omissao o PrattCodeGen, --antlr-parser, --fused e --stream), com e sem --no-folding, e
+ * tem de terminar com o codigo 0 e escrever o valor esperado. A primeira falha termina o
+ * programa com o codigo 1.</p>
+ *
+ * <p>Uso: {@code java DeepNestingTest [N] [opcoes da JVM...]} (por omissao -Xmx2g).</p>
+ */
+public class DeepNestingTest {
+    private static final List<List<String>> PATHS = List.of(
+            List.of(), List.of("--antlr-parser"), List.of("--fused"), List.of("--stream"));
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        List<String> jvmOptions = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of("-Xmx2g");
+
+        StringBuilder chain = new StringBuilder(4 * n + 16).append("escreve 1");
+        for (int i = 1; i < n; i++)
+            chain.append(" + 1");
+        chain.append(";\n");
+        String parens = "escreve " + "(".repeat(n) + "1" + ")".repeat(n) + ";\n";
+        String minus = "escreve " + "-".repeat(n) + "1;\n";
+
+        check("cadeia de " + n + " somas", Harness.temp(chain.toString()), String.valueOf(n), jvmOptions);
+        check(n + " parenteses", Harness.temp(parens), "1", jvmOptions);
+        check(n + " menos unarios", Harness.temp(minus), n % 2 == 0 ? "1" : "-1", jvmOptions);
+        System.out.println("todos os caminhos compilaram e executaram os tres programas");
+    }
+
+    private static void check(String name, Path program, String expected, List<String> jvmOptions) throws Exception {
+        for (List<String> path : PATHS) {
+            for (boolean folding : new boolean[] { true, false }) {
+                List<String> flags = new ArrayList<>(path);
+                if (!folding)
+                    flags.add("--no-folding");
+                long start = System.nanoTime();
+                Harness.Run run = Harness.compileAndRun(jvmOptions, flags, program);
+                String label = name + " [" + (flags.isEmpty() ? "por omissao" : String.join(" ", flags)) + "]";
+                if (run.exitCode() != 0 || !expected.equals(run.lastLine())) {
+                    System.err.println("DeepNestingTest: " + label + ": codigo de saida " + run.exitCode()
+                            + ", ultima linha '" + run.lastLine() + "', esperado '" + expected + "'");
+                    String err = run.err();
+                    System.err.print(err.length() > 2000 ? err.substring(0, 2000) + "...\n" : err);
+                    System.exit(1);
+                }
+                System.out.printf("ok  %-50s %8.0f ms%n", label, (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+}
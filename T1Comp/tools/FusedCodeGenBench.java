@@ -0,0 +1,115 @@
+import CodeGenerator.CodeGen;
+import CodeGenerator.FusedCodeGen;
+import ErrorListener.Diagnostics;
+import IR.Lowering;
+import Optimizer.ConstantFolder;
+import Tuga.TugaLexer;
+import Tuga.TugaParser;
+import TypeChecker.TugaTypeChecker;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Comparacao do FusedCodeGen (--fused) com a compilacao em varias passagens.
+ *
+ * <p>Cada programa do corpus e analisado uma vez e compilado das duas formas, com e sem
+ * avaliacao das constantes: verificacao de tipos, ConstantFolder, Lowering e CodeGen, ou uma so
+ * travessia do FusedCodeGen. Os bytecodes (CodeGen.toBytecodes()) tem de ser iguais byte a
+ * byte; a primeira diferenca termina o programa com o codigo 1. Depois mede, para o corpus todo,
+ * o tempo (melhor de 10 rondas) e a memoria alocada por cada forma, sem contar a analise
+ * sintatica.</p>
+ *
+ * <p>Uso: {@code java FusedCodeGenBench [corpus]}.</p>
+ */
+public class FusedCodeGenBench {
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : Harness.DEFAULT_CORPUS;
+        List<Path> files = Harness.corpus(dir);
+        List<ParseTree> trees = new ArrayList<>();
+        for (Path file : files)
+            trees.add(parse(Harness.read(file)));
+
+        for (boolean folding : new boolean[] { true, false }) {
+            for (int i = 0; i < trees.size(); i++) {
+                ByteBuffer expected = twoPass(trees.get(i), folding);
+                ByteBuffer actual = fused(trees.get(i), folding);
+                if (!expected.equals(actual)) {
+                    System.err.println("FusedCodeGenBench: bytecodes diferentes em " + files.get(i)
+                            + (folding ? "" : " (--no-folding)"));
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println(files.size() + " programas de " + dir + ": bytecodes iguais com e sem --fused");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        System.out.printf("%-12s  %-10s  %10s  %12s%n", "folding", "pipeline", "best ms", "alloc MB");
+        for (boolean folding : new boolean[] { true, false }) {
+            for (boolean fused : new boolean[] { false, true }) {
+                long best = Long.MAX_VALUE;
+                long allocated = 0;
+                for (int r = 0; r < ROUNDS; r++) {
+                    long bytes = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    for (ParseTree tree : trees) {
+                        if (fused)
+                            fused(tree, folding);
+                        else
+                            twoPass(tree, folding);
+                    }
+                    best = Math.min(best, System.nanoTime() - start);
+                    allocated = threads.getCurrentThreadAllocatedBytes() - bytes;
+                }
+                System.out.printf("%-12s  %-10s  %10.2f  %12.1f%n", folding ? "on" : "off",
+                        fused ? "fused" : "two-pass", best / 1e6, allocated / 1e6);
+            }
+        }
+    }
+
+    private static ParseTree parse(String program) {
+        TugaParser parser = new TugaParser(new CommonTokenStream(new TugaLexer(CharStreams.fromString(program))));
+        ParseTree tree = parser.prog();
+        if (parser.getNumberOfSyntaxErrors() > 0)
+            throw new IllegalStateException("programa do corpus com erros sintaticos");
+        return tree;
+    }
+
+    /**
+     * Compilacao do TugaCompileAndRun sem --fused: travessias da verificacao de tipos e do
+     * ConstantFolder, conversao para a representacao intermedia e geracao de codigo.
+     */
+    private static ByteBuffer twoPass(ParseTree tree, boolean folding) {
+        TugaTypeChecker checker = new TugaTypeChecker(true, new Diagnostics(0));
+        ConstantFolder folder = folding ? new ConstantFolder() : null;
+        ParseTreeWalker walker = new IterativeParseTreeWalker();
+        walker.walk(checker, tree);
+        if (checker.hasErrors())
+            throw new IllegalStateException("programa do corpus com erros de tipo");
+        if (folder != null)
+            walker.walk(folder, tree);
+        CodeGen codeGen = new CodeGen();
+        codeGen.generate(new Lowering(folder != null ? folder.getValues() : null).lower(tree));
+        return codeGen.toBytecodes();
+    }
+
+    /**
+     * Compilacao com --fused: uma so travessia do FusedCodeGen.
+     */
+    private static ByteBuffer fused(ParseTree tree, boolean folding) {
+        TugaTypeChecker checker = new TugaTypeChecker(true, new Diagnostics(0));
+        CodeGen codeGen = new CodeGen();
+        new IterativeParseTreeWalker().walk(new FusedCodeGen(checker, folding ? new ConstantFolder() : null, codeGen), tree);
+        return codeGen.toBytecodes();
+    }
+}
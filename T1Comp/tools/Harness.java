@@ -0,0 +1,103 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Funcoes comuns as ferramentas de teste e de medicao em tools/: leitura do corpus e execucao
+ * do TugaCompileAndRun num processo separado, com o mesmo classpath.
+ */
+final class Harness {
+    // Diretoria do corpus, relativa a T1Comp
+    static final String DEFAULT_CORPUS = "tools/corpus";
+
+    /**
+     * Resultado de uma execucao do compilador.
+     *
+     * @param exitCode Codigo de saida do processo.
+     * @param lastLine Ultima linha escrita no System.out (o resultado da ultima estatistica).
+     * @param err Tudo o que foi escrito no System.err.
+     */
+    record Run(int exitCode, String lastLine, String err) {
+    }
+
+    private Harness() {
+    }
+
+    /**
+     * Lista os programas .tuga de uma diretoria, por ordem do nome.
+     *
+     * @param dir Diretoria do corpus.
+     * @return Caminhos dos programas.
+     * @throws IOException Se a diretoria nao puder ser lida.
+     */
+    static List<Path> corpus(String dir) throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(dir))) {
+            List<Path> list = files.filter(p -> p.toString().endsWith(".tuga")).sorted().toList();
+            if (list.isEmpty())
+                throw new IOException("nenhum programa .tuga em " + dir);
+            return list;
+        }
+    }
+
+    /**
+     * Le um programa.
+     */
+    static String read(Path file) throws IOException {
+        return Files.readString(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escreve um programa num ficheiro temporario, apagado no fim da JVM.
+     */
+    static Path temp(String program) throws IOException {
+        Path file = Files.createTempFile("tuga-tools", ".tuga");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, program, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Compila e executa um programa com o TugaCompileAndRun, numa JVM nova com o classpath
+     * desta. So a ultima linha do System.out e guardada (o listagem do codigo pode ter milhoes
+     * de linhas).
+     *
+     * @param jvmOptions Opcoes da JVM (por exemplo -Xss ou -Xmx).
+     * @param flags Opcoes do TugaCompileAndRun.
+     * @param program Ficheiro do programa.
+     * @return Codigo de saida, ultima linha do System.out e System.err.
+     * @throws IOException Se o processo nao puder ser criado.
+     * @throws InterruptedException Se a espera pelo processo for interrompida.
+     */
+    static Run compileAndRun(List<String> jvmOptions, List<String> flags, Path program)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("TugaCompileAndRun");
+        command.addAll(flags);
+        command.add(program.toString());
+
+        File err = File.createTempFile("tuga-tools", ".err");
+        err.deleteOnExit();
+        Process process = new ProcessBuilder(command).redirectError(err).start();
+        process.getOutputStream().close();
+        String last = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = out.readLine()) != null; )
+                last = line;
+        }
+        int exitCode = process.waitFor();
+        String errText = Files.readString(err.toPath(), StandardCharsets.UTF_8);
+        err.delete();
+        return new Run(exitCode, last, errText);
+    }
+}
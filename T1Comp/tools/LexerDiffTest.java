@@ -0,0 +1,173 @@
+import Lexer.PackedLexer;
+import Lexer.PackedTokenSource;
+import Tuga.TugaLexer;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Teste diferencial do PackedLexer contra o TugaLexer gerado pelo ANTLR.
+ *
+ * <p>Cada entrada e analisada pelos dois: o PackedLexer tem de encontrar um erro exatamente
+ * quando o TugaLexer reporta um e, sem erros, os tokens do PackedTokenSource (incluindo o EOF)
+ * tem de ser iguais aos do TugaLexer em tipo, texto, inicio, fim, linha, coluna e canal. As
+ * entradas sao os programas do corpus, mutacoes aleatorias destes (apagar, inserir, trocar e
+ * duplicar caracteres) e sequencias aleatorias de pedacos de tokens, espacos, comentarios e
+ * caracteres invalidos, a partir de uma semente. A primeira diferenca termina o programa com o
+ * codigo 1.</p>
+ *
+ * <p>Uso: {@code java LexerDiffTest [corpus] [semente] [entradas aleatorias]} (por omissao
+ * tools/corpus, 1 e 100000).</p>
+ */
+public class LexerDiffTest {
+    // Pedacos usados para construir as entradas aleatorias e as insercoes das mutacoes: tokens,
+    // espacos e comentarios e (mais raros, para que muitas entradas nao tenham erros lexicos)
+    // pedacos invalidos, como prefixos de palavras reservadas ('escrev' e 'e' seguido de 's...')
+    private static final String[] PIECES = {
+            "escreve", "e", "ou", "nao", "igual", "diferente", "verdadeiro", "falso", "0", "7", "12",
+            "007", "2147483648", "1.5", "3.25", "\"\"", "\"ola\"", "\"a\nb\"", "\"/*\"",
+            "\"\u00e9\ud83d\ude00\"", "(", ")", ";", "-", "+", "*", "/", "%", "<", ">", "<=", ">=", "/*",
+            "*/", "/* x */", "/* \n */", "//", "// x\n", " ", "  ", "\t", "\n", "\r\n", "\r",
+    };
+    private static final String[] INVALID = {
+            "escrev", "escrevex", "o", "na", "igua", "verdadeir", "fals", ".", "1.", "\"", "=", "!", "x",
+            "Z", "_", "#", "\u00e9", "\ud83d\ude00", "\u0000",
+    };
+
+    private static int inputs = 0;
+    private static int tokens = 0;
+    private static int errors = 0;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : Harness.DEFAULT_CORPUS;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int randomInputs = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        Random random = new Random(seed);
+
+        List<String> programs = new ArrayList<>();
+        for (Path file : Harness.corpus(dir))
+            programs.add(Harness.read(file));
+
+        for (String program : programs)
+            check(program);
+        for (int i = 0; i < randomInputs; i++) {
+            if (i % 2 == 0) {
+                String program = programs.get(random.nextInt(programs.size()));
+                // algumas linhas do programa, para que as mutacoes nao se diluam em milhares de
+                // tokens (e sem cortar strings a meio)
+                int from = program.lastIndexOf('\n', random.nextInt(program.length())) + 1;
+                int to = program.indexOf('\n', Math.min(program.length() - 1, from + random.nextInt(400)));
+                to = to < 0 ? program.length() : to + 1;
+                check(mutate(program.substring(from, to), random));
+            } else {
+                StringBuilder sb = new StringBuilder();
+                int n = 1 + random.nextInt(30);
+                for (int k = 0; k < n; k++)
+                    sb.append(piece(random));
+                check(sb.toString());
+            }
+        }
+        System.out.printf("%d entradas (%d com erros lexicos), %d tokens: PackedLexer igual ao TugaLexer%n",
+                inputs, errors, tokens);
+    }
+
+    private static String piece(Random random) {
+        if (random.nextInt(100) < 3)
+            return INVALID[random.nextInt(INVALID.length)];
+        return PIECES[random.nextInt(PIECES.length)];
+    }
+
+    private static String mutate(String text, Random random) {
+        StringBuilder sb = new StringBuilder(text);
+        int edits = 1 + random.nextInt(4);
+        for (int k = 0; k < edits; k++) {
+            int at = random.nextInt(sb.length() + 1);
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    if (at < sb.length()) sb.deleteCharAt(at);
+                }
+                case 1 -> sb.insert(at, piece(random));
+                case 2 -> {
+                    if (at + 1 < sb.length()) {
+                        char c = sb.charAt(at);
+                        sb.setCharAt(at, sb.charAt(at + 1));
+                        sb.setCharAt(at + 1, c);
+                    }
+                }
+                default -> {
+                    int end = Math.min(sb.length(), at + random.nextInt(10));
+                    sb.insert(at, sb.substring(at, end));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compara os dois analisadores numa entrada; termina o programa se forem diferentes.
+     */
+    private static void check(String input) {
+        inputs++;
+        TugaLexer antlr = new TugaLexer(CharStreams.fromString(input));
+        int[] antlrErrors = { 0 };
+        antlr.removeErrorListeners();
+        antlr.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                antlrErrors[0]++;
+            }
+        });
+        List<Token> expected = tokens(antlr);
+
+        PackedLexer packed = new PackedLexer(CharStreams.fromString(input));
+        if (packed.hasErrors() != (antlrErrors[0] > 0))
+            fail(input, "PackedLexer.hasErrors() = " + packed.hasErrors() + ", TugaLexer reportou "
+                    + antlrErrors[0] + " erros");
+        if (packed.hasErrors()) {
+            errors++;
+            return;
+        }
+
+        List<Token> actual = tokens(new PackedTokenSource(packed));
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            Token e = i < expected.size() ? expected.get(i) : null;
+            Token a = i < actual.size() ? actual.get(i) : null;
+            if (e == null || a == null || !describe(e).equals(describe(a)))
+                fail(input, "token " + i + ": TugaLexer " + (e == null ? "-" : describe(e))
+                        + ", PackedLexer " + (a == null ? "-" : describe(a)));
+        }
+        tokens += expected.size();
+    }
+
+    private static List<Token> tokens(TokenSource source) {
+        List<Token> list = new ArrayList<>();
+        Token t;
+        do {
+            t = source.nextToken();
+            list.add(t);
+        } while (t.getType() != Token.EOF);
+        return list;
+    }
+
+    private static String describe(Token t) {
+        return "[type=" + t.getType() + " text='" + t.getText() + "' start=" + t.getStartIndex()
+                + " stop=" + t.getStopIndex() + " line=" + t.getLine() + " column="
+                + t.getCharPositionInLine() + " channel=" + t.getChannel() + "]";
+    }
+
+    private static void fail(String input, String message) {
+        System.err.println("LexerDiffTest: " + message);
+        System.err.println("entrada: \"" + input.replace("\\", "\\\\").replace("\n", "\\n")
+                .replace("\r", "\\r").replace("\t", "\\t") + "\"");
+        System.exit(1);
+    }
+}
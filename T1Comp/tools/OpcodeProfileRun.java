@@ -0,0 +1,130 @@
+import CodeGenerator.CodeGen;
+import ErrorListener.Diagnostics;
+import IR.Lowering;
+import Optimizer.PeepholeOptimizer;
+import Tuga.TugaLexer;
+import Tuga.TugaParser;
+import TypeChecker.TugaTypeChecker;
+import VM.Engine;
+import VM.OpCode;
+import VM.OpcodeProfile;
+import VM.VM;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Perfil de opcodes do corpus e escolha das superinstrucoes (VM.Superinstructions.FUSIONS).
+ *
+ * <p>Junta os programas do corpus num so programa, compila-o sem avaliacao de constantes nem
+ * otimizacoes peephole (como --no-folding --no-peephole: com elas, o corpus fica quase so com
+ * constantes e 'escreve') e executa-o no interpretador de referencia com o perfil ativo. Escreve
+ * o relatorio do perfil e os pares escolhidos pela regra de {@link #chosen}, por ordem da
+ * percentagem. Se a lista nao for igual as superinstrucoes declaradas em OpCode (e em
+ * FUSIONS), pela mesma ordem, termina com o codigo 1.</p>
+ *
+ * <p>Uso: {@code java OpcodeProfileRun [corpus]}.</p>
+ */
+public class OpcodeProfileRun {
+    // Percentagem minima das instrucoes executadas para um par ser fundido
+    private static final double MIN_SHARE = 1.0;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : Harness.DEFAULT_CORPUS;
+        StringBuilder program = new StringBuilder();
+        List<Path> files = Harness.corpus(dir);
+        for (Path file : files)
+            program.append(Harness.read(file));
+
+        OpcodeProfile profile = profile(program.toString());
+        System.out.println(files.size() + " programas de " + dir + ", compilados com --no-folding --no-peephole");
+        System.out.print(profile);
+
+        List<OpCode[]> chosen = chosen(profile);
+        System.out.println("chosen (>= " + MIN_SHARE + "%, operator and operand, not rewritten by the peephole optimizer):");
+        List<String> expected = new ArrayList<>();
+        for (OpCode[] pair : chosen) {
+            System.out.printf("  %12d  %6.2f%%  %s %s%n", profile.count(pair),
+                    100.0 * profile.count(pair) / profile.getInstructions(), pair[0], pair[1]);
+            expected.add(pair[0] + "_" + pair[1]);
+        }
+
+        List<String> declared = new ArrayList<>();
+        for (OpCode opc : OpCode.values())
+            if (opc.ordinal() > OpCode.jumpt.ordinal())
+                declared.add(opc.name());
+        if (!declared.equals(expected)) {
+            System.err.println("OpcodeProfileRun: as superinstrucoes de OpCode " + declared
+                    + " nao correspondem ao perfil " + expected);
+            System.exit(1);
+        }
+        System.out.println("FUSIONS corresponde ao perfil");
+    }
+
+    /**
+     * Compila e executa o programa no interpretador de referencia, sem escrever o resultado.
+     */
+    private static OpcodeProfile profile(String program) {
+        TugaParser parser = new TugaParser(new CommonTokenStream(new TugaLexer(CharStreams.fromString(program))));
+        ParseTree tree = parser.prog();
+        TugaTypeChecker checker = new TugaTypeChecker(true, new Diagnostics(0));
+        new IterativeParseTreeWalker().walk(checker, tree);
+        if (parser.getNumberOfSyntaxErrors() > 0 || checker.hasErrors())
+            throw new IllegalStateException("programa do corpus com erros");
+        CodeGen codeGen = new CodeGen();
+        codeGen.generate(new Lowering(null).lower(tree));
+
+        VM vm = new VM(codeGen.toBytecodes(), Engine.INTERPRETER);
+        vm.enableProfiling();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            vm.run();
+        } finally {
+            System.setOut(out);
+        }
+        return vm.getProfile();
+    }
+
+    /**
+     * Regra de escolha das superinstrucoes: os pares de opcodes do compilador que cobrem pelo
+     * menos MIN_SHARE% das instrucoes executadas, em que o segundo consome o valor deixado pelo
+     * primeiro (o primeiro nao e um 'escreve', um salto ou halt, e o segundo desempilha um
+     * valor) e que nao sao o padrao de uma regra do PeepholeOptimizer, que ja os reescreve no
+     * compilador (iconst itod, iconst iuminus, tconst not, ...).
+     *
+     * @return Pares escolhidos, por ordem decrescente da contagem (e pela ordem dos opcodes).
+     */
+    private static List<OpCode[]> chosen(OpcodeProfile profile) {
+        List<OpCode[]> pairs = new ArrayList<>();
+        for (OpCode first : OpCode.values()) {
+            for (OpCode second : OpCode.values()) {
+                if (first.ordinal() > OpCode.jumpt.ordinal() || second.ordinal() > OpCode.jumpt.ordinal())
+                    continue;
+                boolean produces = !first.name().endsWith("print") && !first.isJump() && first != OpCode.halt;
+                boolean consumes = second.stackEffect() <= 0 && second != OpCode.halt && second != OpCode.jump;
+                if (!produces || !consumes || rewritten(first, second))
+                    continue;
+                if (100.0 * profile.count(first, second) / profile.getInstructions() >= MIN_SHARE)
+                    pairs.add(new OpCode[] { first, second });
+            }
+        }
+        pairs.sort((a, b) -> Long.compare(profile.count(b), profile.count(a)));
+        return pairs;
+    }
+
+    private static boolean rewritten(OpCode first, OpCode second) {
+        for (PeepholeOptimizer.Rule rule : PeepholeOptimizer.DEFAULT_RULES)
+            if (Arrays.equals(rule.pattern(), new OpCode[] { first, second }))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.Random;
+
+/**
+ * Gerador de programas Tuga aleatorios e validos, reproduziveis a partir de uma semente.
+ * Cada estatistica escreve uma expressao de um tipo ao acaso (inteiro, real, booleano ou
+ * string), com todos os operadores da linguagem e operandos mistos inteiro/real. Os divisores de
+ * '/' e '%' sao literais diferentes de zero, pelo que os programas correm ate ao fim.
+ *
+ * <p>Uso: {@code java ProgramGenerator <semente> <estatisticas> [profundidade]}; o corpus em
+ * tools/corpus foi gerado assim (ver o README).</p>
+ */
+final class ProgramGenerator {
+    private static final String[] INTS = { "0", "1", "2", "3", "7", "10", "2147483647", "100000", "5", "11" };
+    private static final String[] NONZERO_INTS = { "1", "2", "3", "7", "10", "100000", "5", "11" };
+    private static final String[] REALS = { "0.0", "1.5", "2.0", "0.1", "3.25", "0.000000001", "1000000.0" };
+    private static final String[] NONZERO_REALS = { "1.5", "2.0", "0.1", "3.25", "1000000.0" };
+    private static final String[] STRINGS = { "\"\"", "\"a\"", "\"ola mundo\"", "\"x y\"" };
+
+    private final Random random;
+
+    ProgramGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Gera um programa.
+     *
+     * @param statements Numero de estatisticas.
+     * @param maxDepth Profundidade maxima de cada expressao (pelo menos 1).
+     * @return Texto do programa, uma estatistica por linha.
+     */
+    String program(int statements, int maxDepth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < statements; i++)
+            sb.append("escreve ").append(expr(pick("idbs"), 1 + random.nextInt(maxDepth))).append(";\n");
+        return sb.toString();
+    }
+
+    /**
+     * Gera uma expressao.
+     *
+     * @param type Tipo da expressao: 'i' (inteiro), 'd' (real), 'b' (booleano) ou 's' (string).
+     * @param depth Profundidade maxima.
+     * @return Texto da expressao.
+     */
+    String expr(char type, int depth) {
+        if (depth <= 0 || random.nextDouble() < 0.25) {
+            if (type == 'd' && random.nextDouble() < 0.3)
+                return literal('i');
+            return literal(type);
+        }
+        double c = random.nextDouble();
+        switch (type) {
+            case 'i': {
+                if (c < 0.1) return "-" + expr('i', depth - 1);
+                if (c < 0.2) return "(" + expr('i', depth - 1) + ")";
+                char op = pick("+-*/%");
+                String right = op == '/' || op == '%' ? pick(NONZERO_INTS) : expr('i', depth - 1);
+                String e = expr('i', depth - 1) + " " + op + " " + right;
+                return random.nextDouble() < 0.7 ? "(" + e + ")" : e;
+            }
+            case 'd': {
+                if (c < 0.1) return "-" + expr('d', depth - 1);
+                if (c < 0.2) return "(" + expr('d', depth - 1) + ")";
+                char op = pick("+-*/");
+                String[] types = pick(new String[] { "dd", "di", "id" }).split("");
+                String right = op == '/'
+                        ? (types[1].equals("d") ? pick(NONZERO_REALS) : pick(NONZERO_INTS))
+                        : expr(types[1].charAt(0), depth - 1);
+                // 'x * a % b' seria '(x * a) % b', com um real em '%'
+                if (types[1].equals("i"))
+                    right = "(" + right + ")";
+                return "(" + expr(types[0].charAt(0), depth - 1) + " " + op + " " + right + ")";
+            }
+            case 'b': {
+                if (c < 0.15) return "nao " + expr('b', depth - 1);
+                if (c < 0.35) {
+                    String types = pick(new String[] { "ii", "di", "id", "dd" });
+                    return "(" + expr(types.charAt(0), depth - 1) + " " + pick(new String[] { "<", ">", "<=", ">=" })
+                            + " " + expr(types.charAt(1), depth - 1) + ")";
+                }
+                if (c < 0.55) {
+                    char a = pick("idbs");
+                    char b = a == 'i' || a == 'd' ? pick("id") : a;
+                    return "(" + expr(a, depth - 1) + " " + pick(new String[] { "igual", "diferente" })
+                            + " " + expr(b, depth - 1) + ")";
+                }
+                return "(" + expr('b', depth - 1) + " " + pick(new String[] { "e", "ou" }) + " "
+                        + expr('b', depth - 1) + ")";
+            }
+            default: {
+                if (c < 0.3) return "(" + expr('s', depth - 1) + ")";
+                String types = pick(new String[] { "ss", "si", "is", "sd", "ds", "sb", "bs" });
+                String a = expr(types.charAt(0), depth - 1);
+                String b = expr(types.charAt(1), depth - 1);
+                // o operando direito vai sempre entre parenteses: 'a + (b + c)' com 'b' nao
+                // string seria '(a + b) + c', que pode nao ser uma concatenacao
+                if (types.charAt(0) != 's') a = "(" + a + ")";
+                return a + " + (" + b + ")";
+            }
+        }
+    }
+
+    private String literal(char type) {
+        return switch (type) {
+            case 'i' -> pick(INTS);
+            case 'd' -> pick(REALS);
+            case 'b' -> random.nextBoolean() ? "verdadeiro" : "falso";
+            default -> pick(STRINGS);
+        };
+    }
+
+    private char pick(String choices) {
+        return choices.charAt(random.nextInt(choices.length()));
+    }
+
+    private String pick(String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("uso: java ProgramGenerator <semente> <estatisticas> [profundidade]");
+            System.exit(2);
+        }
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.print(new ProgramGenerator(Long.parseLong(args[0])).program(Integer.parseInt(args[1]), depth));
+    }
+}
@@ -0,0 +1,84 @@
+import ErrorListener.Diagnostics;
+import ErrorListener.ErrorListener;
+import Lexer.PackedLexer;
+import Tuga.TugaParser;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Medicao da analise sintatica em duas fases (SLL e, so se falhar, LL) contra a analise so em
+ * modo LL (--no-sll), com o TugaCompileAndRun.parse dos dois modos sobre os tokens do
+ * PackedLexer.
+ *
+ * <p>Para cada programa do corpus mede o melhor de 9 analises em cada modo, em duas situacoes:
+ * com a cache DFA do TugaParser vazia antes de cada analise (como no inicio de cada execucao do
+ * compilador, em que o ANTLR ainda nao aprendeu as decisoes da gramatica) e com a cache ja
+ * preenchida (como num processo que compila muitos programas). A lexica nao conta. Um programa com erros sintaticos termina o programa com o
+ * codigo 1: o corpus so tem programas validos.</p>
+ *
+ * <p>Uso: {@code java SllParseBench [corpus]}.</p>
+ */
+public class SllParseBench {
+    private static final int RUNS = 9;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : Harness.DEFAULT_CORPUS;
+        List<Path> files = Harness.corpus(dir);
+        String[] programs = new String[files.size()];
+        for (int i = 0; i < programs.length; i++)
+            programs[i] = Harness.read(files.get(i));
+
+        // aquecimento do JIT da JVM nos dois modos
+        for (int r = 0; r < 3; r++)
+            for (String program : programs) {
+                time(program, true, true);
+                time(program, false, true);
+            }
+
+        System.out.printf("%-12s  %12s  %12s  %12s  %12s%n", "", "cold SLL->LL", "cold LL", "warm SLL->LL", "warm LL");
+        double[] totals = new double[4];
+        for (int i = 0; i < programs.length; i++) {
+            double[] row = {
+                    best(programs[i], true, true), best(programs[i], false, true),
+                    best(programs[i], true, false), best(programs[i], false, false),
+            };
+            for (int k = 0; k < row.length; k++)
+                totals[k] += row[k];
+            System.out.printf("%-12s  %12.2f  %12.2f  %12.2f  %12.2f%n", files.get(i).getFileName(),
+                    row[0], row[1], row[2], row[3]);
+        }
+        System.out.printf("%-12s  %12.2f  %12.2f  %12.2f  %12.2f%n", "total ms", totals[0], totals[1], totals[2], totals[3]);
+        System.out.printf("SLL->LL / LL: cold %.1f%%, warm %.1f%%%n",
+                100 * totals[0] / totals[1], 100 * totals[2] / totals[3]);
+    }
+
+    private static double best(String program, boolean twoStage, boolean coldDfa) {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < RUNS; r++)
+            best = Math.min(best, time(program, twoStage, coldDfa));
+        return best / 1e6;
+    }
+
+    /**
+     * Tempo de uma analise sintatica, em nanossegundos.
+     */
+    private static long time(String program, boolean twoStage, boolean coldDfa) {
+        CharStream input = CharStreams.fromString(program);
+        PackedLexer tokens = new PackedLexer(input);
+        ErrorListener el = new ErrorListener(false, false, new Diagnostics(0));
+        if (coldDfa)
+            // a cache DFA e partilhada por todos os TugaParser
+            new TugaParser(null).getInterpreter().clearDFA();
+        long start = System.nanoTime();
+        TugaCompileAndRun.parse(input, tokens, el, twoStage);
+        long elapsed = System.nanoTime() - start;
+        if (el.getNumLexerErrors() > 0 || el.getNumParsingErrors() > 0) {
+            System.err.println("SllParseBench: programa com erros no corpus");
+            System.exit(1);
+        }
+        return elapsed;
+    }
+}